@@ -0,0 +1,35 @@
+package no.difi.statistics.ingest.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.util.function.Supplier;
+
+/**
+ * Encoding of requests to and responses from the ingest service. The binary formats are smaller and cheaper to parse
+ * than JSON.
+ */
+public enum Format {
+
+    json("application/json", JsonFactory::new),
+    smile("application/x-jackson-smile", SmileFactory::new),
+    cbor("application/cbor", CBORFactory::new);
+
+    private final String contentType;
+    private final Supplier<JsonFactory> factory;
+
+    Format(String contentType, Supplier<JsonFactory> factory) {
+        this.contentType = contentType;
+        this.factory = factory;
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    JsonFactory factory() {
+        return factory.get();
+    }
+
+}
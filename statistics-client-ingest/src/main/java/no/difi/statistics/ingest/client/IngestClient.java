@@ -27,10 +27,11 @@ import static java.net.HttpURLConnection.*;
 public class IngestClient implements IngestService {
 
     private static final String CONTENT_TYPE_KEY = "Content-Type";
-    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String ACCEPT_KEY = "Accept";
     private static final String AUTHORIZATION_KEY = "Authorization";
     private static final String AUTH_METHOD = "Basic";
 
+    private final Format format;
     private final ObjectWriter requestWriter;
     private final ObjectReader responseReader;
     private final ObjectReader lastResponseReader;
@@ -43,13 +44,18 @@ public class IngestClient implements IngestService {
     private final int connectionTimeoutMillis;
 
     public IngestClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, String owner, String username, String password) {
-        ObjectMapper objectMapper = new ObjectMapper()
+        this(baseURL, readTimeoutMillis, connectionTimeoutMillis, owner, username, password, Format.json);
+    }
+
+    public IngestClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, String owner, String username, String password, Format format) {
+        ObjectMapper objectMapper = new ObjectMapper(format.factory())
                 .registerModule(new JavaTimeModule())
                 .registerModule(new Jdk8Module())
                 .setDateFormat(new ISO8601DateFormat())
                 .setSerializationInclusion(JsonInclude.Include.NON_NULL)
                 .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
                 .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        this.format = format;
         this.requestWriter = objectMapper.writerFor(new TypeReference<List<TimeSeriesPoint>>() {});
         this.responseReader = objectMapper.readerFor(IngestResponse.class);
         this.lastResponseReader = objectMapper.readerFor(TimeSeriesPoint.class);
@@ -162,7 +168,8 @@ public class IngestClient implements IngestService {
         } catch (ProtocolException e) {
             throw new ConnectFailed(e);
         }
-        conn.setRequestProperty(CONTENT_TYPE_KEY, JSON_CONTENT_TYPE);
+        conn.setRequestProperty(CONTENT_TYPE_KEY, format.contentType());
+        conn.setRequestProperty(ACCEPT_KEY, format.contentType());
         conn.setRequestProperty(AUTHORIZATION_KEY, AUTH_METHOD + " " + createBase64EncodedCredentials());
         try {
             conn.connect(); // Connect early. Otherwise will be called implicitly later.
@@ -19,7 +19,10 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
@@ -35,16 +38,21 @@ import static no.difi.statistics.ingest.client.model.TimeSeriesDefinition.timeSe
 import static no.difi.statistics.ingest.client.model.TimeSeriesPoint.timeSeriesPoint;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class IngestClientTest {
 
-    private static final ObjectMapper objectMapper = new ObjectMapper()
-            .registerModule(new JavaTimeModule())
-            .registerModule(new Jdk8Module())
-            .setDateFormat(new ISO8601DateFormat())
-            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
-            .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
-            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    private static final ObjectMapper objectMapper = configure(new ObjectMapper());
+
+    private static ObjectMapper configure(ObjectMapper objectMapper) {
+        return objectMapper
+                .registerModule(new JavaTimeModule())
+                .registerModule(new Jdk8Module())
+                .setDateFormat(new ISO8601DateFormat())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
+                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    }
 
     private static final String JSON = "application/json";
     private static final String content_type = "Content-Type";
@@ -133,6 +141,31 @@ public class IngestClientTest {
                 .withHeader(content_type, equalTo(JSON)));
     }
 
+    @Test
+    public void shouldSendAndAcceptSmileWhenSmileFormatIsUsed() throws Exception {
+        givenOkResponse(2, Format.smile);
+        IngestResponse response = client(Format.smile).ingest(timeSeriesDefinition().name(series_name).distance(minutes), twoPoints());
+        assertEquals(2, response.getStatuses().size());
+        verify(postRequestedFor(urlEqualTo(valid_url))
+                .withHeader(content_type, equalTo(Format.smile.contentType()))
+                .withHeader("Accept", equalTo(Format.smile.contentType())));
+    }
+
+    @Test
+    public void shouldSendSmallerRequestsWithBinaryFormats() throws Exception {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            points.add(timeSeriesPoint().timestamp(aTimestamp.plusMinutes(i)).measurement("m1", i).measurement("m2", 2 * i).build());
+        Map<Format, Integer> requestSizes = new EnumMap<>(Format.class);
+        for (Format format : Format.values()) {
+            givenOkResponse(points.size(), format);
+            client(format).ingest(timeSeriesDefinition().name(series_name).distance(minutes), points);
+            requestSizes.put(format, findAll(postRequestedFor(urlEqualTo(valid_url)).withHeader(content_type, equalTo(format.contentType()))).get(0).getBody().length);
+        }
+        assertTrue(requestSizes.toString(), requestSizes.get(Format.smile) < requestSizes.get(Format.json));
+        assertTrue(requestSizes.toString(), requestSizes.get(Format.cbor) < requestSizes.get(Format.json));
+    }
+
     @Test
     public void shouldThrowConnectFailedWhenConnectionFails(){
         wireMockRule.stop();
@@ -198,6 +231,24 @@ public class IngestClientTest {
         );
     }
 
+    private void givenOkResponse(int numberOfPoints, Format format) {
+        IngestResponse.Builder response = IngestResponse.builder();
+        for (int i = 0; i < numberOfPoints; i++)
+            response.status(Ok);
+        wireMockRule.stubFor(
+                any(urlPathMatching(".*"))
+                        .willReturn(aResponse()
+                                .withHeader("Content-Type", format.contentType())
+                                .withStatus(HttpURLConnection.HTTP_OK)
+                                .withBody(encode(response.build(), format))
+                        )
+        );
+    }
+
+    private IngestClient client(Format format) throws MalformedURLException {
+        return new IngestClient(new URL("http://localhost:" + wireMockRule.port()), 500, 500, owner, "aUser", "aPassword", format);
+    }
+
     private static TimeSeriesPoint aPoint() {
         return timeSeriesPoint().timestamp(now()).measurement("m1", 111L).build();
     }
@@ -220,6 +271,14 @@ public class IngestClientTest {
         );
     }
 
+    private byte[] encode(Object o, Format format) {
+        try {
+            return configure(new ObjectMapper(format.factory())).writer().writeValueAsBytes(o);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private String json(Object o) {
         try {
             return objectMapper.writer().writeValueAsString(o);
@@ -3,24 +3,112 @@ package no.difi.statistics.elasticsearch;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.common.hash.MurmurHash3;
 
 import java.io.UnsupportedEncodingException;
 import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.UUID;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
 import static java.util.stream.Collectors.joining;
 import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
 
+/**
+ * Resolves the ids of the documents of points from their timestamp and categories, so that writing the same point
+ * twice gives a conflict and rollups of the same period add to the same document.
+ * <p>
+ * Points before the murmur3 cut-over get name based (MD5) UUIDs, as all points did before. Points from the cut-over
+ * get the 128-bit murmur3 hash of their epoch millis and sorted categories, as 22 URL-safe base64 characters, which
+ * is computed without intermediate strings. The scheme depends only on the timestamp of the point, so a point keeps
+ * its id as long as the cut-over is not moved. It must be later than any point written before it was set.
+ */
 public class IdResolver {
 
+    private static final char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final IdResolver md5 = new IdResolver(Long.MAX_VALUE);
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+    private final long murmur3From;
+
+    private IdResolver(long murmur3From) {
+        this.murmur3From = murmur3From;
+    }
+
+    /**
+     * @return a resolver giving the ids of the MD5 scheme only
+     */
+    public static IdResolver md5() {
+        return md5;
+    }
+
+    /**
+     * @return a resolver giving the ids of the murmur3 scheme to points at or after the cut-over
+     */
+    public static IdResolver murmur3From(ZonedDateTime cutOver) {
+        return new IdResolver(cutOver.toInstant().toEpochMilli());
+    }
+
+    /**
+     * @return the id of the point in the MD5 scheme
+     */
     public static String id(TimeSeriesPoint dataPoint, TimeSeriesDefinition seriesDefinition) {
+        return md5.resolve(dataPoint, seriesDefinition);
+    }
+
+    public String resolve(TimeSeriesPoint dataPoint, TimeSeriesDefinition seriesDefinition) {
+        long timestamp = Timestamp.normalizedEpochMillis(dataPoint.getTimestamp(), seriesDefinition.getDistance());
+        if (timestamp >= murmur3From)
+            return murmur3(timestamp, dataPoint.getCategories().orElse(null));
         return nameUUID(
                 normalizeTimestamp(dataPoint.getTimestamp(), seriesDefinition.getDistance()).toString()
                         + categoriesAsString(dataPoint)
         );
     }
 
+    private static String murmur3(long timestamp, Map<String, String> categories) {
+        Buffer buffer = buffers.get();
+        buffer.length = 0;
+        buffer.putLong(timestamp);
+        if (categories != null && !categories.isEmpty()) {
+            String[] keys = categories.keySet().toArray(new String[0]);
+            if (keys.length > 1)
+                Arrays.sort(keys);
+            for (String key : keys) {
+                buffer.putString(key);
+                buffer.putByte((byte) 0);
+                buffer.putString(categories.get(key));
+                buffer.putByte((byte) 0);
+            }
+        }
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(buffer.bytes, 0, buffer.length, 0, buffer.hash);
+        return base64(hash.h1, hash.h2, buffer.chars);
+    }
+
+    /**
+     * @return the 128 bits as unpadded URL-safe base64
+     */
+    private static String base64(long high, long low, char[] chars) {
+        int c = 0;
+        // 126 bits in 21 characters, most significant first, and the last 2 bits in the 22nd
+        for (int bit = 122; bit >= 2; bit -= 6)
+            chars[c++] = alphabet[sixBits(high, low, bit)];
+        chars[c] = alphabet[(int) (low & 3) << 4];
+        return new String(chars);
+    }
+
+    /**
+     * @return the six bits starting at the given bit (counted from the least significant) of the 128-bit value
+     */
+    private static int sixBits(long high, long low, int bit) {
+        if (bit >= 64)
+            return (int) (high >>> (bit - 64)) & 63;
+        if (bit <= 58)
+            return (int) (low >>> bit) & 63;
+        return (int) ((high << (64 - bit)) | (low >>> bit)) & 63;
+    }
+
     private static String nameUUID(String name) {
         try {
             return UUID.nameUUIDFromBytes(name.getBytes("UTF-8")).toString();
@@ -39,4 +127,48 @@ public class IdResolver {
         return truncatedTimestamp(timestamp, distance).withZoneSameInstant(UTC);
     }
 
+    /**
+     * Per-thread buffers for hashing, reused between points.
+     */
+    private static class Buffer {
+
+        private byte[] bytes = new byte[256];
+        private int length;
+        private final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+        private final char[] chars = new char[22];
+
+        private void putLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                bytes[length++] = (byte) (value >>> shift);
+        }
+
+        private void putByte(byte value) {
+            ensureCapacity(1);
+            bytes[length++] = value;
+        }
+
+        private void putString(String value) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    // Not ASCII: encode the rest of the string properly
+                    byte[] encoded = value.substring(i).getBytes(UTF_8);
+                    ensureCapacity(encoded.length);
+                    System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                    length += encoded.length;
+                    return;
+                }
+                bytes[length++] = (byte) c;
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+
+    }
+
 }
@@ -4,16 +4,23 @@ import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 
+import java.time.DateTimeException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.DAYS;
 import static java.time.temporal.ChronoUnit.FOREVER;
+import static java.time.temporal.ChronoUnit.MONTHS;
 import static java.time.temporal.ChronoUnit.YEARS;
 import static java.util.Collections.singletonList;
 import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
@@ -22,6 +29,7 @@ public class IndexNameResolver {
 
     private static String partSeparator = "@";
     private static Pattern pattern = Pattern.compile("(.+)@(.+)@(minute|hour|day|month|year).*");
+    private PartitioningPolicy partitioningPolicy;
     private TimeSeriesDefinition seriesDefinition;
     private ChronoUnit baseTimeUnit;
     private TimeRange timeRange;
@@ -36,7 +44,13 @@ public class IndexNameResolver {
     }
 
     public static SeriesDefinitionEntry resolveIndexName() {
-        return new Fluent();
+        return resolveIndexName(PartitioningPolicy.defaults());
+    }
+
+    public static SeriesDefinitionEntry resolveIndexName(PartitioningPolicy partitioningPolicy) {
+        Fluent fluent = new Fluent();
+        fluent.instance.partitioningPolicy = partitioningPolicy;
+        return fluent;
     }
 
     public interface TimeRangeEntry {
@@ -52,6 +66,13 @@ public class IndexNameResolver {
 
     public interface ResolveList {
         List<String> list();
+
+        /**
+         * @param partitions names of the indices known to exist for the series, e.g. from its statistics
+         * @return the known indices overlapping the range, plus those of periods after the last known one in case
+         * they were created since. Falls back to {@link #list()} when no indices are known.
+         */
+        List<String> list(Collection<String> partitions);
     }
 
     public interface ResolveSingle {
@@ -87,17 +108,7 @@ public class IndexNameResolver {
         @Override
         public TimeRangeOrAtOrResolveList seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
-            switch (seriesDefinition.getDistance()) {
-                case minutes:
-                case hours:
-                case days:
-                case months:
-                    instance.baseTimeUnit = YEARS;
-                    break;
-                case years:
-                    instance.baseTimeUnit = FOREVER;
-                    break;
-            }
+            instance.baseTimeUnit = instance.partitioningPolicy.partitioning(seriesDefinition).unit();
             return this;
         }
 
@@ -131,12 +142,86 @@ public class IndexNameResolver {
             return indices;
         }
 
+        @Override
+        public List<String> list(Collection<String> partitions) {
+            if (partitions == null || partitions.isEmpty())
+                return list();
+            ZonedDateTime from = instance.timeRange != null ? instance.timeRange.from() : null;
+            ZonedDateTime to = instance.timeRange != null ? instance.timeRange.to() : null;
+            String prefix = formatName(null).replace("*", "");
+            SortedSet<String> indices = new TreeSet<>();
+            ZonedDateTime knownEnd = null;
+            for (String partition : partitions) {
+                if (!partition.startsWith(prefix))
+                    continue;
+                ZonedDateTime[] period = period(partition.substring(prefix.length()));
+                if (period == null)
+                    continue; // Not a partition of this series
+                if (knownEnd == null || period[1].isAfter(knownEnd))
+                    knownEnd = period[1];
+                if ((to == null || !period[0].isAfter(to)) && (from == null || period[1].isAfter(from)))
+                    indices.add(partition);
+            }
+            if (knownEnd == null)
+                return list();
+            if (instance.baseTimeUnit == FOREVER) {
+                indices.add(formatName(ZonedDateTime.now(UTC)));
+            } else {
+                // Partitions may have been created since the statistics were read
+                ZonedDateTime start = from != null && from.isAfter(knownEnd) ? from.withZoneSameInstant(UTC) : knownEnd;
+                ZonedDateTime end = ZonedDateTime.now(UTC).plus(1, instance.baseTimeUnit);
+                if (to != null && to.isBefore(end))
+                    end = to.withZoneSameInstant(UTC);
+                int added = 0;
+                for (ZonedDateTime timestamp = truncatedTimestamp(start, instance.baseTimeUnit); !timestamp.isAfter(end); timestamp = timestamp.plus(1, instance.baseTimeUnit)) {
+                    if (++added > 10)
+                        return list();
+                    indices.add(formatName(timestamp));
+                }
+            }
+            if (indices.isEmpty())
+                // An empty list would mean all indices, so name one that does not exist instead
+                indices.add(formatName(truncatedTimestamp(from != null ? from : to, instance.baseTimeUnit)));
+            return new ArrayList<>(indices);
+        }
+
         @Override
         public String single() {
             return formatName(instance.at);
         }
 
+        /**
+         * @return the start and end of the period of an index name suffix in any partitioning, or null if it is not a
+         * period
+         */
+        private ZonedDateTime[] period(String suffix) {
+            if (suffix.isEmpty())
+                return new ZonedDateTime[]{ZonedDateTime.of(1970, 1, 1, 0, 0, 0, 0, UTC), ZonedDateTime.of(2050, 1, 1, 0, 0, 0, 0, UTC)};
+            String[] fields = suffix.split("\\.");
+            if (fields.length > 3)
+                return null;
+            try {
+                ZonedDateTime start = ZonedDateTime.of(
+                        Integer.parseInt(fields[0]),
+                        fields.length > 1 ? Integer.parseInt(fields[1]) : 1,
+                        fields.length > 2 ? Integer.parseInt(fields[2]) : 1,
+                        0, 0, 0, 0, UTC
+                );
+                return new ZonedDateTime[]{start, start.plus(1, fields.length == 1 ? YEARS : fields.length == 2 ? MONTHS : DAYS)};
+            } catch (NumberFormatException | DateTimeException e) {
+                return null;
+            }
+        }
+
         private String formatName(ZonedDateTime timestamp) {
+            if (instance.partitioningPolicy.isShared(instance.seriesDefinition))
+                return format(
+                        "%1$s%4$s%2$s%3$s", // <shared prefix><partSeparator><distance><timeUnit>
+                        SharedIndices.prefix,
+                        measurementDistanceName(instance.seriesDefinition.getDistance()),
+                        timestamp != null ? dateTimeFormatter(instance.baseTimeUnit).format(timestamp) : "*",
+                        partSeparator
+                );
             return format(
                     "%1$s%5$s%2$s%5$s%3$s%4$s", // <owner><partSeparator><seriesName><partSeparator><distance><timeUnit>
                     instance.seriesDefinition.getOwner(),
@@ -169,6 +254,8 @@ public class IndexNameResolver {
         switch (baseTimeUnit) {
             case YEARS:
                 return DateTimeFormatter.ofPattern("yyyy");
+            case MONTHS:
+                return DateTimeFormatter.ofPattern("yyyy.MM");
             case DAYS:
                 return DateTimeFormatter.ofPattern("yyyy.MM.dd");
             case FOREVER:
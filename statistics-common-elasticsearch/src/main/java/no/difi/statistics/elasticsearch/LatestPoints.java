@@ -0,0 +1,77 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the latest point of each series is kept, so that it can be read with a single get instead of an aggregation
+ * over every index of the series. They are maintained by ingest in an index of their own, with one document per series
+ * and combination of categories holding the timestamp (epoch millis) and the measurements of the latest point. The
+ * document of a combination sums the points at that timestamp with categories including it, like a query filtering
+ * on those categories does.
+ * <p>
+ * Documents are kept for no categories and for the combinations of categories of points with few categories. Once a
+ * point with more categories has been written, the document without categories is marked partial, and the documents
+ * of combinations can no longer be relied on. A document is marked stale when an update of it failed, along with the
+ * latest timestamp of the points which failed. The last point must then be searched for instead, until a point after
+ * that timestamp has replaced the document.
+ */
+public class LatestPoints {
+
+    public static final String indexName = "latest-points";
+    public static final String indexType = "default";
+    public static final String templateName = "latest-points";
+    public static final String timestampField = "timestamp";
+    public static final String measurementsField = "measurements";
+    public static final String staleField = "stale";
+    public static final String staleTimestampField = "staleTimestamp";
+    public static final String partialField = "partial";
+
+    public static String id(TimeSeriesDefinition seriesDefinition, Map<String, String> categories) {
+        StringBuilder id = new StringBuilder(SeriesStatistics.id(seriesDefinition));
+        new TreeMap<>(categories).forEach((key, value) -> id.append('@').append(key).append('=').append(value));
+        return id.toString();
+    }
+
+    public static boolean isStale(Map<String, Object> source) {
+        return Boolean.TRUE.equals(source.get(staleField));
+    }
+
+    /**
+     * @param source of the document without categories
+     * @return whether points have been written without updating the documents of every combination of their categories
+     */
+    public static boolean isPartial(Map<String, Object> source) {
+        return Boolean.TRUE.equals(source.get(partialField));
+    }
+
+    public static ZonedDateTime timestamp(Map<String, Object> source) {
+        return Timestamp.parse(((Number) source.get(timestampField)).longValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Long> measurements(Map<String, Object> source) {
+        Map<String, Long> measurements = new HashMap<>();
+        ((Map<String, Number>) source.get(measurementsField)).forEach((id, value) -> measurements.put(id, value.longValue()));
+        return measurements;
+    }
+
+    /**
+     * @return the index template of the latest points, which keeps the measurements out of the mapping as their ids
+     * differ between series
+     */
+    public static String template() {
+        return "{" +
+                "\"index_patterns\": [\"" + indexName + "\"]," +
+                "\"mappings\": {\"" + indexType + "\": {" +
+                "\"dynamic\": false," +
+                "\"properties\": {" +
+                "\"" + timestampField + "\": {\"type\": \"long\"}" +
+                "}}}}";
+    }
+
+}
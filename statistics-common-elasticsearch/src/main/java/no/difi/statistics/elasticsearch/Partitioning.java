@@ -0,0 +1,32 @@
+package no.difi.statistics.elasticsearch;
+
+import java.time.temporal.ChronoUnit;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.FOREVER;
+import static java.time.temporal.ChronoUnit.MONTHS;
+import static java.time.temporal.ChronoUnit.YEARS;
+
+/**
+ * The period covered by each index of a series. With <code>none</code> the series has a single index, and with
+ * <code>shared</code> it shares yearly indices with other series (see {@link SharedIndices}).
+ */
+public enum Partitioning {
+
+    days(DAYS),
+    months(MONTHS),
+    years(YEARS),
+    none(FOREVER),
+    shared(YEARS);
+
+    private final ChronoUnit unit;
+
+    Partitioning(ChronoUnit unit) {
+        this.unit = unit;
+    }
+
+    public ChronoUnit unit() {
+        return unit;
+    }
+
+}
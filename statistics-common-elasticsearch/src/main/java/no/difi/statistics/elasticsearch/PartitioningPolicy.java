@@ -0,0 +1,100 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+
+/**
+ * Chooses the partitioning of each series, from a partitioning per distance which can be overridden for single series.
+ * Ingest and queries must use the same policy. Changing the partitioning of a series which already has points leaves
+ * its existing indices as they are, and queries find them through the statistics of the series.
+ */
+public class PartitioningPolicy {
+
+    private final Map<MeasurementDistance, Partitioning> distances = new EnumMap<>(MeasurementDistance.class);
+    private final Map<TimeSeriesDefinition, Partitioning> series = new HashMap<>();
+
+    private PartitioningPolicy() {
+        // Use builder
+    }
+
+    /**
+     * @return the policy of yearly indices for all distances but years, which have a single index
+     */
+    public static PartitioningPolicy defaults() {
+        return builder().build();
+    }
+
+    public Partitioning partitioning(TimeSeriesDefinition seriesDefinition) {
+        Partitioning partitioning = series.get(seriesDefinition);
+        return partitioning != null ? partitioning : distances.get(seriesDefinition.getDistance());
+    }
+
+    public boolean isShared(TimeSeriesDefinition seriesDefinition) {
+        return partitioning(seriesDefinition) == Partitioning.shared;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitioningPolicy{" +
+                "distances=" + distances +
+                ", series=" + series +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private PartitioningPolicy instance = new PartitioningPolicy();
+
+        private Builder() {
+            for (MeasurementDistance distance : MeasurementDistance.values())
+                instance.distances.put(distance, distance == MeasurementDistance.years ? Partitioning.none : Partitioning.years);
+        }
+
+        public Builder distance(MeasurementDistance distance, Partitioning partitioning) {
+            validate(distance, partitioning);
+            instance.distances.put(distance, partitioning);
+            return this;
+        }
+
+        public Builder series(TimeSeriesDefinition seriesDefinition, Partitioning partitioning) {
+            validate(seriesDefinition.getDistance(), partitioning);
+            instance.series.put(seriesDefinition, partitioning);
+            return this;
+        }
+
+        /**
+         * @param entry the partitioning of a series on the form <code>owner@name@distance=partitioning</code>
+         */
+        public Builder series(String entry) {
+            String[] parts = entry.trim().split("[@=]");
+            if (parts.length != 4)
+                throw new IllegalArgumentException("Invalid series partitioning \"" + entry + "\". Expected owner@name@distance=partitioning");
+            return series(
+                    TimeSeriesDefinition.builder().name(parts[1]).distance(MeasurementDistance.valueOf(parts[2])).owner(parts[0]),
+                    Partitioning.valueOf(parts[3])
+            );
+        }
+
+        public PartitioningPolicy build() {
+            return instance;
+        }
+
+        private static void validate(MeasurementDistance distance, Partitioning partitioning) {
+            if (partitioning.unit().getDuration().compareTo(chronoUnit(distance).getDuration()) < 0)
+                throw new IllegalArgumentException(format("Partitioning %s is finer than distance %s", partitioning, distance));
+        }
+
+    }
+
+}
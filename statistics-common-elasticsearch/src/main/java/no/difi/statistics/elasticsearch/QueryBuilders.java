@@ -1,10 +1,16 @@
 package no.difi.statistics.elasticsearch;
 
 import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import static org.elasticsearch.search.aggregations.AggregationBuilders.composite;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
@@ -12,29 +18,27 @@ import static org.elasticsearch.search.aggregations.BucketOrder.key;
 public class QueryBuilders {
 
     private static final String timestampField = "timestamp";
+    public static final String timestampSource = "timestamp";
+    public static final String categorySource = "category";
 
     public static TermsAggregationBuilder sumPerTimestampAggregation(String name, List<String> measurementIds) {
-        return summarizeMeasurements(name, measurementIds, null);
-    }
-
-    public static TermsAggregationBuilder summarizeMeasurements(String name, List<String> measurementIds, String categoryKey) {
         return terms(name)
                 .field(timestampField)
-                .size(10_000)
                 .order(key(true))
-                .subAggregations(subAggregation(categoryKey, measurementIds));
+                .subAggregations(sumMeasurements(measurementIds));
     }
 
-    private static AggregatorFactories.Builder subAggregation(String categoryKey, List<String> measurementIds) {
-        if (categoryKey == null)
-            return sumMeasurements(measurementIds);
-        return AggregatorFactories.builder().addAggregator(
-                terms("perCategory:" + categoryKey)
-                        .field("category." + categoryKey + ".keyword")
-                        .size(10_000)
-                        .order(key(true))
-                        .subAggregations(sumMeasurements(measurementIds))
-        );
+    /**
+     * Sums of measurements per timestamp, and per value of the category key if given. Buckets are ordered on timestamp
+     * and then on category value, and are fetched a page at a time by setting the page size and the key to continue
+     * after on the returned builder. The bucket keys are named by {@link #timestampSource} and {@link #categorySource}.
+     */
+    public static CompositeAggregationBuilder summarizeMeasurements(String name, List<String> measurementIds, String categoryKey, SortOrder order) {
+        List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+        sources.add(new TermsValuesSourceBuilder(timestampSource).field(timestampField).order(order));
+        if (categoryKey != null)
+            sources.add(new TermsValuesSourceBuilder(categorySource).field("category." + categoryKey + ".keyword").order(SortOrder.ASC));
+        return composite(name, sources).subAggregations(sumMeasurements(measurementIds));
     }
 
     private static AggregatorFactories.Builder sumMeasurements(List<String> measurementIds) {
@@ -0,0 +1,59 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.time.ZonedDateTime;
+
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+
+/**
+ * Layout of the rollups maintained by ingest: sum series of coarser distances of an ingested series. A rollup is a
+ * series of its own, named after the source series and its distance, so that it is never mixed with a series of the
+ * coarser distance which is ingested directly. Rollup series are not listed as available series.
+ * <p>
+ * The coverage of each rollup is kept in an index of its own, with one document per rollup. Points at or after the
+ * boundary (epoch millis) are added to the rollup as they are ingested. The sums of earlier points are computed from
+ * the source series, for all of them once the rollup is created (the backfill) and for their periods again when more
+ * of them are ingested. A rollup is stale when an update of it failed, and must then not be read.
+ */
+public class Rollups {
+
+    public static final String indexName = "rollups";
+    public static final String indexType = "default";
+    public static final String boundaryField = "boundary";
+    public static final String backfilledField = "backfilled";
+    public static final String staleField = "stale";
+    private static final String nameSeparator = "~";
+
+    public static TimeSeriesDefinition definition(TimeSeriesDefinition source, MeasurementDistance distance) {
+        return TimeSeriesDefinition.builder()
+                .name(source.getName() + nameSeparator + source.getDistance())
+                .distance(distance)
+                .owner(source.getOwner());
+    }
+
+    public static boolean isRollup(TimeSeriesDefinition seriesDefinition) {
+        String name = seriesDefinition.getName();
+        for (MeasurementDistance distance : MeasurementDistance.values())
+            if (name.endsWith(nameSeparator + distance) && name.length() > distance.toString().length() + 1)
+                return true;
+        return false;
+    }
+
+    public static String id(TimeSeriesDefinition rollup) {
+        return SeriesStatistics.id(rollup);
+    }
+
+    /**
+     * @return the start of the first period of the rollup which only has points at or after the boundary, and is
+     * therefore complete without the backfill
+     */
+    public static ZonedDateTime liveFrom(MeasurementDistance distance, long boundary) {
+        ZonedDateTime timestamp = Timestamp.parse(boundary);
+        ZonedDateTime start = normalize(timestamp, distance);
+        return start.isEqual(timestamp) ? start : start.plus(1, chronoUnit(distance));
+    }
+
+}
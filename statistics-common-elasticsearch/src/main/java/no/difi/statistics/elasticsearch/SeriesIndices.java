@@ -0,0 +1,28 @@
+package no.difi.statistics.elasticsearch;
+
+/**
+ * Mapping of the indices of points, which are all named with the part separator of {@link IndexNameResolver}, and of
+ * no other indices. Timestamps are stored as epoch millis, so that neither ingest nor queries format or parse them.
+ * Indices created before then map the timestamp from ISO-8601 strings with the default date format, which accepts
+ * epoch millis too, so points of both kinds are searched and sorted alike. Readers of the document source must
+ * accept both (see {@link Timestamp#epochMillis(Object)}).
+ */
+public class SeriesIndices {
+
+    public static final String templateName = "series";
+    public static final String timestampField = "timestamp";
+
+    /**
+     * @return the index template of the indices of points, which maps the timestamp as a date of epoch millis, since
+     * dynamic mapping would map a number as a long
+     */
+    public static String template() {
+        return "{" +
+                "\"index_patterns\": [\"*@*\"]," +
+                "\"mappings\": {\"default\": {" +
+                "\"properties\": {" +
+                "\"" + timestampField + "\": {\"type\": \"date\", \"format\": \"strict_date_optional_time||epoch_millis\"}" +
+                "}}}}";
+    }
+
+}
@@ -0,0 +1,33 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import static java.lang.String.format;
+
+/**
+ * Where the statistics of each series are kept. They are maintained by ingest in an index of their own, with one
+ * document per series holding the first and last timestamp (epoch millis), the number of points, the measurement ids,
+ * the category keys and the names of the indices (partitions) the series has points in. It also counts the late writes,
+ * those with points before the last timestamp of the series, so that results cached for closed periods can be
+ * discarded when points are added to them.
+ * <p>
+ * Statistics are only complete once the indices the series had before its statistics were kept have been added to
+ * them, and as long as no update of them has failed. Queries must not rely on the partitions of incomplete statistics.
+ */
+public class SeriesStatistics {
+
+    public static final String indexName = "series-statistics";
+    public static final String indexType = "default";
+    public static final String completeField = "complete";
+    public static final String lateWritesField = "lateWrites";
+
+    public static String id(TimeSeriesDefinition seriesDefinition) {
+        return format(
+                "%s@%s@%s",
+                seriesDefinition.getOwner(),
+                seriesDefinition.getName(),
+                seriesDefinition.getDistance()
+        );
+    }
+
+}
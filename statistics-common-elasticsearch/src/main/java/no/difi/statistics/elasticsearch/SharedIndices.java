@@ -0,0 +1,65 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+
+/**
+ * Layout of the series partitioned as {@link Partitioning#shared}, which share one index per distance and year instead
+ * of having indices of their own. Their documents carry the owner, name and distance of the series in keyword fields,
+ * and are routed by the series key so that each series is kept on one shard. Searches must use the same routing and
+ * filter on the series.
+ */
+public class SharedIndices {
+
+    public static final String prefix = "shared";
+    public static final String templateName = "shared-series";
+    public static final String ownerField = "owner";
+    public static final String seriesField = "series";
+    public static final String distanceField = "distance";
+
+    public static boolean isShared(String indexName) {
+        return indexName.startsWith(prefix + "@");
+    }
+
+    public static boolean isReservedField(String field) {
+        return field.equals(ownerField) || field.equals(seriesField) || field.equals(distanceField);
+    }
+
+    public static String routing(TimeSeriesDefinition seriesDefinition) {
+        return SeriesStatistics.id(seriesDefinition);
+    }
+
+    /**
+     * @return the id of the point, made unique among the series of the shared index by the series key
+     */
+    public static String id(TimeSeriesPoint point, TimeSeriesDefinition seriesDefinition, IdResolver idResolver) {
+        return routing(seriesDefinition) + "@" + idResolver.resolve(point, seriesDefinition);
+    }
+
+    public static BoolQueryBuilder seriesFilter(TimeSeriesDefinition seriesDefinition) {
+        return boolQuery()
+                .filter(termQuery(ownerField, seriesDefinition.getOwner()))
+                .filter(termQuery(seriesField, seriesDefinition.getName()))
+                .filter(termQuery(distanceField, seriesDefinition.getDistance().toString()));
+    }
+
+    /**
+     * @return the index template of the shared indices, which maps the series fields as keywords and requires routing
+     */
+    public static String template() {
+        return "{" +
+                "\"index_patterns\": [\"" + prefix + "@*\"]," +
+                "\"mappings\": {\"default\": {" +
+                "\"_routing\": {\"required\": true}," +
+                "\"properties\": {" +
+                "\"" + ownerField + "\": {\"type\": \"keyword\"}," +
+                "\"" + seriesField + "\": {\"type\": \"keyword\"}," +
+                "\"" + distanceField + "\": {\"type\": \"keyword\"}" +
+                "}}}}";
+    }
+
+}
@@ -1,7 +1,9 @@
 package no.difi.statistics.elasticsearch;
 
 import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimestampCodec;
 
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
@@ -22,9 +24,26 @@ public class Timestamp {
     }
 
     public static ZonedDateTime parse(String value) {
+        // UTC with at most millis, as points were stored, gives the same result through epoch millis
+        if (value.length() <= TimestampCodec.maxLength && value.endsWith("Z"))
+            return parse(TimestampCodec.decode(value));
         return ZonedDateTime.parse(value, dateTimeFormatter);
     }
 
+    public static ZonedDateTime parse(long epochMillis) {
+        return Instant.ofEpochMilli(epochMillis).atZone(UTC);
+    }
+
+    /**
+     * @return the epoch millis of the timestamp field of a document source, which is a number, or a string in
+     * documents stored before timestamps were stored as epoch millis
+     */
+    public static long epochMillis(Object sourceValue) {
+        if (sourceValue instanceof Number)
+            return ((Number) sourceValue).longValue();
+        return TimestampCodec.decode(sourceValue.toString());
+    }
+
     public static ZonedDateTime truncatedTimestamp(ZonedDateTime timestamp, ChronoUnit toUnit) {
         switch (toUnit) {
             case YEARS:
@@ -45,7 +64,22 @@ public class Timestamp {
         return truncatedTimestamp(timestamp, distance).withZoneSameInstant(UTC);
     }
 
-    private static ChronoUnit chronoUnit(MeasurementDistance distance) {
+    /**
+     * @return the normalized timestamp as epoch millis, computed without intermediate objects for UTC timestamps of
+     * minutes, hours and days
+     */
+    public static long normalizedEpochMillis(ZonedDateTime timestamp, MeasurementDistance distance) {
+        if (UTC.equals(timestamp.getZone())) {
+            switch (distance) {
+                case minutes: return Math.floorDiv(timestamp.toEpochSecond(), 60) * 60_000;
+                case hours: return Math.floorDiv(timestamp.toEpochSecond(), 3600) * 3600_000;
+                case days: return Math.floorDiv(timestamp.toEpochSecond(), 86400) * 86400_000;
+            }
+        }
+        return normalize(timestamp, distance).toInstant().toEpochMilli();
+    }
+
+    public static ChronoUnit chronoUnit(MeasurementDistance distance) {
         switch (distance) {
             case minutes: return MINUTES;
             case hours: return HOURS;
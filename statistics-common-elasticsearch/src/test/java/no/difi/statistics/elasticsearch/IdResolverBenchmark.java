@@ -0,0 +1,78 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZoneOffset.UTC;
+import static no.difi.statistics.model.TimeSeriesDefinition.builder;
+
+/**
+ * Compares the id schemes of {@link IdResolver} on points like those of a bulk ingest. Run with
+ * <code>mvn test-compile exec:java -Dexec.mainClass=no.difi.statistics.elasticsearch.IdResolverBenchmark
+ * -Dexec.classpathScope=test</code> in this module, and run with <code>-prof gc</code> to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdResolverBenchmark {
+
+    @Param({"0", "1", "3"})
+    public int categories;
+    private final TimeSeriesDefinition seriesDefinition = builder().name("series").minutes().owner("991825827");
+    private final IdResolver md5 = IdResolver.md5();
+    private final IdResolver murmur3 = IdResolver.murmur3From(ZonedDateTime.of(2000, 1, 1, 0, 0, 0, 0, UTC));
+    private TimeSeriesPoint[] points;
+
+    @Setup
+    public void setup() {
+        points = new TimeSeriesPoint[1024];
+        ZonedDateTime timestamp = ZonedDateTime.of(2018, 3, 22, 0, 0, 0, 0, UTC);
+        for (int i = 0; i < points.length; i++) {
+            TimeSeriesPoint.Builder point = TimeSeriesPoint.builder().timestamp(timestamp.plusMinutes(i)).measurement("count", i);
+            for (int c = 0; c < categories; c++)
+                point.category("category" + c, "value" + (i % 7));
+            points[i] = point.build();
+        }
+    }
+
+    @Benchmark
+    public int md5() {
+        int hash = 0;
+        for (TimeSeriesPoint point : points)
+            hash += md5.resolve(point, seriesDefinition).hashCode();
+        return hash;
+    }
+
+    @Benchmark
+    public int murmur3() {
+        int hash = 0;
+        for (TimeSeriesPoint point : points)
+            hash += murmur3.resolve(point, seriesDefinition).hashCode();
+        return hash;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IdResolverBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,68 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+import static java.time.ZoneOffset.UTC;
+import static no.difi.statistics.model.TimeSeriesDefinition.builder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdResolverTest {
+
+    private final TimeSeriesDefinition seriesDefinition = builder().name("test").minutes().owner("owner");
+    private final ZonedDateTime timestamp = ZonedDateTime.of(2018, 3, 22, 10, 23, 0, 0, UTC);
+    private final IdResolver murmur3 = IdResolver.murmur3From(timestamp);
+
+    @Test
+    public void givenMd5SchemeWhenResolvingThenIdIsNameUUIDOfTimestampAndSortedCategories() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp.plusSeconds(17))
+                .category("b", "2").category("a", "1").measurement("m", 1L).build();
+        String expected = UUID.nameUUIDFromBytes("2018-03-22T10:23Za=1&b=2".getBytes(StandardCharsets.UTF_8)).toString();
+        assertEquals(expected, IdResolver.md5().resolve(point, seriesDefinition));
+        assertEquals(expected, IdResolver.id(point, seriesDefinition));
+    }
+
+    @Test
+    public void givenPointBeforeCutOverWhenResolvingThenIdIsOfMd5Scheme() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp.minusMinutes(1)).measurement("m", 1L).build();
+        assertEquals(IdResolver.id(point, seriesDefinition), murmur3.resolve(point, seriesDefinition));
+    }
+
+    @Test
+    public void givenPointFromCutOverWhenResolvingThenIdIsCompactAndUrlSafe() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp).category("a", "æøå").measurement("m", 1L).build();
+        String id = murmur3.resolve(point, seriesDefinition);
+        assertEquals(22, id.length());
+        assertTrue(id, id.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void givenSamePointInOtherZoneAndCategoryOrderWhenResolvingThenIdIsTheSame() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp.plusSeconds(17))
+                .category("a", "1").category("b", "2").measurement("m", 1L).build();
+        TimeSeriesPoint samePoint = TimeSeriesPoint.builder().timestamp(timestamp.withZoneSameInstant(ZoneId.of("Europe/Oslo")))
+                .category("b", "2").category("a", "1").measurement("m", 2L).build();
+        assertEquals(murmur3.resolve(point, seriesDefinition), murmur3.resolve(samePoint, seriesDefinition));
+    }
+
+    @Test
+    public void givenPointsWithDifferentTimestampsOrCategoriesWhenResolvingThenIdsDiffer() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp).category("a", "1").measurement("m", 1L).build();
+        TimeSeriesPoint laterPoint = TimeSeriesPoint.builder().timestamp(timestamp.plusMinutes(1)).category("a", "1").measurement("m", 1L).build();
+        TimeSeriesPoint otherPoint = TimeSeriesPoint.builder().timestamp(timestamp).category("a", "2").measurement("m", 1L).build();
+        TimeSeriesPoint pointWithoutCategories = TimeSeriesPoint.builder().timestamp(timestamp).measurement("m", 1L).build();
+        String id = murmur3.resolve(point, seriesDefinition);
+        assertNotEquals(id, murmur3.resolve(laterPoint, seriesDefinition));
+        assertNotEquals(id, murmur3.resolve(otherPoint, seriesDefinition));
+        assertNotEquals(id, murmur3.resolve(pointWithoutCategories, seriesDefinition));
+    }
+
+}
@@ -10,9 +10,14 @@ import java.util.List;
 
 import static java.time.ZoneOffset.UTC;
 import static java.time.ZonedDateTime.now;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static no.difi.statistics.model.MeasurementDistance.months;
 import static no.difi.statistics.model.TimeSeriesDefinition.builder;
 import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 public class IndexNameResolverTest {
@@ -48,6 +53,96 @@ public class IndexNameResolverTest {
         assertThat(indexNames, contains("owner@test@month2014", "owner@test@month2015", "owner@test@month2016"));
     }
 
+    @Test
+    public void givenKnownPartitionsWhenResolvingOpenRangeThenResultIsTheKnownPartitionsAndThoseAfter() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(null, timestamp(2016, 6, 30)))
+                .list(asList("owner@test@minute2012", "owner@test@minute2014", "owner@test@hour2014", "owner@other@minute2015"));
+        assertThat(indexNames, contains("owner@test@minute2012", "owner@test@minute2014", "owner@test@minute2015", "owner@test@minute2016"));
+    }
+
+    @Test
+    public void givenKnownPartitionsWhenResolvingRangeThenOnlyOverlappingPartitionsAreIncluded() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2013, 2, 1), timestamp(2014, 6, 30)))
+                .list(asList("owner@test@minute2012", "owner@test@minute2014", "owner@test@minute2016"));
+        assertThat(indexNames, contains("owner@test@minute2014"));
+    }
+
+    @Test
+    public void givenKnownPartitionsNotOverlappingRangeWhenResolvingThenResultIsOneNameWithYear() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2013, 2, 1), timestamp(2013, 6, 30)))
+                .list(asList("owner@test@minute2012", "owner@test@minute2014"));
+        assertThat(indexNames, contains("owner@test@minute2013"));
+    }
+
+    @Test
+    public void givenNoKnownPartitionsWhenResolvingThenResultIsAsWithoutPartitions() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(builder().name("test").months().owner("owner"))
+                .range(new TimeRange(timestamp(2014, 1, 22), timestamp(2016, 6, 30))).list(emptyList());
+        assertThat(indexNames, contains("owner@test@month2014", "owner@test@month2015", "owner@test@month2016"));
+    }
+
+    @Test
+    public void givenMonthlyPartitioningWhenResolvingThenResultIsOneNamePerMonth() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().distance(minutes, Partitioning.months).build();
+        List<String> indexNames = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2016, 11, 22), timestamp(2017, 1, 3))).list();
+        assertThat(indexNames, contains("owner@test@minute2016.11", "owner@test@minute2016.12", "owner@test@minute2017.01"));
+    }
+
+    @Test
+    public void givenDailyPartitioningWhenResolvingSingleThenNameHasDate() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().distance(minutes, Partitioning.days).build();
+        String indexName = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .at(timestamp(2016, 3, 22, 1, 23)).single();
+        assertEquals("owner@test@minute2016.03.22", indexName);
+    }
+
+    @Test
+    public void givenNoPartitioningForSeriesWhenResolvingThenResultIsOneNameWithoutDate() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().series("owner@test@minutes=none").build();
+        List<String> indexNames = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2014, 1, 22), timestamp(2016, 6, 30))).list();
+        assertThat(indexNames, contains("owner@test@minute"));
+        indexNames = resolveIndexName(policy).seriesDefinition(builder().name("other").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2016, 1, 22), timestamp(2016, 6, 30))).list();
+        assertThat(indexNames, contains("owner@other@minute2016"));
+    }
+
+    @Test
+    public void givenPartitioningChangedFromYearlyToMonthlyWhenResolvingWithKnownPartitionsThenBothAreIncluded() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().distance(minutes, Partitioning.months).build();
+        List<String> indexNames = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2016, 6, 1), timestamp(2017, 2, 15)))
+                .list(asList("owner@test@minute2015", "owner@test@minute2016", "owner@test@minute2017.01"));
+        assertThat(indexNames, contains("owner@test@minute2016", "owner@test@minute2017.01", "owner@test@minute2017.02"));
+    }
+
+    @Test
+    public void givenSharedPartitioningWhenResolvingThenResultIsSharedIndexPerYear() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().series("owner@test@minutes=shared").build();
+        List<String> indexNames = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2015, 11, 22), timestamp(2016, 1, 3))).list();
+        assertThat(indexNames, contains("shared@minute2015", "shared@minute2016"));
+    }
+
+    @Test
+    public void givenSharedPartitioningWhenResolvingWithKnownPartitionsThenOnlySharedIndicesAreIncluded() {
+        PartitioningPolicy policy = PartitioningPolicy.builder().series("owner@test@minutes=shared").build();
+        List<String> indexNames = resolveIndexName(policy).seriesDefinition(builder().name("test").minutes().owner("owner"))
+                .range(new TimeRange(timestamp(2015, 2, 1), timestamp(2016, 6, 30)))
+                .list(asList("owner@test@minute2015", "shared@minute2016", "shared@hour2016"));
+        assertThat(indexNames, contains("shared@minute2016"));
+    }
+
+    @Test
+    public void givenPartitioningFinerThanDistanceWhenBuildingPolicyThenFail() {
+        expectedException.expect(IllegalArgumentException.class);
+        PartitioningPolicy.builder().distance(months, Partitioning.days);
+    }
+
     private ZonedDateTime timestamp(int year, int month, int day) {
         return ZonedDateTime.of(year, month, day, 0, 0, 0, 0, UTC);
     }
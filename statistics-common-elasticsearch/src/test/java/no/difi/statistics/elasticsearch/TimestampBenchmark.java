@@ -0,0 +1,98 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.model.TimestampCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Compares ways of getting the timestamps of the points of a response of 100 000 buckets: parsing the string keys as
+ * the queries used to, decoding them with {@link TimestampCodec}, and reading the numeric keys as epoch millis. Run
+ * with <code>mvn test-compile exec:java -Dexec.mainClass=no.difi.statistics.elasticsearch.TimestampBenchmark
+ * -Dexec.classpathScope=test</code> in this module, and run with <code>-prof gc</code> to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+
+    private static final int buckets = 100_000;
+    private long[] keys;
+    private String[] keysAsStrings;
+
+    @Setup
+    public void setup() {
+        keys = new long[buckets];
+        keysAsStrings = new String[buckets];
+        ZonedDateTime timestamp = ZonedDateTime.of(2018, 3, 22, 0, 0, 0, 0, UTC);
+        for (int i = 0; i < buckets; i++) {
+            keys[i] = timestamp.plusMinutes(i).toInstant().toEpochMilli();
+            keysAsStrings[i] = DateTimeFormatter.ISO_INSTANT.format(timestamp.plusMinutes(i));
+        }
+    }
+
+    @Benchmark
+    public long isoOffsetDateTimeParse() {
+        long sum = 0;
+        for (String key : keysAsStrings)
+            sum += point(ZonedDateTime.parse(key, DateTimeFormatter.ISO_OFFSET_DATE_TIME)).getEpochMillis();
+        return sum;
+    }
+
+    @Benchmark
+    public long codecDecode() {
+        long sum = 0;
+        for (String key : keysAsStrings)
+            sum += point(TimestampCodec.decode(key)).getEpochMillis();
+        return sum;
+    }
+
+    @Benchmark
+    public long numericKey() {
+        long sum = 0;
+        for (long key : keys)
+            sum += point(key).getEpochMillis();
+        return sum;
+    }
+
+    @Benchmark
+    public long numericKeyAsZonedDateTime() {
+        long sum = 0;
+        for (long key : keys)
+            sum += point(Timestamp.parse(key)).getEpochMillis();
+        return sum;
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("count", 1).build();
+    }
+
+    private static TimeSeriesPoint point(long epochMillis) {
+        return TimeSeriesPoint.builder().timestamp(epochMillis).measurement("count", 1).build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TimestampBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
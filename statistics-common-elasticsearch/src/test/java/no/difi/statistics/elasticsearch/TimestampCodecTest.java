@@ -0,0 +1,71 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimestampCodec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import static java.time.ZoneOffset.UTC;
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TimestampCodecTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void whenEncodingThenResultIsAsIsoOffsetDateTimeInUtc() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            long epochMillis = random.nextLong() % (300L * 365 * 86400_000);
+            if (i % 2 == 0)
+                epochMillis -= Math.floorMod(epochMillis, 60_000); // Most points are on whole minutes
+            assertEquals(ISO_OFFSET_DATE_TIME.format(Timestamp.parse(epochMillis)), TimestampCodec.encode(epochMillis));
+        }
+    }
+
+    @Test
+    public void givenYearOfFiveDigitsWhenEncodingThenResultIsAsIsoOffsetDateTime() {
+        long epochMillis = ZonedDateTime.of(10000, 1, 1, 0, 0, 0, 0, UTC).toInstant().toEpochMilli();
+        assertEquals("+10000-01-01T00:00:00Z", TimestampCodec.encode(epochMillis));
+        assertEquals(-1, TimestampCodec.encode(epochMillis, new byte[TimestampCodec.maxLength], 0));
+    }
+
+    @Test
+    public void whenDecodingThenResultIsAsIsoOffsetDateTime() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            ZonedDateTime timestamp = Timestamp.parse(random.nextLong() % (300L * 365 * 86400_000))
+                    .withZoneSameInstant(ZoneOffset.ofTotalSeconds((random.nextInt(37) - 18) * 1800));
+            String value = ISO_OFFSET_DATE_TIME.format(timestamp);
+            assertEquals(value, timestamp.toInstant().toEpochMilli(), TimestampCodec.decode(value));
+        }
+    }
+
+    @Test
+    public void givenUncommonFormsWhenDecodingThenResultIsAsIsoOffsetDateTime() {
+        for (String value : new String[]{"2016-03-03T00:00:00.123456789Z", "2016-03-03t00:00z", "+10000-01-01T00:00Z", "2016-03-03T00:00+01:00:30"})
+            assertEquals(value, ZonedDateTime.parse(value, ISO_OFFSET_DATE_TIME).toInstant().toEpochMilli(), TimestampCodec.decode(value));
+    }
+
+    @Test
+    public void givenStoredTimestampWhenParsingThenResultIsAsIsoOffsetDateTime() {
+        ZonedDateTime timestamp = Timestamp.parse("2016-03-03T10:23Z");
+        assertEquals(ZonedDateTime.parse("2016-03-03T10:23Z", ISO_OFFSET_DATE_TIME), timestamp);
+        assertSame(UTC, timestamp.getZone());
+    }
+
+    @Test
+    public void givenInvalidDateWhenDecodingThenFail() {
+        expectedException.expect(DateTimeParseException.class);
+        TimestampCodec.decode("2015-02-29T00:00Z");
+    }
+
+}
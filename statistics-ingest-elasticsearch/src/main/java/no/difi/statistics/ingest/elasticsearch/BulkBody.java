@@ -0,0 +1,218 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The NDJSON body of a bulk request, written as UTF-8 straight into a byte buffer. Bodies are taken from and returned
+ * to the pool of a {@link BulkPipeline}, so the buffer is reused between requests and writing a point allocates
+ * nothing but its id and index name. Documents are flat objects of string and long fields, which is all a point needs.
+ */
+public class BulkBody {
+
+    private static final byte[] createPrefix = ascii("{\"create\":{\"_index\":");
+    private static final byte[] typeField = ascii(",\"_type\":");
+    private static final byte[] idField = ascii(",\"_id\":");
+    private static final byte[] routingField = ascii(",\"routing\":");
+    private static final byte[] hex = ascii("0123456789abcdef");
+
+    private byte[] bytes;
+    private int length;
+    private int actions;
+    private boolean firstField;
+
+    BulkBody(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * Add a create action, which must be followed by a document.
+     */
+    public BulkBody create(String index, String type, String id, String routing) {
+        write(createPrefix);
+        string(index);
+        write(typeField);
+        string(type);
+        write(idField);
+        string(id);
+        if (routing != null) {
+            write(routingField);
+            string(routing);
+        }
+        write((byte) '}');
+        write((byte) '}');
+        write((byte) '\n');
+        actions++;
+        return this;
+    }
+
+    public BulkBody startDocument() {
+        write((byte) '{');
+        firstField = true;
+        return this;
+    }
+
+    public BulkBody field(String name, String value) {
+        return field(null, name, value);
+    }
+
+    /**
+     * Add a field named by the prefix followed by the name, without concatenating them first.
+     */
+    public BulkBody field(String prefix, String name, String value) {
+        name(prefix, name);
+        string(value);
+        return this;
+    }
+
+    public BulkBody field(String name, long value) {
+        name(null, name);
+        number(value);
+        return this;
+    }
+
+    public BulkBody endDocument() {
+        write((byte) '}');
+        write((byte) '\n');
+        return this;
+    }
+
+    public int actions() {
+        return actions;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    void append(BulkBody other) {
+        ensureCapacity(other.length);
+        System.arraycopy(other.bytes, 0, bytes, length, other.length);
+        length += other.length;
+        actions += other.actions;
+    }
+
+    void clear() {
+        length = 0;
+        actions = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    private void name(String prefix, String name) {
+        if (!firstField)
+            write((byte) ',');
+        firstField = false;
+        write((byte) '"');
+        if (prefix != null)
+            chars(prefix);
+        chars(name);
+        write((byte) '"');
+        write((byte) ':');
+    }
+
+    private void string(String value) {
+        write((byte) '"');
+        chars(value);
+        write((byte) '"');
+    }
+
+    /**
+     * Write the characters of a JSON string, escaped and encoded as UTF-8.
+     */
+    private void chars(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII: encode the rest of the string properly
+                encoded(value.substring(i));
+                return;
+            }
+            if (c == '"' || c == '\\') {
+                write((byte) '\\');
+                write((byte) c);
+            } else if (c < 0x20) {
+                escaped(c);
+            } else {
+                write((byte) c);
+            }
+        }
+    }
+
+    private void encoded(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                escaped.append('\\').append(c);
+            else if (c < 0x20)
+                escaped.append(String.format("\\u%04x", (int) c));
+            else
+                escaped.append(c);
+        }
+        write(escaped.toString().getBytes(UTF_8));
+    }
+
+    private void escaped(char c) {
+        write((byte) '\\');
+        write((byte) 'u');
+        write((byte) '0');
+        write((byte) '0');
+        write(hex[c >> 4]);
+        write(hex[c & 0xf]);
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(ascii(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            digits++;
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void write(byte value) {
+        ensureCapacity(1);
+        bytes[length++] = value;
+    }
+
+    private void write(byte[] values) {
+        ensureCapacity(values.length);
+        System.arraycopy(values, 0, bytes, length, values.length);
+        length += values.length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+}
@@ -0,0 +1,349 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Merges write requests from concurrent callers into size- and time-bounded bulk requests, in the manner of
+ * Elasticsearch's <code>BulkProcessor</code>. Unlike the latter, every caller gets back the items of the merged bulk
+ * response belonging to its own requests, in the order they were submitted.
+ * <p>
+ * A bulk is sent when it holds <code>maxActions</code> requests or <code>maxBytes</code> bytes, or when
+ * <code>flushInterval</code> has passed since its first request was queued. At most <code>concurrentRequests</code>
+ * bulks are in flight at any time. Closing the pipeline sends everything queued and waits for in-flight bulks.
+ * Callers should wait at most {@link #timeout()} for their items, and the futures of requests which could not be sent
+ * are completed exceptionally.
+ * <p>
+ * Besides write requests, the pipeline takes {@link BulkBody bulk bodies} already encoded by the caller, which are
+ * sent through the low-level client without being serialized again. Bodies and requests are never merged into the
+ * same bulk. The buffers of bodies are pooled, and are returned to the pool when their bulk has completed.
+ */
+public class BulkPipeline implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final RestHighLevelClient client;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long flushIntervalNanos;
+    private final int concurrentRequests;
+    private final Duration timeout;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Slice> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<BulkBody> bodies = new ConcurrentLinkedQueue<>();
+    private final ContentType ndjson = ContentType.create("application/x-ndjson");
+    private Slice carried; // Taken from the queue by the worker, but of another kind than the bulk it was collecting
+    private final Object lock = new Object();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    public BulkPipeline(RestHighLevelClient client, int maxActions, long maxBytes, Duration flushInterval, int concurrentRequests, Duration timeout) {
+        if (maxActions < 1) throw new IllegalArgumentException("maxActions must be positive");
+        if (concurrentRequests < 1) throw new IllegalArgumentException("concurrentRequests must be positive");
+        this.client = client;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.concurrentRequests = concurrentRequests;
+        this.timeout = timeout;
+        this.inFlight = new Semaphore(concurrentRequests);
+        this.worker = new Thread(this::run, "bulk-pipeline");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * @return how long callers should wait for the items of what they submit
+     */
+    public Duration timeout() {
+        return timeout;
+    }
+
+    /**
+     * Queue requests for the next bulk. The returned future completes with one item per request, in the order given.
+     */
+    public CompletableFuture<List<BulkItemResponse>> submit(List<? extends DocWriteRequest<?>> requests) {
+        if (requests.isEmpty())
+            return CompletableFuture.completedFuture(emptyList());
+        return enqueue(new Slice(requests, null));
+    }
+
+    /**
+     * @return an empty body from the pool, which must be given to {@link #submit(BulkBody)} or {@link #release(BulkBody)}
+     */
+    public BulkBody body() {
+        BulkBody body = bodies.poll();
+        return body != null ? body : new BulkBody((int) Math.min(maxBytes, 1 << 20));
+    }
+
+    /**
+     * Queue an encoded body for the next bulk, which then owns it. The returned future completes with one item per
+     * action of the body, in the order written.
+     */
+    public CompletableFuture<List<BulkItemResponse>> submit(BulkBody body) {
+        if (body.actions() == 0) {
+            release(body);
+            return CompletableFuture.completedFuture(emptyList());
+        }
+        try {
+            return enqueue(new Slice(null, body));
+        } catch (RuntimeException e) {
+            release(body);
+            throw e;
+        }
+    }
+
+    /**
+     * Return a body to the pool without sending it. Bodies grown far beyond the bulk size are left to the garbage
+     * collector, as are bodies beyond what the in-flight bulks can use.
+     */
+    public void release(BulkBody body) {
+        body.clear();
+        if (body.capacity() <= 2 * maxBytes && bodies.size() < 2 * concurrentRequests)
+            bodies.offer(body);
+    }
+
+    private CompletableFuture<List<BulkItemResponse>> enqueue(Slice slice) {
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("Bulk pipeline is closed");
+            queue.add(slice);
+        }
+        return slice.result;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (lock) {
+            closed = true;
+        }
+        worker.join();
+        inFlight.acquire(concurrentRequests); // Wait for in-flight bulks to complete
+        inFlight.release(concurrentRequests);
+    }
+
+    private void run() {
+        while (!closed || !queue.isEmpty() || carried != null) {
+            Batch batch = new Batch();
+            try {
+                Slice first = carried != null ? carried : queue.poll(MILLISECONDS.convert(flushIntervalNanos, NANOSECONDS) + 1, MILLISECONDS);
+                carried = null;
+                if (first != null) {
+                    collect(batch, first);
+                    send(batch);
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Bulk pipeline interrupted. Sending what is queued before stopping.");
+                closed = true;
+                fail(batch, e);
+            } catch (RuntimeException e) {
+                logger.error("Bulk pipeline failed to send bulk", e);
+                fail(batch, e);
+            }
+        }
+    }
+
+    /**
+     * Fail the slices which were taken from the queue, but not handed to the client. Slices already completed by a
+     * response are not affected.
+     */
+    private static void fail(Batch batch, Exception e) {
+        batch.slices.forEach(slice -> slice.result.completeExceptionally(e));
+    }
+
+    private void collect(Batch batch, Slice first) throws InterruptedException {
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        Slice slice = first;
+        while (slice != null) {
+            if (!batch.accepts(slice)) {
+                carried = slice;
+                break;
+            }
+            batch.add(slice);
+            if (batch.actions >= maxActions || batch.bytes >= maxBytes)
+                break;
+            long remaining = deadline - System.nanoTime();
+            if (closed)
+                slice = queue.poll();
+            else
+                slice = remaining > 0 ? queue.poll(remaining, NANOSECONDS) : queue.poll();
+        }
+    }
+
+    private void send(Batch batch) throws InterruptedException {
+        if (batch.encoded()) {
+            sendEncoded(batch);
+            return;
+        }
+        List<Slice> slices = batch.slices;
+        inFlight.acquire();
+        try {
+            client.bulkAsync(batch.bulk, new ActionListener<BulkResponse>() {
+
+                @Override
+                public void onResponse(BulkResponse response) {
+                    inFlight.release();
+                    complete(slices, response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    inFlight.release();
+                    slices.forEach(slice -> slice.result.completeExceptionally(e));
+                }
+
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            slices.forEach(slice -> slice.result.completeExceptionally(e));
+        }
+    }
+
+    private void sendEncoded(Batch batch) throws InterruptedException {
+        List<Slice> slices = batch.slices;
+        BulkBody body = slices.size() == 1 ? slices.get(0).body : merge(slices);
+        inFlight.acquire();
+        try {
+            client.getLowLevelClient().performRequestAsync(
+                    "POST",
+                    "/_bulk",
+                    emptyMap(),
+                    new ByteArrayEntity(body.bytes(), 0, body.length(), ndjson),
+                    new ResponseListener() {
+
+                        @Override
+                        public void onSuccess(Response response) {
+                            inFlight.release();
+                            try {
+                                complete(slices, parse(response));
+                            } catch (IOException | RuntimeException e) {
+                                slices.forEach(slice -> slice.result.completeExceptionally(e));
+                            } finally {
+                                release(slices, body);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            inFlight.release();
+                            slices.forEach(slice -> slice.result.completeExceptionally(e));
+                            release(slices, body);
+                        }
+
+                    }
+            );
+        } catch (RuntimeException e) {
+            inFlight.release();
+            slices.forEach(slice -> slice.result.completeExceptionally(e));
+            release(slices, body);
+        }
+    }
+
+    /**
+     * @return a body holding the actions of all the slices. The bodies of the slices are kept until the bulk has
+     * completed, and released with the merged body by {@link #release(List, BulkBody)}.
+     */
+    private BulkBody merge(List<Slice> slices) {
+        BulkBody merged = body();
+        for (Slice slice : slices)
+            merged.append(slice.body);
+        return merged;
+    }
+
+    private void release(List<Slice> slices, BulkBody sent) {
+        for (Slice slice : slices)
+            if (slice.body != sent)
+                release(slice.body);
+        release(sent);
+    }
+
+    private static BulkResponse parse(Response response) throws IOException {
+        try (InputStream content = response.getEntity().getContent();
+             XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, LoggingDeprecationHandler.INSTANCE, content)) {
+            return BulkResponse.fromXContent(parser);
+        }
+    }
+
+    private static void complete(List<Slice> slices, BulkResponse response) {
+        List<BulkItemResponse> items = asList(response.getItems());
+        int offset = 0;
+        for (Slice slice : slices) {
+            slice.result.complete(items.subList(offset, offset + slice.actions));
+            offset += slice.actions;
+        }
+    }
+
+    private static class Batch {
+
+        private final List<Slice> slices = new ArrayList<>();
+        private final BulkRequest bulk = new BulkRequest();
+        private int actions;
+        private long bytes;
+
+        boolean accepts(Slice slice) {
+            return slices.isEmpty() || (slice.body != null) == encoded();
+        }
+
+        boolean encoded() {
+            return !slices.isEmpty() && slices.get(0).body != null;
+        }
+
+        void add(Slice slice) {
+            slices.add(slice);
+            if (slice.body != null) {
+                actions += slice.actions;
+                bytes += slice.body.length();
+            } else {
+                slice.requests.forEach(bulk::add);
+                actions = bulk.numberOfActions();
+                bytes = bulk.estimatedSizeInBytes();
+            }
+        }
+
+    }
+
+    private static class Slice {
+
+        private final List<? extends DocWriteRequest<?>> requests;
+        private final BulkBody body;
+        private final int actions; // Counted on submit, since bodies are cleared when released
+        private final CompletableFuture<List<BulkItemResponse>> result = new CompletableFuture<>();
+
+        Slice(List<? extends DocWriteRequest<?>> requests, BulkBody body) {
+            this.requests = requests;
+            this.body = body;
+            this.actions = body != null ? body.actions() : requests.size();
+        }
+
+    }
+
+}
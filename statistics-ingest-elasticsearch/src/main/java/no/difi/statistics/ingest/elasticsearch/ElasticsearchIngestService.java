@@ -1,30 +1,43 @@
 package no.difi.statistics.ingest.elasticsearch;
 
+import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.LatestPoints;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.elasticsearch.SharedIndices;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.ingest.IngestService;
 import no.difi.statistics.ingest.api.IngestResponse;
-import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
-import static no.difi.statistics.elasticsearch.IdResolver.id;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
@@ -33,46 +46,163 @@ import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
 public class ElasticsearchIngestService implements IngestService {
 
     private final RestHighLevelClient client;
+    private final BulkPipeline bulkPipeline;
+    private final RollupEngine rollupEngine;
+    private final SeriesStatisticsRegistry seriesStatisticsRegistry;
+    private final LatestPointRegistry latestPointRegistry;
+    private final SecondaryWrites secondaryWrites;
+    private final PartitioningPolicy partitioningPolicy;
+    private final IndexTemplate seriesIndexTemplate;
+    private final IndexTemplate sharedIndexTemplate;
+    private final IdResolver idResolver;
+    private final SeriesWatermarks seriesWatermarks;
+    private final boolean appendOnly;
     private static final String timeFieldName = "timestamp";
     private static final String indexType = "default";
+    private static final String categoryPrefix = "category.";
 
-    public ElasticsearchIngestService(RestHighLevelClient client) {
+    public ElasticsearchIngestService(
+            RestHighLevelClient client,
+            BulkPipeline bulkPipeline,
+            RollupEngine rollupEngine,
+            SeriesStatisticsRegistry seriesStatisticsRegistry,
+            LatestPointRegistry latestPointRegistry,
+            SecondaryWrites secondaryWrites,
+            PartitioningPolicy partitioningPolicy,
+            IndexTemplate seriesIndexTemplate,
+            IndexTemplate sharedIndexTemplate,
+            IdResolver idResolver,
+            SeriesWatermarks seriesWatermarks,
+            boolean appendOnly
+    ) {
         this.client = client;
+        this.bulkPipeline = bulkPipeline;
+        this.rollupEngine = rollupEngine;
+        this.seriesStatisticsRegistry = seriesStatisticsRegistry;
+        this.latestPointRegistry = latestPointRegistry;
+        this.secondaryWrites = secondaryWrites;
+        this.partitioningPolicy = partitioningPolicy;
+        this.seriesIndexTemplate = seriesIndexTemplate;
+        this.sharedIndexTemplate = sharedIndexTemplate;
+        this.idResolver = idResolver;
+        this.seriesWatermarks = seriesWatermarks;
+        this.appendOnly = appendOnly;
     }
 
+    /**
+     * In append-only mode, points at or before the latest point of the series are rejected as conflicts without being
+     * sent to Elasticsearch. Points with the timestamp of the latest point must then be sent together, even if they
+     * have different categories.
+     * <p>
+     * The response is given once the points are written. The rollups, statistics and latest points of the series are
+     * updated after that (see {@link SecondaryWrites}), while the watermark of the series is advanced before.
+     */
     @Override
     public IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints) {
-        BulkRequest bulkRequest = new BulkRequest();
-        for (TimeSeriesPoint point : dataPoints) {
-            bulkRequest.add(
-                    new IndexRequest(
-                            resolveIndexName()
-                                    .seriesDefinition(seriesDefinition)
-                                    .at(normalize(point.getTimestamp(), seriesDefinition.getDistance()))
-                                    .single(),
-                            indexType,
-                            id(point, seriesDefinition)
-                    )
-                            .source(document(point, seriesDefinition))
-                            .create(true)
-            );
+        if (Rollups.isRollup(seriesDefinition))
+            throw new IllegalArgumentException("Series names ending with \"~<distance>\" are reserved for rollups");
+        seriesIndexTemplate.ensureInstalled();
+        boolean shared = partitioningPolicy.isShared(seriesDefinition);
+        if (shared)
+            sharedIndexTemplate.ensureInstalled();
+        ZonedDateTime watermark = appendOnly ? seriesWatermarks.get(seriesDefinition, this::lastFromElasticsearch) : null;
+        boolean[] rejected = new boolean[dataPoints.size()];
+        List<TimeSeriesPoint> points = new ArrayList<>(dataPoints.size());
+        for (int i = 0; i < dataPoints.size(); i++) {
+            if (watermark != null && !normalize(dataPoints.get(i).getTimestamp(), seriesDefinition.getDistance()).isAfter(watermark))
+                rejected[i] = true;
+            else
+                points.add(dataPoints.get(i));
         }
-        BulkResponse response;
+        if (points.isEmpty())
+            return response(rejected, emptyList());
+        BulkBody body = bulkPipeline.body();
         try {
-            response = client.bulk(bulkRequest);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to index list of points", e);
+            IndexNames indexNames = new IndexNames(seriesDefinition);
+            String routing = shared ? SharedIndices.routing(seriesDefinition) : null;
+            for (TimeSeriesPoint point : points) {
+                long timestamp = Timestamp.normalizedEpochMillis(point.getTimestamp(), seriesDefinition.getDistance());
+                body.create(
+                        indexNames.at(timestamp),
+                        indexType,
+                        shared ? SharedIndices.id(point, seriesDefinition, idResolver) : idResolver.resolve(point, seriesDefinition),
+                        routing
+                );
+                document(body, point, timestamp, seriesDefinition, shared);
+            }
+        } catch (RuntimeException e) {
+            bulkPipeline.release(body);
+            throw e;
+        }
+        List<BulkItemResponse> items;
+        try {
+            items = bulkPipeline.submit(body).get(bulkPipeline.timeout().toMillis(), MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while indexing list of points", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to index list of points", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("Timed out while indexing list of points", e);
+        }
+        advanceWatermark(seriesDefinition, points, items);
+        secondaryWrites.execute(() -> {
+            rollupEngine.rollup(seriesDefinition, points, items);
+            seriesStatisticsRegistry.register(seriesDefinition, points, items);
+            latestPointRegistry.register(seriesDefinition, points, items);
+        });
+        return response(rejected, items);
+    }
+
+    /**
+     * Advance the watermark to the latest of the points which were written, before the response is given, so that the
+     * next request of an append-only series sees it
+     */
+    private void advanceWatermark(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> points, List<BulkItemResponse> items) {
+        ZonedDateTime latest = null;
+        for (int i = 0; i < points.size(); i++) {
+            if (items.get(i).isFailed())
+                continue;
+            ZonedDateTime timestamp = normalize(points.get(i).getTimestamp(), seriesDefinition.getDistance());
+            if (latest == null || timestamp.isAfter(latest))
+                latest = timestamp;
         }
-        return response(response);
+        if (latest != null)
+            seriesWatermarks.advance(seriesDefinition, latest);
     }
 
     @Override
     public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition) {
-        List<String> indexNames = resolveIndexName().seriesDefinition(seriesDefinition).list();
+        ZonedDateTime timestamp = seriesWatermarks.get(seriesDefinition, this::lastFromElasticsearch);
+        return timestamp != null ? TimeSeriesPoint.builder().timestamp(timestamp).build() : null;
+    }
+
+    private ZonedDateTime lastFromElasticsearch(TimeSeriesDefinition seriesDefinition) {
+        GetResponse latest;
+        try {
+            latest = client.get(new GetRequest(LatestPoints.indexName, LatestPoints.indexType, LatestPoints.id(seriesDefinition, emptyMap())));
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.NOT_FOUND)
+                throw e;
+            latest = null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get latest point of " + seriesDefinition, e);
+        }
+        if (latest != null && latest.isExists() && !LatestPoints.isStale(latest.getSource()))
+            return LatestPoints.timestamp(latest.getSource());
+        // Series written before latest points were kept, or whose latest point failed to be updated
+        return lastFromIndices(seriesDefinition);
+    }
+
+    private ZonedDateTime lastFromIndices(TimeSeriesDefinition seriesDefinition) {
+        List<String> indexNames = resolveIndexName(partitioningPolicy).seriesDefinition(seriesDefinition).list();
+        boolean shared = partitioningPolicy.isShared(seriesDefinition);
         SearchRequest request = new SearchRequest(indexNames.toArray(new String[0]))
                 .types(indexType)
                 .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
+                .routing(shared ? SharedIndices.routing(seriesDefinition) : null)
                 .source(searchSource()
+                        .query(shared ? SharedIndices.seriesFilter(seriesDefinition) : null)
                         .sort(timeFieldName, SortOrder.ASC)
                         .aggregation(terms("last").field("timestamp").size(10_000).order(key(false)).size(1))
                         .size(0) // We are after aggregation and not the search hits
@@ -83,10 +213,10 @@ public class ElasticsearchIngestService implements IngestService {
         } catch (IOException e) {
             throw new RuntimeException("Failed to search", e);
         }
-        return pointFromLastAggregation(response);
+        return timestampFromLastAggregation(response);
     }
 
-    private static TimeSeriesPoint pointFromLastAggregation(SearchResponse response) {
+    private static ZonedDateTime timestampFromLastAggregation(SearchResponse response) {
         if (response.getAggregations() == null)
             return null;
         if (response.getAggregations().get("last") == null)
@@ -97,14 +227,17 @@ public class ElasticsearchIngestService implements IngestService {
             throw new RuntimeException("Too many buckets in last aggregation: "
                     + response.getAggregations().<Terms>get("last").getBuckets().size());
         Terms.Bucket bucket = response.getAggregations().<Terms>get("last").getBuckets().get(0);
-        return TimeSeriesPoint.builder()
-                .timestamp(Timestamp.parse(bucket.getKeyAsString()))
-                .build();
+        return Timestamp.parse(bucket.getKeyAsNumber().longValue());
     }
 
-    private IngestResponse response(BulkResponse response) {
+    /**
+     * @param items the responses to the points which were not rejected, in the same order
+     */
+    private IngestResponse response(boolean[] rejected, List<BulkItemResponse> items) {
         IngestResponse.Builder ingestResponse = IngestResponse.builder();
-        response.iterator().forEachRemaining(i -> ingestResponse.status(status(i.getFailure())));
+        int item = 0;
+        for (boolean pointRejected : rejected)
+            ingestResponse.status(pointRejected ? IngestResponse.Status.Conflict : status(items.get(item++).getFailure()));
         return ingestResponse.build();
     }
 
@@ -118,26 +251,62 @@ public class ElasticsearchIngestService implements IngestService {
         }
     }
 
-    private static XContentBuilder document(TimeSeriesPoint dataPoint, TimeSeriesDefinition seriesDefinition) {
+    /**
+     * Write the document of the point to the body, as {@link #document(TimeSeriesPoint, TimeSeriesDefinition, boolean)}
+     * builds it.
+     */
+    private static void document(BulkBody body, TimeSeriesPoint dataPoint, long timestamp, TimeSeriesDefinition seriesDefinition, boolean shared) {
+        body.startDocument().field(timeFieldName, timestamp);
+        if (shared) {
+            body.field(SharedIndices.ownerField, seriesDefinition.getOwner());
+            body.field(SharedIndices.seriesField, seriesDefinition.getName());
+            body.field(SharedIndices.distanceField, seriesDefinition.getDistance().toString());
+        }
+        if (dataPoint.getCategories().isPresent())
+            for (Map.Entry<String, String> category : dataPoint.getCategories().get().entrySet())
+                body.field(categoryPrefix, category.getKey(), category.getValue());
+        for (Map.Entry<String, Long> measurement : dataPoint.getMeasurements().entrySet()) {
+            validateMeasurementId(measurement.getKey(), shared);
+            body.field(measurement.getKey(), measurement.getValue());
+        }
+        body.endDocument();
+    }
+
+    /**
+     * @param shared whether the series is stored in a shared index, in which case the document names its series
+     * @return the document of the point, with the timestamp normalized to the distance as epoch millis (see
+     * {@link no.difi.statistics.elasticsearch.SeriesIndices})
+     */
+    static XContentBuilder document(TimeSeriesPoint dataPoint, TimeSeriesDefinition seriesDefinition, boolean shared) {
         try {
             XContentBuilder builder = jsonBuilder().startObject();
-            addField(builder, timeFieldName, format(dataPoint.getTimestamp(), seriesDefinition.getDistance()));
+            addField(builder, timeFieldName, Timestamp.normalizedEpochMillis(dataPoint.getTimestamp(), seriesDefinition.getDistance()));
+            if (shared) {
+                addField(builder, SharedIndices.ownerField, seriesDefinition.getOwner());
+                addField(builder, SharedIndices.seriesField, seriesDefinition.getName());
+                addField(builder, SharedIndices.distanceField, seriesDefinition.getDistance().toString());
+            }
             dataPoint.getCategories().ifPresent(cs -> cs.forEach((key, value) -> addCategoryField(builder, key, value)));
-            dataPoint.getMeasurements().forEach((key, value) -> addMeasurementField(builder, key, value));
+            dataPoint.getMeasurements().forEach((key, value) -> addMeasurementField(builder, key, value, shared));
             return builder.endObject();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void addMeasurementField(XContentBuilder builder, String id, long value) {
-        if (id.startsWith("category.")) throw new IllegalArgumentException("Measurement ids cannot be prefixed with \"category.\"");
-        if (id.equals(timeFieldName)) throw new IllegalArgumentException("Measurement ids cannot be named \"" + timeFieldName + "\"");
+    private static void addMeasurementField(XContentBuilder builder, String id, long value, boolean shared) {
+        validateMeasurementId(id, shared);
         addField(builder, id, value);
     }
 
+    private static void validateMeasurementId(String id, boolean shared) {
+        if (id.startsWith(categoryPrefix)) throw new IllegalArgumentException("Measurement ids cannot be prefixed with \"" + categoryPrefix + "\"");
+        if (id.equals(timeFieldName)) throw new IllegalArgumentException("Measurement ids cannot be named \"" + timeFieldName + "\"");
+        if (shared && SharedIndices.isReservedField(id)) throw new IllegalArgumentException("Measurement ids of shared series cannot be named \"" + id + "\"");
+    }
+
     private static void addCategoryField(XContentBuilder builder, String key, String value) {
-        addField(builder, "category." + key, value);
+        addField(builder, categoryPrefix + key, value);
     }
 
     private static void addField(XContentBuilder builder, String key, Object value) {
@@ -148,8 +317,39 @@ public class ElasticsearchIngestService implements IngestService {
         }
     }
 
-    private static String format(ZonedDateTime timestamp, MeasurementDistance distance) {
-        return normalize(timestamp, distance).toString();
+    /**
+     * Index names of the points of a request, resolved again only when a point is outside the partition of the
+     * previous one.
+     */
+    private class IndexNames {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final ChronoUnit unit;
+        private long start = Long.MAX_VALUE;
+        private long end = Long.MIN_VALUE;
+        private String name;
+
+        IndexNames(TimeSeriesDefinition seriesDefinition) {
+            this.seriesDefinition = seriesDefinition;
+            this.unit = partitioningPolicy.partitioning(seriesDefinition).unit();
+        }
+
+        String at(long timestamp) {
+            if (timestamp < start || timestamp >= end) {
+                ZonedDateTime normalized = Timestamp.parse(timestamp);
+                name = resolveIndexName(partitioningPolicy).seriesDefinition(seriesDefinition).at(normalized).single();
+                if (unit == ChronoUnit.FOREVER) {
+                    start = Long.MIN_VALUE;
+                    end = Long.MAX_VALUE;
+                } else {
+                    ZonedDateTime partition = truncatedTimestamp(normalized, unit);
+                    start = partition.toInstant().toEpochMilli();
+                    end = partition.plus(1, unit).toInstant().toEpochMilli();
+                }
+            }
+            return name;
+        }
+
     }
 
 }
@@ -0,0 +1,50 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+
+import static java.util.Collections.emptyMap;
+
+/**
+ * Installs an index template before the first document matching it is written, so that the index created for it gets
+ * the mapping of the template. Used for the indices of points (see {@link no.difi.statistics.elasticsearch.SeriesIndices}),
+ * the shared indices (see {@link no.difi.statistics.elasticsearch.SharedIndices}) and the latest points (see
+ * {@link no.difi.statistics.elasticsearch.LatestPoints}).
+ */
+public class IndexTemplate {
+
+    private final RestClient elasticsearchClient;
+    private final String name;
+    private final String template;
+    private volatile boolean installed;
+
+    public IndexTemplate(RestClient elasticsearchClient, String name, String template) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.name = name;
+        this.template = template;
+    }
+
+    public void ensureInstalled() {
+        if (installed)
+            return;
+        synchronized (this) {
+            if (installed)
+                return;
+            try {
+                elasticsearchClient.performRequest(
+                        "PUT",
+                        "/_template/" + name,
+                        emptyMap(),
+                        new StringEntity(template, ContentType.APPLICATION_JSON)
+                );
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to install index template " + name, e);
+            }
+            installed = true;
+        }
+    }
+
+}
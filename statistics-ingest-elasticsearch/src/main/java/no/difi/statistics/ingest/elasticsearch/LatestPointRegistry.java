@@ -0,0 +1,200 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import no.difi.statistics.elasticsearch.LatestPoints;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+
+/**
+ * Maintains the latest point of each series as points are written to it (see {@link LatestPoints}). A point with at
+ * most <code>maxCategories</code> categories updates the document of every combination of its categories, including
+ * none, so that the latest point of any category filter is a single document. A point with more categories only
+ * updates the document without categories, which it marks partial, since the 2<sup>n</sup> documents of its
+ * combinations would make every ingest request write that many documents. Points of one request are reduced to the
+ * latest per document before they are sent, and each document is updated with a script that replaces it with a later
+ * point, adds to its measurements with a point at the same timestamp and ignores an earlier point. Documents which
+ * could not be updated are marked stale, and are no longer stale once a point after those which failed replaces them.
+ */
+public class LatestPointRegistry {
+
+    private static final String updateScript =
+            "boolean changed = false;" +
+                    " if (params." + LatestPoints.partialField + " == true && ctx._source." + LatestPoints.partialField + " != true) {" +
+                    " ctx._source." + LatestPoints.partialField + " = true; changed = true; }" +
+                    " if (params.timestamp > ctx._source.timestamp) {" +
+                    " ctx._source.timestamp = params.timestamp; ctx._source.measurements = params.measurements; changed = true;" +
+                    " if (ctx._source." + LatestPoints.staleField + " == true && (ctx._source." + LatestPoints.staleTimestampField + " == null" +
+                    " || params.timestamp > ctx._source." + LatestPoints.staleTimestampField + ")) {" +
+                    " ctx._source." + LatestPoints.staleField + " = false; ctx._source.remove('" + LatestPoints.staleTimestampField + "'); } }" +
+                    " else if (params.timestamp == ctx._source.timestamp) {" +
+                    " for (entry in params.measurements.entrySet()) {" +
+                    " if (ctx._source.measurements.containsKey(entry.getKey())) ctx._source.measurements[entry.getKey()] += entry.getValue();" +
+                    " else ctx._source.measurements[entry.getKey()] = entry.getValue(); }" +
+                    " changed = true; }" +
+                    " if (!changed) ctx.op = 'none';";
+    private static final String markStaleScript =
+            "ctx._source." + LatestPoints.staleField + " = true;" +
+                    " if (ctx._source." + LatestPoints.staleTimestampField + " == null" +
+                    " || params.timestamp > ctx._source." + LatestPoints.staleTimestampField + ")" +
+                    " ctx._source." + LatestPoints.staleTimestampField + " = params.timestamp;";
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final BulkPipeline bulkPipeline;
+    private final IndexTemplate indexTemplate;
+    private final int maxCategories;
+    private final int retriesOnConflict;
+
+    public LatestPointRegistry(BulkPipeline bulkPipeline, IndexTemplate indexTemplate, int maxCategories, int retriesOnConflict) {
+        this.bulkPipeline = bulkPipeline;
+        this.indexTemplate = indexTemplate;
+        this.maxCategories = maxCategories;
+        this.retriesOnConflict = retriesOnConflict;
+    }
+
+    /**
+     * Update the latest points of the series with the points which were written. The items are the responses to
+     * writing the points, in the same order, and failed points are skipped. Failures are logged and mark the documents
+     * stale, but do not affect the ingest response.
+     */
+    public void register(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> points, List<BulkItemResponse> items) {
+        Map<String, Latest> latestPoints = new LinkedHashMap<>();
+        String withoutCategories = LatestPoints.id(seriesDefinition, emptyMap());
+        boolean partial = false;
+        for (int i = 0; i < points.size(); i++) {
+            if (items.get(i).isFailed())
+                continue;
+            TimeSeriesPoint point = points.get(i);
+            long timestamp = normalize(point.getTimestamp(), seriesDefinition.getDistance()).toInstant().toEpochMilli();
+            Map<String, String> categories = point.getCategories().orElse(emptyMap());
+            List<Map<String, String>> combinations;
+            if (categories.size() <= maxCategories) {
+                combinations = combinations(categories);
+            } else {
+                combinations = singletonList(emptyMap());
+                partial = true;
+            }
+            for (Map<String, String> combination : combinations)
+                latestPoints.computeIfAbsent(LatestPoints.id(seriesDefinition, combination), id -> new Latest())
+                        .add(timestamp, point.getMeasurements());
+        }
+        if (latestPoints.isEmpty())
+            return;
+        indexTemplate.ensureInstalled();
+        List<UpdateRequest> requests = new ArrayList<>(latestPoints.size());
+        boolean markPartial = partial;
+        latestPoints.forEach((id, latest) -> requests.add(updateRequest(id, latest, markPartial && id.equals(withoutCategories))));
+        List<BulkItemResponse> latestItems = update(seriesDefinition, requests);
+        if (latestItems == null) {
+            markStale(seriesDefinition, latestPoints);
+            return;
+        }
+        Map<String, Latest> failed = new LinkedHashMap<>();
+        latestItems.stream().filter(BulkItemResponse::isFailed).forEach(item -> {
+            logger.error("Failed to update latest point {}: {}", item.getId(), item.getFailureMessage());
+            failed.put(item.getId(), latestPoints.get(item.getId()));
+        });
+        if (!failed.isEmpty())
+            markStale(seriesDefinition, failed);
+    }
+
+    /**
+     * Mark the documents stale, so that queries search for the last point instead of relying on them until a point
+     * after the ones which failed has replaced them
+     */
+    private void markStale(TimeSeriesDefinition seriesDefinition, Map<String, Latest> failed) {
+        List<UpdateRequest> requests = new ArrayList<>(failed.size());
+        failed.forEach((id, latest) -> {
+            Map<String, Object> document = new HashMap<>();
+            document.put(LatestPoints.timestampField, Long.MIN_VALUE);
+            document.put(LatestPoints.measurementsField, emptyMap());
+            document.put(LatestPoints.staleField, true);
+            document.put(LatestPoints.staleTimestampField, latest.timestamp);
+            requests.add(new UpdateRequest(LatestPoints.indexName, LatestPoints.indexType, id)
+                    .script(new Script(ScriptType.INLINE, "painless", markStaleScript, singletonMap("timestamp", latest.timestamp)))
+                    .upsert(document)
+                    .retryOnConflict(retriesOnConflict));
+        });
+        List<BulkItemResponse> staleItems = update(seriesDefinition, requests);
+        if (staleItems != null)
+            staleItems.stream().filter(BulkItemResponse::isFailed).forEach(item ->
+                    logger.error("Failed to mark latest point {} stale: {}", item.getId(), item.getFailureMessage())
+            );
+    }
+
+    /**
+     * @return the items of the updates, or null if they could not be sent
+     */
+    private List<BulkItemResponse> update(TimeSeriesDefinition seriesDefinition, List<UpdateRequest> requests) {
+        try {
+            return bulkPipeline.submit(requests).get(bulkPipeline.timeout().toMillis(), MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while updating latest points of " + seriesDefinition, e);
+        } catch (ExecutionException e) {
+            logger.error("Failed to update latest points of " + seriesDefinition, e.getCause());
+        } catch (TimeoutException e) {
+            logger.error("Timed out while updating latest points of " + seriesDefinition, e);
+        }
+        return null;
+    }
+
+    private UpdateRequest updateRequest(String id, Latest latest, boolean partial) {
+        Map<String, Object> document = new HashMap<>();
+        document.put(LatestPoints.timestampField, latest.timestamp);
+        document.put(LatestPoints.measurementsField, latest.measurements);
+        document.put(LatestPoints.partialField, partial);
+        return new UpdateRequest(LatestPoints.indexName, LatestPoints.indexType, id)
+                .script(new Script(ScriptType.INLINE, "painless", updateScript, document))
+                .upsert(document)
+                .retryOnConflict(retriesOnConflict);
+    }
+
+    /**
+     * @return every subset of the categories, including the empty one
+     */
+    private static List<Map<String, String>> combinations(Map<String, String> categories) {
+        List<Map<String, String>> combinations = new ArrayList<>();
+        combinations.add(emptyMap());
+        for (Map.Entry<String, String> category : categories.entrySet()) {
+            int size = combinations.size();
+            for (int i = 0; i < size; i++) {
+                Map<String, String> combination = new HashMap<>(combinations.get(i));
+                combination.put(category.getKey(), category.getValue());
+                combinations.add(combination);
+            }
+        }
+        return combinations;
+    }
+
+    private static class Latest {
+
+        private long timestamp = Long.MIN_VALUE;
+        private Map<String, Long> measurements = new HashMap<>();
+
+        private void add(long timestamp, Map<String, Long> measurements) {
+            if (timestamp < this.timestamp)
+                return;
+            if (timestamp > this.timestamp) {
+                this.timestamp = timestamp;
+                this.measurements = new HashMap<>();
+            }
+            measurements.forEach((id, value) -> this.measurements.merge(id, value, Long::sum));
+        }
+
+    }
+
+}
@@ -0,0 +1,484 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.elasticsearch.SharedIndices;
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
+
+/**
+ * Maintains sum series of coarser distances as points are ingested, typically hours, days, months and years for a
+ * minute series. Rollups are series of their own (see {@link Rollups}), so they never mix with series of the coarser
+ * distances which are ingested directly, and are only read by queries which know their coverage.
+ * <p>
+ * A rollup gets its boundary when it is first needed: the start of the next period of the source series. A point at
+ * or after the boundary counts towards the rollups when it is created, so resent points (which give conflicts) are
+ * not counted twice. Points of one ingest request are summed per rollup document before they are sent, and each
+ * document is updated with a script that adds to its measurements, or created if it does not exist.
+ * <p>
+ * Points before the boundary are summed from the source series in the background instead, into documents of their
+ * own which are replaced as a whole. This is done for the whole history when the rollup is created, and for the
+ * periods of points before the boundary which are ingested later. The documents are written with the time of the
+ * search as their version, so that an older sum never replaces a newer one. A rollup is marked stale when any of its
+ * updates fails, so that queries stop reading it instead of reading sums which have silently diverged.
+ */
+public class RollupEngine implements AutoCloseable {
+
+    private static final String indexType = "default";
+    private static final String timeFieldName = "timestamp";
+    private static final String categoryPrefix = "category.";
+    private static final String backfillIdSuffix = "~backfill";
+    private static final String addMeasurementsScript =
+            "for (entry in params.measurements.entrySet()) {" +
+                    " if (ctx._source.containsKey(entry.getKey())) ctx._source[entry.getKey()] += entry.getValue();" +
+                    " else ctx._source[entry.getKey()] = entry.getValue(); }";
+    private static final TimeValue scrollTimeout = TimeValue.timeValueMinutes(1);
+    private static final int pageSize = 1_000;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final RestHighLevelClient client;
+    private final BulkPipeline bulkPipeline;
+    private final SeriesStatisticsRegistry seriesStatisticsRegistry;
+    private final PartitioningPolicy partitioningPolicy;
+    private final IndexTemplate seriesIndexTemplate;
+    private final IndexTemplate sharedIndexTemplate;
+    private final IdResolver idResolver;
+    private final List<MeasurementDistance> distances;
+    private final int retriesOnConflict;
+    private final Map<String, Long> boundaries = new ConcurrentHashMap<>();
+    private final Set<String> pendingPeriods = ConcurrentHashMap.newKeySet();
+    private final ExecutorService backfills;
+
+    public RollupEngine(
+            RestHighLevelClient client,
+            BulkPipeline bulkPipeline,
+            SeriesStatisticsRegistry seriesStatisticsRegistry,
+            PartitioningPolicy partitioningPolicy,
+            IndexTemplate seriesIndexTemplate,
+            IndexTemplate sharedIndexTemplate,
+            IdResolver idResolver,
+            List<MeasurementDistance> distances,
+            int retriesOnConflict
+    ) {
+        if (distances.contains(minutes)) throw new IllegalArgumentException("Cannot roll up to minutes");
+        this.client = client;
+        this.bulkPipeline = bulkPipeline;
+        this.seriesStatisticsRegistry = seriesStatisticsRegistry;
+        this.partitioningPolicy = partitioningPolicy;
+        this.seriesIndexTemplate = seriesIndexTemplate;
+        this.sharedIndexTemplate = sharedIndexTemplate;
+        this.idResolver = idResolver;
+        this.distances = distances;
+        this.retriesOnConflict = retriesOnConflict;
+        this.backfills = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rollup-backfill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add the points which were created to the rollups of the series. The items are the responses to indexing the
+     * points, in the same order. Failures are logged and mark the rollups stale, but do not affect the ingest response.
+     */
+    public void rollup(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> points, List<BulkItemResponse> items) {
+        List<TimeSeriesPoint> created = created(points, items);
+        if (created.isEmpty())
+            return;
+        Map<TimeSeriesDefinition, List<TimeSeriesPoint>> sums = new LinkedHashMap<>();
+        for (MeasurementDistance distance : distances) {
+            if (!seriesDefinition.getDistance().lessThan(distance))
+                continue;
+            TimeSeriesDefinition rollupDefinition = Rollups.definition(seriesDefinition, distance);
+            long boundary;
+            try {
+                boundary = boundary(seriesDefinition, rollupDefinition);
+            } catch (RuntimeException e) {
+                logger.error("Failed to get the boundary of rollup " + rollupDefinition, e);
+                markStale(rollupDefinition);
+                continue;
+            }
+            List<TimeSeriesPoint> live = new ArrayList<>(created.size());
+            for (TimeSeriesPoint point : created) {
+                if (point.getTimestamp().toInstant().toEpochMilli() >= boundary)
+                    live.add(point);
+                else
+                    recomputeLater(seriesDefinition, rollupDefinition, normalize(point.getTimestamp(), distance), boundary);
+            }
+            if (!live.isEmpty())
+                sums.put(rollupDefinition, sums(rollupDefinition, live));
+        }
+        List<UpdateRequest> requests = new ArrayList<>();
+        sums.forEach((rollupDefinition, rollupSums) -> rollupSums.forEach(sum -> requests.add(updateRequest(rollupDefinition, sum))));
+        if (requests.isEmpty())
+            return;
+        List<BulkItemResponse> rollupItems = write(seriesDefinition, requests);
+        if (rollupItems == null) {
+            sums.keySet().forEach(this::markStale);
+            return;
+        }
+        int offset = 0;
+        for (Map.Entry<TimeSeriesDefinition, List<TimeSeriesPoint>> entry : sums.entrySet()) {
+            List<BulkItemResponse> itemsOfRollup = rollupItems.subList(offset, offset + entry.getValue().size());
+            offset += entry.getValue().size();
+            if (itemsOfRollup.stream().anyMatch(BulkItemResponse::isFailed)) {
+                itemsOfRollup.stream().filter(BulkItemResponse::isFailed).forEach(item ->
+                        logger.error("Failed to update rollup document {} in {}: {}", item.getId(), item.getIndex(), item.getFailureMessage())
+                );
+                markStale(entry.getKey());
+            }
+            seriesStatisticsRegistry.register(entry.getKey(), entry.getValue(), itemsOfRollup);
+        }
+    }
+
+    /**
+     * Forget the boundaries of the rollups, so that their coverage is read again
+     */
+    public void invalidateAll() {
+        boundaries.clear();
+    }
+
+    @Override
+    public void close() {
+        backfills.shutdownNow();
+    }
+
+    /**
+     * @return the boundary of the rollup, which is created with the start of the next period of the source series and
+     * backfilled if it does not exist
+     */
+    private long boundary(TimeSeriesDefinition source, TimeSeriesDefinition rollup) {
+        Long boundary = boundaries.get(Rollups.id(rollup));
+        return boundary != null ? boundary : loadOrCreate(source, rollup);
+    }
+
+    private synchronized long loadOrCreate(TimeSeriesDefinition source, TimeSeriesDefinition rollup) {
+        String id = Rollups.id(rollup);
+        Long boundary = boundaries.get(id);
+        if (boundary != null)
+            return boundary;
+        Map<String, Object> coverage = coverage(id);
+        if (coverage == null) {
+            long created = normalize(ZonedDateTime.now(UTC), source.getDistance()).plus(1, chronoUnit(source.getDistance()))
+                    .toInstant().toEpochMilli();
+            coverage = create(id, created);
+        }
+        boundary = ((Number) coverage.get(Rollups.boundaryField)).longValue();
+        if (!Boolean.TRUE.equals(coverage.get(Rollups.backfilledField)) && !Boolean.TRUE.equals(coverage.get(Rollups.staleField)))
+            backfillLater(source, rollup, boundary); // Also when a backfill was interrupted by a restart
+        boundaries.put(id, boundary);
+        return boundary;
+    }
+
+    private Map<String, Object> coverage(String id) {
+        GetResponse response;
+        try {
+            response = client.get(new GetRequest(Rollups.indexName, Rollups.indexType, id));
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND)
+                return null;
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get coverage of rollup " + id, e);
+        }
+        return response.isExists() ? response.getSource() : null;
+    }
+
+    /**
+     * @return the coverage of the rollup, which is the one another ingest created if it was first
+     */
+    private Map<String, Object> create(String id, long boundary) {
+        Map<String, Object> coverage = new HashMap<>();
+        coverage.put(Rollups.boundaryField, boundary);
+        coverage.put(Rollups.backfilledField, false);
+        coverage.put(Rollups.staleField, false);
+        try {
+            client.index(new IndexRequest(Rollups.indexName, Rollups.indexType, id).source(coverage).create(true));
+            return coverage;
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() != RestStatus.CONFLICT)
+                throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create coverage of rollup " + id, e);
+        }
+        Map<String, Object> existing = coverage(id);
+        if (existing == null)
+            throw new IllegalStateException("Coverage of rollup " + id + " was created and is missing");
+        return existing;
+    }
+
+    private void backfillLater(TimeSeriesDefinition source, TimeSeriesDefinition rollup, long boundary) {
+        backfills.execute(() -> {
+            try {
+                recompute(source, rollup, null, Timestamp.parse(boundary));
+                updateCoverage(rollup, Rollups.backfilledField);
+                logger.info("Backfilled rollup {}", rollup);
+            } catch (RuntimeException e) {
+                logger.error("Failed to backfill rollup " + rollup, e);
+                markStale(rollup);
+            }
+        });
+    }
+
+    /**
+     * Sum the points of the period which are before the boundary again, once the ones just ingested are searchable
+     */
+    private void recomputeLater(TimeSeriesDefinition source, TimeSeriesDefinition rollup, ZonedDateTime period, long boundary) {
+        String key = Rollups.id(rollup) + "@" + period.toInstant().toEpochMilli();
+        if (!pendingPeriods.add(key))
+            return; // Not started yet, so it will see the points
+        backfills.execute(() -> {
+            pendingPeriods.remove(key);
+            ZonedDateTime end = period.plus(1, chronoUnit(rollup.getDistance()));
+            ZonedDateTime boundaryTimestamp = Timestamp.parse(boundary);
+            try {
+                recompute(source, rollup, period, end.isBefore(boundaryTimestamp) ? end : boundaryTimestamp);
+            } catch (RuntimeException e) {
+                logger.error("Failed to sum period " + period + " of rollup " + rollup, e);
+                markStale(rollup);
+            }
+        });
+    }
+
+    /**
+     * Replace the sums of the points of the source series in the range with sums searched for now. The source is
+     * searched in timestamp order, and the sums of each period are written once the search has passed it.
+     *
+     * @param from the start of the range, or null for the first point
+     * @param to the end of the range, exclusive
+     */
+    private void recompute(TimeSeriesDefinition source, TimeSeriesDefinition rollup, ZonedDateTime from, ZonedDateTime to) {
+        long version = System.currentTimeMillis();
+        boolean shared = partitioningPolicy.isShared(source);
+        List<String> indexNames = resolveIndexName(partitioningPolicy).seriesDefinition(source).list();
+        refresh(indexNames);
+        BoolQueryBuilder query = shared ? SharedIndices.seriesFilter(source) : boolQuery();
+        query.filter(rangeQuery(timeFieldName).gte(from != null ? from.toInstant().toEpochMilli() : null).lt(to.toInstant().toEpochMilli()).format("epoch_millis"));
+        SearchRequest request = new SearchRequest(indexNames.toArray(new String[0]))
+                .types(indexType)
+                .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
+                .routing(shared ? SharedIndices.routing(source) : null)
+                .scroll(scrollTimeout)
+                .source(searchSource().query(query).sort(timeFieldName, SortOrder.ASC).size(pageSize));
+        SearchResponse response;
+        try {
+            response = client.search(request);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to search for the points of " + source, e);
+        }
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        ZonedDateTime period = null;
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    TimeSeriesPoint point = point(hit.getSourceAsMap());
+                    ZonedDateTime pointPeriod = normalize(point.getTimestamp(), rollup.getDistance());
+                    if (period != null && !pointPeriod.isEqual(period)) {
+                        replace(source, rollup, sums(rollup, points), version);
+                        points.clear();
+                    }
+                    period = pointPeriod;
+                    points.add(point);
+                }
+                response = client.searchScroll(new SearchScrollRequest(response.getScrollId()).scroll(scrollTimeout));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to search for the points of " + source, e);
+        } finally {
+            clearScroll(response.getScrollId());
+        }
+        if (!points.isEmpty())
+            replace(source, rollup, sums(rollup, points), version);
+    }
+
+    private void replace(TimeSeriesDefinition source, TimeSeriesDefinition rollup, List<TimeSeriesPoint> sums, long version) {
+        seriesIndexTemplate.ensureInstalled();
+        boolean shared = partitioningPolicy.isShared(rollup);
+        if (shared)
+            sharedIndexTemplate.ensureInstalled();
+        List<IndexRequest> requests = new ArrayList<>(sums.size());
+        for (TimeSeriesPoint sum : sums)
+            requests.add(new IndexRequest(
+                    resolveIndexName(partitioningPolicy).seriesDefinition(rollup).at(sum.getTimestamp()).single(),
+                    indexType,
+                    (shared ? SharedIndices.id(sum, rollup, idResolver) : idResolver.resolve(sum, rollup)) + backfillIdSuffix
+            )
+                    .source(ElasticsearchIngestService.document(sum, rollup, shared))
+                    .routing(shared ? SharedIndices.routing(rollup) : null)
+                    .versionType(VersionType.EXTERNAL_GTE)
+                    .version(version));
+        List<BulkItemResponse> items = write(source, requests);
+        if (items == null)
+            throw new RuntimeException("Failed to write sums of rollup " + rollup);
+        for (BulkItemResponse item : items)
+            if (item.isFailed() && item.getFailure().getStatus() != RestStatus.CONFLICT) // A newer sum was written
+                throw new RuntimeException("Failed to write sum " + item.getId() + " of rollup " + rollup + ": " + item.getFailureMessage());
+        seriesStatisticsRegistry.register(rollup, sums, items);
+    }
+
+    private void refresh(List<String> indexNames) {
+        try {
+            client.getLowLevelClient().performRequest(
+                    "POST",
+                    "/" + String.join(",", indexNames) + "/_refresh",
+                    singletonMap("ignore_unavailable", "true")
+            );
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to refresh " + indexNames, e);
+        }
+    }
+
+    private void clearScroll(String scrollId) {
+        if (scrollId == null)
+            return;
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(scrollId);
+        try {
+            client.clearScroll(request);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to clear scroll", e);
+        }
+    }
+
+    private void markStale(TimeSeriesDefinition rollup) {
+        try {
+            updateCoverage(rollup, Rollups.staleField);
+            logger.warn("Marked rollup {} stale", rollup);
+        } catch (RuntimeException e) {
+            logger.error("Failed to mark rollup " + rollup + " stale", e);
+        }
+    }
+
+    private void updateCoverage(TimeSeriesDefinition rollup, String flag) {
+        try {
+            client.update(new UpdateRequest(Rollups.indexName, Rollups.indexType, Rollups.id(rollup))
+                    .doc(singletonMap(flag, true))
+                    .retryOnConflict(retriesOnConflict));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update coverage of rollup " + rollup, e);
+        }
+    }
+
+    /**
+     * @return the items of the requests, or null if they could not be sent
+     */
+    private List<BulkItemResponse> write(TimeSeriesDefinition seriesDefinition, List<? extends DocWriteRequest<?>> requests) {
+        try {
+            return bulkPipeline.submit(requests).get(bulkPipeline.timeout().toMillis(), MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while updating rollups of " + seriesDefinition, e);
+        } catch (ExecutionException e) {
+            logger.error("Failed to update rollups of " + seriesDefinition, e.getCause());
+        } catch (TimeoutException e) {
+            logger.error("Timed out while updating rollups of " + seriesDefinition, e);
+        }
+        return null;
+    }
+
+    private static List<TimeSeriesPoint> created(List<TimeSeriesPoint> points, List<BulkItemResponse> items) {
+        List<TimeSeriesPoint> created = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++)
+            if (!items.get(i).isFailed())
+                created.add(points.get(i));
+        return created;
+    }
+
+    /**
+     * @return the point of a document of the source series
+     */
+    private static TimeSeriesPoint point(Map<String, Object> source) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder();
+        for (Map.Entry<String, Object> field : source.entrySet()) {
+            if (field.getKey().equals(timeFieldName))
+                point.timestamp(Timestamp.epochMillis(field.getValue()));
+            else if (field.getKey().startsWith(categoryPrefix))
+                point.category(field.getKey().substring(categoryPrefix.length()), field.getValue().toString());
+            else if (field.getValue() instanceof Number)
+                point.measurement(field.getKey(), ((Number) field.getValue()).longValue());
+        }
+        return point.build();
+    }
+
+    private List<TimeSeriesPoint> sums(TimeSeriesDefinition rollupDefinition, List<TimeSeriesPoint> points) {
+        Map<String, TimeSeriesPoint.Builder> sums = new LinkedHashMap<>();
+        for (TimeSeriesPoint point : points) {
+            sums.computeIfAbsent(idResolver.resolve(point, rollupDefinition), id -> {
+                TimeSeriesPoint.Builder builder = TimeSeriesPoint.builder()
+                        .timestamp(normalize(point.getTimestamp(), rollupDefinition.getDistance()));
+                point.getCategories().ifPresent(builder::categories);
+                return builder;
+            }).measurements(point.getMeasurements()); // Builder sums measurements with the same id
+        }
+        List<TimeSeriesPoint> result = new ArrayList<>(sums.size());
+        sums.values().forEach(builder -> result.add(builder.build()));
+        return result;
+    }
+
+    private UpdateRequest updateRequest(TimeSeriesDefinition rollupDefinition, TimeSeriesPoint sum) {
+        seriesIndexTemplate.ensureInstalled();
+        boolean shared = partitioningPolicy.isShared(rollupDefinition);
+        if (shared)
+            sharedIndexTemplate.ensureInstalled();
+        return new UpdateRequest(
+                resolveIndexName(partitioningPolicy).seriesDefinition(rollupDefinition).at(sum.getTimestamp()).single(),
+                indexType,
+                shared ? SharedIndices.id(sum, rollupDefinition, idResolver) : idResolver.resolve(sum, rollupDefinition)
+        )
+                .script(new Script(
+                        ScriptType.INLINE,
+                        "painless",
+                        addMeasurementsScript,
+                        singletonMap("measurements", new HashMap<>(sum.getMeasurements()))
+                ))
+                .upsert(ElasticsearchIngestService.document(sum, rollupDefinition, shared))
+                .routing(shared ? SharedIndices.routing(rollupDefinition) : null)
+                .retryOnConflict(retriesOnConflict);
+    }
+
+}
@@ -0,0 +1,88 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs the writes which follow the points of an ingest request, such as rollups, statistics and latest points, so
+ * that the response does not wait for them. Their failures are handled by the writes themselves, and never affect the
+ * ingest response. At most <code>threads</code> writes run at a time and <code>queueSize</code> wait. Beyond that an
+ * ingest request runs its writes itself, which slows ingest down to the pace Elasticsearch keeps up with. Closing waits
+ * for queued writes, so that they are sent before the bulk pipeline is closed.
+ */
+public class SecondaryWrites implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ThreadPoolExecutor executor;
+    private final Duration closeTimeout;
+    private final Object lock = new Object();
+    private int pending;
+
+    public SecondaryWrites(int threads, int queueSize, Duration closeTimeout) {
+        this.closeTimeout = closeTimeout;
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "secondary-writes");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+
+    public void execute(Runnable writes) {
+        synchronized (lock) {
+            pending++;
+        }
+        executor.execute(() -> {
+            try {
+                writes.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to write after ingest", e);
+            } finally {
+                synchronized (lock) {
+                    pending--;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the writes executed so far to be done
+     *
+     * @return whether they were done within the timeout
+     */
+    public boolean await(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (lock) {
+            while (pending > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(closeTimeout.toMillis(), MILLISECONDS))
+            logger.warn("Writes after ingest were still running on close");
+    }
+
+}
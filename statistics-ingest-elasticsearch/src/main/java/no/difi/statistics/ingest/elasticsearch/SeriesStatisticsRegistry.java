@@ -0,0 +1,297 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.SeriesStatistics;
+import no.difi.statistics.elasticsearch.SharedIndices;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.min;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
+
+/**
+ * Maintains the statistics of each series as points are written to it (see {@link SeriesStatistics}). The document of
+ * a series is updated with a script that widens its time span, adds to its point count, counts the write as late if it
+ * has points before the last timestamp and adds new measurement ids, category keys and partitions, or created if it
+ * does not exist. Queries use the partitions to search only the indices which exist instead of every index the time
+ * range could have.
+ * <p>
+ * Statistics are created incomplete. When an update finds them incomplete, the indices the series has points in are
+ * searched for, and added to the statistics before they are marked complete. This covers series which existed before
+ * their statistics were kept. When an update fails, the statistics are marked incomplete, so that queries do not rely
+ * on them until the next ingest has searched for the indices again.
+ * <p>
+ * The document of a series is written by every ingest request to it, so at most one update of it is sent at a time.
+ * Points registered meanwhile are merged, and sent in one update when the one in flight is done. This keeps concurrent
+ * requests from conflicting on the document, and lets a busy series take one update per bulk instead of one per
+ * request.
+ */
+public class SeriesStatisticsRegistry {
+
+    private static final String updateScript =
+            "ctx._source." + SeriesStatistics.lateWritesField +
+                    " = (ctx._source." + SeriesStatistics.lateWritesField + " == null ? 0 : ctx._source." + SeriesStatistics.lateWritesField + ")" +
+                    " + params." + SeriesStatistics.lateWritesField + " + (params.first < ctx._source.last ? 1 : 0);" +
+                    " if (params.first < ctx._source.first) ctx._source.first = params.first;" +
+                    " if (params.last > ctx._source.last) ctx._source.last = params.last;" +
+                    " ctx._source.count += params.count;" +
+                    " for (field in ['measurementIds', 'categoryKeys', 'partitions']) {" +
+                    " for (value in params[field]) if (!ctx._source[field].contains(value)) ctx._source[field].add(value); }";
+    private static final String backfillScript =
+            "if (params.first < ctx._source.first) ctx._source.first = params.first;" +
+                    " for (value in params.partitions) if (!ctx._source.partitions.contains(value)) ctx._source.partitions.add(value);" +
+                    " ctx._source." + SeriesStatistics.completeField + " = true;";
+    private static final String markIncompleteScript = "ctx._source." + SeriesStatistics.completeField + " = false;";
+    private static final String timeFieldName = "timestamp";
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final RestHighLevelClient client;
+    private final BulkPipeline bulkPipeline;
+    private final PartitioningPolicy partitioningPolicy;
+    private final int retriesOnConflict;
+    private final Map<String, Delta> pending = new HashMap<>();
+    private final Set<String> updating = new HashSet<>();
+
+    public SeriesStatisticsRegistry(RestHighLevelClient client, BulkPipeline bulkPipeline, PartitioningPolicy partitioningPolicy, int retriesOnConflict) {
+        this.client = client;
+        this.bulkPipeline = bulkPipeline;
+        this.partitioningPolicy = partitioningPolicy;
+        this.retriesOnConflict = retriesOnConflict;
+    }
+
+    /**
+     * Add the points which were written to the statistics of the series. The items are the responses to writing the
+     * points, in the same order, and only those which created a document add to the point count. Failures are logged,
+     * and mark the statistics incomplete, but do not affect the ingest response. Returns without waiting if an update
+     * of the series is in flight, which then sends these points too.
+     */
+    public void register(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> points, List<BulkItemResponse> items) {
+        Delta delta = new Delta();
+        for (int i = 0; i < points.size(); i++) {
+            BulkItemResponse item = items.get(i);
+            if (item.isFailed())
+                continue;
+            TimeSeriesPoint point = points.get(i);
+            delta.add(
+                    point.getTimestamp().toInstant().toEpochMilli(),
+                    item.getResponse().getResult() == DocWriteResponse.Result.CREATED,
+                    point,
+                    item.getIndex()
+            );
+        }
+        if (delta.partitions.isEmpty())
+            return;
+        String id = SeriesStatistics.id(seriesDefinition);
+        synchronized (pending) {
+            pending.merge(id, delta, Delta::merge);
+            if (!updating.add(id))
+                return;
+        }
+        try {
+            while (true) {
+                Delta next;
+                synchronized (pending) {
+                    next = pending.remove(id);
+                    if (next == null) {
+                        updating.remove(id);
+                        return;
+                    }
+                }
+                update(seriesDefinition, next);
+            }
+        } catch (RuntimeException e) {
+            synchronized (pending) {
+                updating.remove(id);
+            }
+            throw e;
+        }
+    }
+
+    private void update(TimeSeriesDefinition seriesDefinition, Delta delta) {
+        Map<String, Object> statistics = statistics(
+                seriesDefinition,
+                delta.first,
+                delta.last,
+                delta.count,
+                delta.lateWrites,
+                delta.measurementIds,
+                delta.categoryKeys,
+                delta.partitions
+        );
+        UpdateRequest request = new UpdateRequest(SeriesStatistics.indexName, SeriesStatistics.indexType, SeriesStatistics.id(seriesDefinition))
+                .script(new Script(ScriptType.INLINE, "painless", updateScript, statistics))
+                .upsert(statistics)
+                .fetchSource(new String[]{SeriesStatistics.completeField}, null)
+                .retryOnConflict(retriesOnConflict);
+        BulkItemResponse item = update(seriesDefinition, request);
+        if (item == null) {
+            markIncomplete(seriesDefinition);
+            return;
+        }
+        if (item.isFailed()) {
+            logger.error("Failed to update statistics of {}: {}", seriesDefinition, item.getFailureMessage());
+            markIncomplete(seriesDefinition);
+            return;
+        }
+        UpdateResponse response = item.getResponse();
+        if (response.getGetResult() == null || !Boolean.TRUE.equals(response.getGetResult().sourceAsMap().get(SeriesStatistics.completeField)))
+            backfill(seriesDefinition);
+    }
+
+    /**
+     * Add the indices the series has points in to its statistics, and mark them complete. The statistics are left
+     * incomplete if this fails, and the search is then done again by the next ingest.
+     */
+    private void backfill(TimeSeriesDefinition seriesDefinition) {
+        boolean shared = partitioningPolicy.isShared(seriesDefinition);
+        SearchRequest searchRequest = new SearchRequest(resolveIndexName(partitioningPolicy).seriesDefinition(seriesDefinition).list().toArray(new String[0]))
+                .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
+                .routing(shared ? SharedIndices.routing(seriesDefinition) : null)
+                .source(searchSource()
+                        .query(shared ? SharedIndices.seriesFilter(seriesDefinition) : null)
+                        .aggregation(terms("partitions").field("_index").size(10_000))
+                        .aggregation(min("first").field(timeFieldName))
+                        .size(0));
+        SearchResponse searchResponse;
+        try {
+            searchResponse = client.search(searchRequest);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to search for the indices of " + seriesDefinition, e);
+            return;
+        }
+        List<String> partitions = new ArrayList<>();
+        long first = Long.MAX_VALUE;
+        if (searchResponse.getAggregations() != null) {
+            searchResponse.getAggregations().<Terms>get("partitions").getBuckets().forEach(bucket -> partitions.add(bucket.getKeyAsString()));
+            double min = searchResponse.getAggregations().<Min>get("first").getValue();
+            if (!Double.isInfinite(min))
+                first = (long) min;
+        }
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("first", first);
+        parameters.put("partitions", partitions);
+        UpdateRequest request = new UpdateRequest(SeriesStatistics.indexName, SeriesStatistics.indexType, SeriesStatistics.id(seriesDefinition))
+                .script(new Script(ScriptType.INLINE, "painless", backfillScript, parameters))
+                .retryOnConflict(retriesOnConflict);
+        BulkItemResponse item = update(seriesDefinition, request);
+        if (item != null && item.isFailed())
+            logger.error("Failed to add indices to statistics of {}: {}", seriesDefinition, item.getFailureMessage());
+    }
+
+    /**
+     * Mark the statistics of the series incomplete after an update of them failed, creating them if they do not exist
+     */
+    private void markIncomplete(TimeSeriesDefinition seriesDefinition) {
+        Map<String, Object> statistics = statistics(seriesDefinition, Long.MAX_VALUE, Long.MIN_VALUE, 0, 0, emptySet(), emptySet(), emptySet());
+        UpdateRequest request = new UpdateRequest(SeriesStatistics.indexName, SeriesStatistics.indexType, SeriesStatistics.id(seriesDefinition))
+                .script(new Script(ScriptType.INLINE, "painless", markIncompleteScript, emptyMap()))
+                .upsert(statistics)
+                .retryOnConflict(retriesOnConflict);
+        BulkItemResponse item = update(seriesDefinition, request);
+        if (item != null && item.isFailed())
+            logger.error("Failed to mark statistics of {} incomplete: {}", seriesDefinition, item.getFailureMessage());
+    }
+
+    /**
+     * @return the item of the update, or null if it could not be sent
+     */
+    private BulkItemResponse update(TimeSeriesDefinition seriesDefinition, UpdateRequest request) {
+        try {
+            return bulkPipeline.submit(singletonList(request)).get(bulkPipeline.timeout().toMillis(), MILLISECONDS).get(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while updating statistics of " + seriesDefinition, e);
+        } catch (ExecutionException e) {
+            logger.error("Failed to update statistics of " + seriesDefinition, e.getCause());
+        } catch (TimeoutException e) {
+            logger.error("Timed out while updating statistics of " + seriesDefinition, e);
+        }
+        return null;
+    }
+
+    private static Map<String, Object> statistics(
+            TimeSeriesDefinition seriesDefinition,
+            long first,
+            long last,
+            long count,
+            long lateWrites,
+            Set<String> measurementIds,
+            Set<String> categoryKeys,
+            Set<String> partitions
+    ) {
+        Map<String, Object> statistics = new HashMap<>();
+        statistics.put("owner", seriesDefinition.getOwner());
+        statistics.put("name", seriesDefinition.getName());
+        statistics.put("distance", seriesDefinition.getDistance().toString());
+        statistics.put("first", first);
+        statistics.put("last", last);
+        statistics.put("count", count);
+        statistics.put(SeriesStatistics.lateWritesField, lateWrites);
+        statistics.put("measurementIds", new ArrayList<>(measurementIds));
+        statistics.put("categoryKeys", new ArrayList<>(categoryKeys));
+        statistics.put("partitions", new ArrayList<>(partitions));
+        statistics.put(SeriesStatistics.completeField, false); // Only used when the statistics are created
+        return statistics;
+    }
+
+    /**
+     * Points of one or more requests to a series which are yet to be added to its statistics
+     */
+    private static class Delta {
+
+        private long first = Long.MAX_VALUE;
+        private long last = Long.MIN_VALUE;
+        private long count;
+        private long lateWrites; // Of the requests merged, which had points before the last of the earlier ones
+        private final Set<String> measurementIds = new TreeSet<>();
+        private final Set<String> categoryKeys = new TreeSet<>();
+        private final Set<String> partitions = new TreeSet<>();
+
+        private void add(long timestamp, boolean created, TimeSeriesPoint point, String partition) {
+            first = Math.min(first, timestamp);
+            last = Math.max(last, timestamp);
+            if (created)
+                count++;
+            measurementIds.addAll(point.getMeasurements().keySet());
+            point.getCategories().ifPresent(categories -> categoryKeys.addAll(categories.keySet()));
+            partitions.add(partition);
+        }
+
+        private Delta merge(Delta later) {
+            lateWrites += later.lateWrites + (later.first < last ? 1 : 0);
+            first = Math.min(first, later.first);
+            last = Math.max(last, later.last);
+            count += later.count;
+            measurementIds.addAll(later.measurementIds);
+            categoryKeys.addAll(later.categoryKeys);
+            partitions.addAll(later.partitions);
+            return this;
+        }
+
+    }
+
+}
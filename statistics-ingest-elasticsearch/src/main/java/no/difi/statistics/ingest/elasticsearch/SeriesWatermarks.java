@@ -0,0 +1,82 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.function.Function;
+
+/**
+ * In-memory high-watermark per series: the timestamp of its latest point. A watermark is seeded from Elasticsearch the
+ * first time it is needed, and advanced as points are written through this instance. Watermarks expire the time-to-live
+ * after they were seeded so that points written through other instances are seen, which means a watermark may be behind but is
+ * never ahead of the series.
+ */
+public class SeriesWatermarks implements MeterBinder {
+
+    private static final long none = Long.MIN_VALUE;
+    private final Cache<TimeSeriesDefinition, Long> watermarks;
+
+    public SeriesWatermarks(long size, Duration timeToLive) {
+        this.watermarks = Caffeine.newBuilder()
+                .maximumSize(size)
+                .expireAfter(new Expiry<TimeSeriesDefinition, Long>() {
+
+                    @Override
+                    public long expireAfterCreate(TimeSeriesDefinition key, Long watermark, long currentTime) {
+                        return timeToLive.toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(TimeSeriesDefinition key, Long watermark, long currentTime, long currentDuration) {
+                        return currentDuration; // Reseed on schedule even if advanced
+                    }
+
+                    @Override
+                    public long expireAfterRead(TimeSeriesDefinition key, Long watermark, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param loader gives the timestamp of the latest point of the series in Elasticsearch, or null if it has none
+     * @return the timestamp of the latest point of the series, or null if it has none
+     */
+    public ZonedDateTime get(TimeSeriesDefinition seriesDefinition, Function<TimeSeriesDefinition, ZonedDateTime> loader) {
+        long watermark = watermarks.get(seriesDefinition, definition -> {
+            ZonedDateTime timestamp = loader.apply(definition);
+            return timestamp != null ? timestamp.toInstant().toEpochMilli() : none;
+        });
+        return watermark != none ? Timestamp.parse(watermark) : null;
+    }
+
+    /**
+     * Advance the watermark of the series to the timestamp if it is later. Watermarks not yet seeded are left to be
+     * seeded from Elasticsearch.
+     */
+    public void advance(TimeSeriesDefinition seriesDefinition, ZonedDateTime timestamp) {
+        long value = timestamp.toInstant().toEpochMilli();
+        watermarks.asMap().computeIfPresent(seriesDefinition, (definition, watermark) -> Math.max(watermark, value));
+    }
+
+    public void invalidateAll() {
+        watermarks.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, watermarks, "seriesWatermarks");
+    }
+
+}
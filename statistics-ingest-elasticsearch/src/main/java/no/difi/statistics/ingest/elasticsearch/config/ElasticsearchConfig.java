@@ -1,9 +1,23 @@
 package no.difi.statistics.ingest.elasticsearch.config;
 
 import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.LatestPoints;
+import no.difi.statistics.elasticsearch.Partitioning;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.SeriesIndices;
+import no.difi.statistics.elasticsearch.SharedIndices;
 import no.difi.statistics.ingest.IngestService;
 import no.difi.statistics.ingest.config.BackendConfig;
+import no.difi.statistics.ingest.elasticsearch.BulkPipeline;
 import no.difi.statistics.ingest.elasticsearch.ElasticsearchIngestService;
+import no.difi.statistics.ingest.elasticsearch.IndexTemplate;
+import no.difi.statistics.ingest.elasticsearch.LatestPointRegistry;
+import no.difi.statistics.ingest.elasticsearch.RollupEngine;
+import no.difi.statistics.ingest.elasticsearch.SecondaryWrites;
+import no.difi.statistics.ingest.elasticsearch.SeriesStatisticsRegistry;
+import no.difi.statistics.ingest.elasticsearch.SeriesWatermarks;
+import no.difi.statistics.model.MeasurementDistance;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
@@ -13,6 +27,12 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
 @Configuration
 public class ElasticsearchConfig implements BackendConfig {
 
@@ -25,7 +45,131 @@ public class ElasticsearchConfig implements BackendConfig {
 
     @Bean
     public IngestService ingestService() {
-        return new ElasticsearchIngestService(elasticsearchHighLevelClient());
+        return new ElasticsearchIngestService(
+                elasticsearchHighLevelClient(),
+                bulkPipeline(),
+                rollupEngine(),
+                seriesStatisticsRegistry(),
+                latestPointRegistry(),
+                secondaryWrites(),
+                partitioningPolicy(),
+                seriesIndexTemplate(),
+                sharedIndexTemplate(),
+                idResolver(),
+                seriesWatermarks(),
+                environment.getProperty("no.difi.statistics.ingest.append-only", Boolean.class, false)
+        );
+    }
+
+    /**
+     * Must be the same as the one of queries, since index names are resolved from it.
+     */
+    @Bean
+    public PartitioningPolicy partitioningPolicy() {
+        PartitioningPolicy.Builder builder = PartitioningPolicy.builder();
+        for (MeasurementDistance distance : MeasurementDistance.values()) {
+            String partitioning = environment.getProperty("no.difi.statistics.elasticsearch.partitioning." + distance);
+            if (partitioning != null && !partitioning.isEmpty())
+                builder.distance(distance, Partitioning.valueOf(partitioning));
+        }
+        for (String series : environment.getProperty("no.difi.statistics.elasticsearch.partitioning.series", String[].class, new String[0]))
+            builder.series(series);
+        return builder.build();
+    }
+
+    /**
+     * Ids of points before the cut-over stay name based UUIDs, so it must be later than any point already written.
+     */
+    @Bean
+    public IdResolver idResolver() {
+        String cutOver = environment.getProperty("no.difi.statistics.elasticsearch.ids.murmur3-from");
+        if (cutOver == null || cutOver.isEmpty())
+            return IdResolver.md5();
+        return IdResolver.murmur3From(ZonedDateTime.parse(cutOver));
+    }
+
+    @Bean
+    public IndexTemplate seriesIndexTemplate() {
+        return new IndexTemplate(elasticsearchHighLevelClient().getLowLevelClient(), SeriesIndices.templateName, SeriesIndices.template());
+    }
+
+    @Bean
+    public IndexTemplate sharedIndexTemplate() {
+        return new IndexTemplate(elasticsearchHighLevelClient().getLowLevelClient(), SharedIndices.templateName, SharedIndices.template());
+    }
+
+    @Bean
+    public IndexTemplate latestPointsIndexTemplate() {
+        return new IndexTemplate(elasticsearchHighLevelClient().getLowLevelClient(), LatestPoints.templateName, LatestPoints.template());
+    }
+
+    @Bean
+    public SeriesStatisticsRegistry seriesStatisticsRegistry() {
+        return new SeriesStatisticsRegistry(
+                elasticsearchHighLevelClient(),
+                bulkPipeline(),
+                partitioningPolicy(),
+                environment.getProperty("no.difi.statistics.elasticsearch.series-statistics.retries-on-conflict", Integer.class, 5)
+        );
+    }
+
+    @Bean
+    public SeriesWatermarks seriesWatermarks() {
+        return new SeriesWatermarks(
+                environment.getProperty("no.difi.statistics.ingest.watermarks.size", Long.class, 100_000L),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.ingest.watermarks.ttl-seconds", Long.class, 300L))
+        );
+    }
+
+    @Bean
+    public LatestPointRegistry latestPointRegistry() {
+        return new LatestPointRegistry(
+                bulkPipeline(),
+                latestPointsIndexTemplate(),
+                environment.getProperty("no.difi.statistics.elasticsearch.latest-points.max-categories", Integer.class, 2),
+                environment.getProperty("no.difi.statistics.elasticsearch.latest-points.retries-on-conflict", Integer.class, 5)
+        );
+    }
+
+    @Bean(destroyMethod = "close")
+    public RollupEngine rollupEngine() {
+        return new RollupEngine(
+                elasticsearchHighLevelClient(),
+                bulkPipeline(),
+                seriesStatisticsRegistry(),
+                partitioningPolicy(),
+                seriesIndexTemplate(),
+                sharedIndexTemplate(),
+                idResolver(),
+                Stream.of(environment.getProperty("no.difi.statistics.elasticsearch.rollup.distances", String[].class, new String[0]))
+                        .map(MeasurementDistance::valueOf)
+                        .collect(toList()),
+                environment.getProperty("no.difi.statistics.elasticsearch.rollup.retries-on-conflict", Integer.class, 5)
+        );
+    }
+
+    /**
+     * Takes the bulk timeout from the pipeline, which makes it close before the pipeline does.
+     */
+    @Bean(destroyMethod = "close")
+    public SecondaryWrites secondaryWrites() {
+        return new SecondaryWrites(
+                environment.getProperty("no.difi.statistics.ingest.secondary-writes.threads", Integer.class, 4),
+                environment.getProperty("no.difi.statistics.ingest.secondary-writes.queue-size", Integer.class, 1000),
+                bulkPipeline().timeout()
+        );
+    }
+
+    @Bean(destroyMethod = "close")
+    public BulkPipeline bulkPipeline() {
+        return new BulkPipeline(
+                elasticsearchHighLevelClient(),
+                environment.getProperty("no.difi.statistics.elasticsearch.bulk.max-actions", Integer.class, 5000),
+                environment.getProperty("no.difi.statistics.elasticsearch.bulk.max-bytes", Long.class, 5L * 1024 * 1024),
+                Duration.ofMillis(environment.getProperty("no.difi.statistics.elasticsearch.bulk.flush-interval-millis", Long.class, 10L)),
+                environment.getProperty("no.difi.statistics.elasticsearch.bulk.concurrent-requests", Integer.class, 4),
+                Duration.ofMillis(environment.getProperty("no.difi.statistics.elasticsearch.bulk.timeout-millis", Long.class, 30_000L))
+        );
     }
 
     @Bean
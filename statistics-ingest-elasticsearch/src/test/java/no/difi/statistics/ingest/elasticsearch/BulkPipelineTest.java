@@ -0,0 +1,99 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import no.difi.statistics.test.utils.ElasticsearchRule;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BulkPipelineTest {
+
+    @ClassRule
+    public static ElasticsearchRule elasticsearchRule = new ElasticsearchRule();
+
+    private RestHighLevelClient client;
+    private BulkPipeline pipeline;
+
+    @Before
+    public void prepare() {
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost(elasticsearchRule.getHost(), elasticsearchRule.getPort(), "http")));
+        // A long flush interval, so that the bodies submitted concurrently end up in the same bulk
+        pipeline = new BulkPipeline(client, 1000, 5 * 1024 * 1024, Duration.ofSeconds(1), 1, Duration.ofSeconds(10));
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        pipeline.close();
+        client.close();
+    }
+
+    @Test
+    public void whenSubmittingBodiesConcurrentlyThenEachCallerGetsTheItemsOfItsOwnActions() throws Exception {
+        int callers = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<BulkItemResponse>>> results = new ArrayList<>();
+        try {
+            for (int caller = 0; caller < callers; caller++) {
+                int actions = caller + 1;
+                String prefix = "caller" + caller;
+                results.add(executor.submit(() -> {
+                    BulkBody body = body(prefix, actions);
+                    start.await();
+                    return pipeline.submit(body).get(10, SECONDS);
+                }));
+            }
+            start.countDown();
+            for (int caller = 0; caller < callers; caller++) {
+                List<BulkItemResponse> items = results.get(caller).get(10, SECONDS);
+                assertEquals(caller + 1, items.size());
+                for (int i = 0; i < items.size(); i++) {
+                    assertNull(items.get(i).getFailure());
+                    assertEquals(format("caller%d-%d", caller, i), items.get(i).getId());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void whenSubmittingBodyAfterMergedBulkThenPooledBodiesAreEmpty() throws Exception {
+        CompletableFuture<List<BulkItemResponse>> first = pipeline.submit(body("first", 2));
+        CompletableFuture<List<BulkItemResponse>> second = pipeline.submit(body("second", 3));
+        assertEquals(2, first.get(10, SECONDS).size());
+        assertEquals(3, second.get(10, SECONDS).size());
+        List<BulkItemResponse> third = pipeline.submit(body("third", 1)).get(10, SECONDS);
+        assertEquals(1, third.size());
+        assertEquals("third-0", third.get(0).getId());
+    }
+
+    private BulkBody body(String prefix, int actions) {
+        BulkBody body = pipeline.body();
+        for (int i = 0; i < actions; i++)
+            body.create("bulk-pipeline-test", "default", prefix + "-" + i, null)
+                    .startDocument()
+                    .field("value", i)
+                    .endDocument();
+        return body;
+    }
+
+}
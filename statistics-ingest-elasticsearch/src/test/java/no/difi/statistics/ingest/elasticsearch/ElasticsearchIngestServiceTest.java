@@ -2,6 +2,8 @@ package no.difi.statistics.ingest.elasticsearch;
 
 import no.difi.statistics.elasticsearch.Client;
 import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.LatestPoints;
+import no.difi.statistics.elasticsearch.SeriesStatistics;
 import no.difi.statistics.ingest.api.IngestResponse;
 import no.difi.statistics.ingest.config.AppConfig;
 import no.difi.statistics.ingest.elasticsearch.config.ElasticsearchConfig;
@@ -9,6 +11,7 @@ import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.test.utils.ElasticsearchHelper;
 import no.difi.statistics.test.utils.ElasticsearchRule;
+import org.elasticsearch.action.get.GetRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -30,22 +33,34 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static java.time.format.DateTimeFormatter.ofPattern;
+import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.ingest.api.IngestResponse.Status.Conflict;
 import static no.difi.statistics.ingest.api.IngestResponse.Status.Ok;
 import static no.difi.statistics.model.TimeSeriesDefinition.builder;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpMethod.POST;
 import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
@@ -89,6 +104,10 @@ public class ElasticsearchIngestServiceTest {
     private ElasticsearchHelper elasticsearchHelper;
     @Autowired
     private RestTemplate authenticationRestTemplate;
+    @Autowired
+    private SeriesWatermarks seriesWatermarks;
+    @Autowired
+    private SecondaryWrites secondaryWrites;
     private MockRestServiceServer authenticationService;
     private String owner = "123456789";
     private String password = "aPassword";
@@ -110,6 +129,7 @@ public class ElasticsearchIngestServiceTest {
     @After
     public void cleanup() {
         elasticsearchHelper.clear();
+        seriesWatermarks.invalidateAll();
     }
 
     @Test
@@ -140,6 +160,23 @@ public class ElasticsearchIngestServiceTest {
         assertIngested(seriesDefinition, 2, point2, response.getBody());
     }
 
+    @Test
+    public void whenIngestingConcurrentlyThenEachRequestGetsItsOwnStatuses() {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        TimeSeriesPoint duplicate = point().timestamp(now).measurement("aMeasurement", 1L).build();
+        ingest(seriesDefinition, duplicate);
+        List<TimeSeriesPoint> points = IntStream.range(1, 21)
+                .mapToObj(i -> point().timestamp(now.plusMinutes(i)).measurement("aMeasurement", i).build())
+                .collect(toList());
+        List<IngestResponse> responses = points.parallelStream()
+                .map(point -> ingest(seriesDefinition, point, duplicate).getBody())
+                .collect(toList());
+        for (int i = 0; i < points.size(); i++) {
+            assertIngested(seriesDefinition, 0, points.get(i), responses.get(i));
+            assertNotIngested(1, responses.get(i));
+        }
+    }
+
     @Test
     public void whenIngestingDuplicatePointThenFailAndPointIsNotIngested() {
         TimeSeriesPoint point1 = point().timestamp(now).measurement("aMeasurement", 103L).build();
@@ -178,18 +215,126 @@ public class ElasticsearchIngestServiceTest {
         assertNotIngested(0, response2.getBody());
     }
 
+    @Test
+    public void whenIngestingPointWithCategoryValuesNeedingEscapesThenPointIsIngestedOnce() {
+        TimeSeriesPoint point = point().timestamp(now).category("kategori", "\"Bø\\\n\u0001").measurement("aMeasurement", 103L).build();
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ResponseEntity<IngestResponse> response1 = ingest(seriesDefinition, point);
+        ResponseEntity<IngestResponse> response2 = ingest(seriesDefinition, point);
+        assertIngested(seriesDefinition, 0, point, response1.getBody());
+        assertNotIngested(0, response2.getBody());
+    }
+
     @Test
     public void whenIngestingAPointThenProperlyNamedIndexIsCreated() {
         TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
         ResponseEntity<IngestResponse> response =
                 ingest(seriesDefinition, password, point().timestamp(now).measurement("aMeasurement", 103L).build());
         assertEquals(Ok, response.getBody().getStatuses().get(0));
-        assertEquals(
-                format("%s@%s@minute%d", owner, seriesDefinition.getName(), now.getYear()),
-                elasticsearchHelper.indices()[0]
+        assertThat(
+                asList(elasticsearchHelper.indices()),
+                containsInAnyOrder(
+                        format("%s@%s@minute%d", owner, seriesDefinition.getName(), now.getYear()),
+                        SeriesStatistics.indexName,
+                        LatestPoints.indexName
+                )
         );
     }
 
+    @Test
+    public void whenIngestingPointsThenStatisticsOfSeriesAreUpdated() {
+        TimeSeriesPoint point1 = point().timestamp(now).measurement("aMeasurement", 103L).build();
+        TimeSeriesPoint duplicateOfPoint1 = point().timestamp(now).measurement("aMeasurement", 2354L).build();
+        TimeSeriesPoint point2 = point().timestamp(now.plusMinutes(1)).measurement("anotherMeasurement", 567543L).build();
+        TimeSeriesPoint point3 = point().timestamp(now.minusMinutes(1)).measurement("aMeasurement", 5L).build();
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point1, duplicateOfPoint1, point2);
+        ingest(seriesDefinition, point3);
+        String id = SeriesStatistics.id(seriesDefinition);
+        assertEquals(3L, (long) elasticsearchHelper.get(SeriesStatistics.indexName, id, "count"));
+        assertEquals(now.minusMinutes(1).toInstant().toEpochMilli(), (long) elasticsearchHelper.get(SeriesStatistics.indexName, id, "first"));
+        assertEquals(now.plusMinutes(1).toInstant().toEpochMilli(), (long) elasticsearchHelper.get(SeriesStatistics.indexName, id, "last"));
+        assertEquals(1L, (long) elasticsearchHelper.get(SeriesStatistics.indexName, id, SeriesStatistics.lateWritesField));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void givenPointWrittenBeforeStatisticsWereKeptWhenIngestingThenItsIndexIsAddedToStatistics() throws IOException {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        TimeSeriesPoint earlierPoint = point().timestamp(now.minusYears(2)).measurement("aMeasurement", 1L).build();
+        String earlierIndex = resolveIndexName().seriesDefinition(seriesDefinition).at(earlierPoint.getTimestamp()).single();
+        elasticsearchHelper.index(
+                earlierIndex,
+                "default",
+                IdResolver.id(earlierPoint, seriesDefinition),
+                format("{\"timestamp\": \"%s\", \"aMeasurement\": 1}", earlierPoint.getTimestamp())
+        );
+        ingest(seriesDefinition, point().timestamp(now).measurement("aMeasurement", 2L).build());
+        Map<String, Object> statistics = client.highLevel()
+                .get(new GetRequest(SeriesStatistics.indexName, SeriesStatistics.indexType, SeriesStatistics.id(seriesDefinition)))
+                .getSource();
+        assertEquals(true, statistics.get(SeriesStatistics.completeField));
+        assertThat(
+                (List<String>) statistics.get("partitions"),
+                containsInAnyOrder(earlierIndex, resolveIndexName().seriesDefinition(seriesDefinition).at(now).single())
+        );
+        assertEquals(earlierPoint.getTimestamp().toInstant().toEpochMilli(), ((Number) statistics.get("first")).longValue());
+    }
+
+    @Test
+    public void whenIngestingPointsThenLatestPointOfEachCombinationOfCategoriesIsUpdated() {
+        TimeSeriesPoint point1 = point().timestamp(now).category("category1", "abc").category("category2", "def").measurement("aMeasurement", 103L).build();
+        TimeSeriesPoint point2 = point().timestamp(now.plusMinutes(1)).category("category1", "abc").measurement("aMeasurement", 2354L).build();
+        TimeSeriesPoint point3 = point().timestamp(now.minusMinutes(1)).category("category2", "def").measurement("aMeasurement", 5L).build();
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point1, point2);
+        ingest(seriesDefinition, point3);
+        assertEquals(now.plusMinutes(1).toInstant().toEpochMilli(), (long) latestTimestamp(seriesDefinition, emptyMap()));
+        assertEquals(now.plusMinutes(1).toInstant().toEpochMilli(), (long) latestTimestamp(seriesDefinition, singletonMap("category1", "abc")));
+        assertEquals(now.toInstant().toEpochMilli(), (long) latestTimestamp(seriesDefinition, singletonMap("category2", "def")));
+        assertEquals(now.toInstant().toEpochMilli(), (long) latestTimestamp(seriesDefinition, point1.getCategories().get()));
+    }
+
+    @Test
+    public void whenIngestingPointWithMoreCategoriesThanCombinedThenOnlyLatestPointWithoutCategoriesIsUpdated() throws IOException {
+        TimeSeriesPoint point = point().timestamp(now)
+                .category("category1", "abc").category("category2", "def").category("category3", "ghi")
+                .measurement("aMeasurement", 103L).build();
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point);
+        Map<String, Object> latest = client.highLevel()
+                .get(new GetRequest(LatestPoints.indexName, LatestPoints.indexType, LatestPoints.id(seriesDefinition, emptyMap())))
+                .getSource();
+        assertEquals(now.toInstant().toEpochMilli(), ((Number) latest.get(LatestPoints.timestampField)).longValue());
+        assertTrue(LatestPoints.isPartial(latest));
+        assertFalse(client.highLevel()
+                .get(new GetRequest(LatestPoints.indexName, LatestPoints.indexType, LatestPoints.id(seriesDefinition, singletonMap("category1", "abc"))))
+                .isExists());
+    }
+
+    @Test
+    public void givenStaleLatestPointWhenIngestingPointAfterTheFailedOnesThenLatestPointIsReliedOnAgain() throws IOException {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        // As left by a failed update with a point a minute later than the latest point
+        elasticsearchHelper.index(
+                LatestPoints.indexName,
+                LatestPoints.indexType,
+                LatestPoints.id(seriesDefinition, emptyMap()),
+                format(
+                        "{\"timestamp\": %d, \"measurements\": {\"aMeasurement\": 1}, \"stale\": true, \"staleTimestamp\": %d}",
+                        now.toInstant().toEpochMilli(),
+                        now.plusMinutes(1).toInstant().toEpochMilli()
+                )
+        );
+        ingest(seriesDefinition, point().timestamp(now.plusMinutes(1)).measurement("aMeasurement", 2L).build());
+        assertTrue(LatestPoints.isStale(latestPoint(seriesDefinition)));
+        ingest(seriesDefinition, point().timestamp(now.plusMinutes(2)).measurement("aMeasurement", 3L).build());
+        Map<String, Object> latest = latestPoint(seriesDefinition);
+        assertFalse(LatestPoints.isStale(latest));
+        assertEquals(now.plusMinutes(2), LatestPoints.timestamp(latest));
+        assertEquals(singletonMap("aMeasurement", 3L), LatestPoints.measurements(latest));
+    }
+
     @Test
     public void whenIngestingDuplicateOnTheHourPointThenFailAndPointIsNotIngested() {
         int addMinute = now.getMinute() == 59 ? -1 : 1;
@@ -221,6 +366,15 @@ public class ElasticsearchIngestServiceTest {
         assertEquals(now.plusMinutes(2).format(ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")), lastPoint.get("timestamp"));
     }
 
+    @Test
+    public void givenLastPointWasRequestedWhenIngestingLaterPointThenLastPointIsTheLaterPoint() throws JSONException {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point().timestamp(now).measurement("aMeasurement", 10546L).build());
+        assertEquals(now.format(ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")), new JSONObject(last("series").getBody()).get("timestamp"));
+        ingest(seriesDefinition, point().timestamp(now.plusMinutes(3)).measurement("aMeasurement", 346346L).build());
+        assertEquals(now.plusMinutes(3).format(ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")), new JSONObject(last("series").getBody()).get("timestamp"));
+    }
+
     @Test
     public void givenNoSeriesWhenRequestingLastPointThenNothingIsReturned() {
         assertNull(last("series").getBody());
@@ -280,8 +434,11 @@ public class ElasticsearchIngestServiceTest {
         return TimeSeriesDefinition.builder();
     }
 
+    /**
+     * Rollups, statistics and latest points are written after the response, so wait for them to be done
+     */
     private ResponseEntity<IngestResponse> ingest(TimeSeriesDefinition seriesDefinition, String password, TimeSeriesPoint...points) {
-        return restTemplate.postForEntity(
+        ResponseEntity<IngestResponse> response = restTemplate.postForEntity(
                 "/{owner}/{seriesName}/{distance}",
                 request(points, seriesDefinition.getOwner(), password),
                 IngestResponse.class,
@@ -289,12 +446,33 @@ public class ElasticsearchIngestServiceTest {
                 seriesDefinition.getName(),
                 seriesDefinition.getDistance()
         );
+        awaitSecondaryWrites();
+        return response;
+    }
+
+    private void awaitSecondaryWrites() {
+        try {
+            assertTrue(secondaryWrites.await(Duration.ofSeconds(30)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
     }
 
     private ResponseEntity<IngestResponse> ingest(TimeSeriesDefinition seriesDefinition, TimeSeriesPoint...points) {
         return ingest(seriesDefinition, password, points);
     }
 
+    private Map<String, Object> latestPoint(TimeSeriesDefinition seriesDefinition) throws IOException {
+        return client.highLevel()
+                .get(new GetRequest(LatestPoints.indexName, LatestPoints.indexType, LatestPoints.id(seriesDefinition, emptyMap())))
+                .getSource();
+    }
+
+    private Long latestTimestamp(TimeSeriesDefinition seriesDefinition, Map<String, String> categories) {
+        return elasticsearchHelper.get(LatestPoints.indexName, LatestPoints.id(seriesDefinition, categories), LatestPoints.timestampField);
+    }
+
     private ResponseEntity<String> last(String series) {
         return restTemplate.getForEntity(
                 "/{owner}/{seriesName}/minutes/last",
@@ -0,0 +1,270 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.ingest.api.IngestResponse;
+import no.difi.statistics.ingest.config.AppConfig;
+import no.difi.statistics.ingest.elasticsearch.config.ElasticsearchConfig;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.test.utils.ElasticsearchHelper;
+import no.difi.statistics.test.utils.ElasticsearchRule;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.EnvironmentTestUtils;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.MINUTES;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.MeasurementDistance.hours;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpMethod.POST;
+import static org.springframework.http.MediaType.APPLICATION_JSON_UTF8;
+import static org.springframework.test.web.client.ExpectedCount.manyTimes;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+/**
+ * Rollups of ingested series, which are summed live for points after their boundary and from the source series for
+ * earlier points.
+ */
+@SpringBootTest(
+        webEnvironment = RANDOM_PORT
+)
+@ContextConfiguration(classes = {AppConfig.class, ElasticsearchConfig.class}, initializers = RollupEngineTest.Initializer.class)
+@RunWith(SpringRunner.class)
+public class RollupEngineTest {
+
+    @ClassRule
+    public static ElasticsearchRule elasticsearchRule = new ElasticsearchRule();
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(ConfigurableApplicationContext applicationContext) {
+            EnvironmentTestUtils.addEnvironment(
+                    applicationContext.getEnvironment(),
+                    "no.difi.statistics.elasticsearch.host=" + elasticsearchRule.getHost(),
+                    "no.difi.statistics.elasticsearch.port=" + elasticsearchRule.getPort(),
+                    "no.difi.statistics.elasticsearch.rollup.distances=hours,days"
+            );
+        }
+
+    }
+
+    private final ZonedDateTime past = ZonedDateTime.of(2016, 3, 3, 0, 0, 0, 0, UTC);
+    private final String owner = "123456789";
+    private final String password = "aPassword";
+    private final TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("series").minutes().owner(owner);
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private Client client;
+    @Autowired
+    private RestTemplate authenticationRestTemplate;
+    @Autowired
+    private SeriesWatermarks seriesWatermarks;
+    @Autowired
+    private SecondaryWrites secondaryWrites;
+    @Autowired
+    private RollupEngine rollupEngine;
+    private ElasticsearchHelper elasticsearchHelper;
+
+    @Before
+    public void prepare() {
+        MockRestServiceServer.bindTo(authenticationRestTemplate).build()
+                .expect(manyTimes(), requestTo("http://authenticate:8080/authentications"))
+                .andExpect(method(POST))
+                .andRespond(withSuccess("{\"authenticated\": true}", APPLICATION_JSON_UTF8));
+        elasticsearchHelper = new ElasticsearchHelper(client);
+        elasticsearchHelper.waitForGreenStatus();
+    }
+
+    @After
+    public void cleanup() {
+        elasticsearchHelper.clear();
+        seriesWatermarks.invalidateAll();
+        rollupEngine.invalidateAll();
+    }
+
+    @Test
+    public void whenIngestingPointsBeforeBoundaryThenTheyAreSummedIntoRollups() throws IOException {
+        ingest(
+                point(past, 1L),
+                point(past.plusMinutes(1), 2L),
+                point(past.plusHours(1), 4L)
+        );
+        awaitBackfilled(hours);
+        awaitBackfilled(days);
+        awaitSums(hours, sums(past, 3L, past.plusHours(1), 4L));
+        awaitSums(days, sums(past, 7L));
+    }
+
+    @Test
+    public void givenPointIndexedBeforeRollupWasCreatedWhenIngestingThenItIsBackfilled() throws IOException {
+        TimeSeriesPoint earlierPoint = point(past, 1L);
+        elasticsearchHelper.index(
+                resolveIndexName().seriesDefinition(seriesDefinition).at(past).single(),
+                "default",
+                IdResolver.id(earlierPoint, seriesDefinition),
+                format("{\"timestamp\": \"%s\", \"aMeasurement\": 1}", past)
+        );
+        ingest(point(past.plusMinutes(30), 2L));
+        awaitBackfilled(hours);
+        awaitSums(hours, sums(past, 3L));
+    }
+
+    @Test
+    public void givenBackfilledRollupWhenIngestingLatePointThenItsPeriodIsSummedAgain() throws IOException {
+        ingest(point(past, 1L));
+        awaitBackfilled(hours);
+        ingest(point(past.plusMinutes(1), 2L));
+        awaitSums(hours, sums(past, 3L));
+    }
+
+    @Test
+    public void whenIngestingPointsAfterBoundaryThenTheyAreAddedToRollups() {
+        ZonedDateTime future = ZonedDateTime.now(UTC).plusDays(2).truncatedTo(MINUTES).withMinute(0);
+        ingest(point(future, 1L));
+        ingest(point(future.plusMinutes(1), 2L));
+        assertEquals(sums(future, 3L), sums(hours));
+    }
+
+    @Test
+    public void whenIngestingThenRollupsAreKeptApartFromTheSeriesOfTheirDistance() {
+        ingest(point(ZonedDateTime.now(UTC).plusDays(2), 1L));
+        String ordinaryHours = resolveIndexName().seriesDefinition(
+                TimeSeriesDefinition.builder().name(seriesDefinition.getName()).hours().owner(owner)
+        ).list().get(0).replace("*", "");
+        String rollupHours = resolveIndexName().seriesDefinition(Rollups.definition(seriesDefinition, hours)).list().get(0).replace("*", "");
+        boolean ordinaryFound = false, rollupFound = false;
+        for (String index : elasticsearchHelper.indices()) {
+            ordinaryFound |= index.startsWith(ordinaryHours);
+            rollupFound |= index.startsWith(rollupHours);
+        }
+        assertFalse(ordinaryFound);
+        assertTrue(rollupFound);
+    }
+
+    private void awaitBackfilled(MeasurementDistance distance) throws IOException {
+        String id = Rollups.id(Rollups.definition(seriesDefinition, distance));
+        await(() -> {
+            try {
+                Map<String, Object> coverage = client.highLevel().get(new GetRequest(Rollups.indexName, Rollups.indexType, id)).getSource();
+                assertFalse(Boolean.TRUE.equals(coverage.get(Rollups.staleField)));
+                return Boolean.TRUE.equals(coverage.get(Rollups.backfilledField));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private void awaitSums(MeasurementDistance distance, Map<Long, Long> expected) {
+        await(() -> expected.equals(sums(distance)));
+        assertEquals(expected, sums(distance));
+    }
+
+    private static void await(Supplier<Boolean> condition) {
+        for (int i = 0; i < 100 && !condition.get(); i++) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the measurement of the rollup per timestamp (epoch millis), summed over its documents
+     */
+    private Map<Long, Long> sums(MeasurementDistance distance) {
+        elasticsearchHelper.refresh();
+        Map<Long, Long> sums = new TreeMap<>();
+        for (SearchHit hit : elasticsearchHelper.search(
+                resolveIndexName().seriesDefinition(Rollups.definition(seriesDefinition, distance)).list(), null, null
+        ).getHits()) {
+            Object timestamp = hit.getSourceAsMap().get("timestamp");
+            long epochMillis = timestamp instanceof Number
+                    ? ((Number) timestamp).longValue()
+                    : Timestamp.parse(timestamp.toString()).toInstant().toEpochMilli();
+            sums.merge(epochMillis, ((Number) hit.getSourceAsMap().get("aMeasurement")).longValue(), Long::sum);
+        }
+        return sums;
+    }
+
+    private static Map<Long, Long> sums(Object... timestampsAndValues) {
+        Map<Long, Long> sums = new TreeMap<>();
+        for (int i = 0; i < timestampsAndValues.length; i += 2)
+            sums.put(((ZonedDateTime) timestampsAndValues[i]).toInstant().toEpochMilli(), (Long) timestampsAndValues[i + 1]);
+        return sums;
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp, long value) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("aMeasurement", value).build();
+    }
+
+    private ResponseEntity<IngestResponse> ingest(TimeSeriesPoint... points) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Basic " + Base64.getEncoder().encodeToString(format("%s:%s", owner, password).getBytes()));
+        ResponseEntity<IngestResponse> response = restTemplate.postForEntity(
+                "/{owner}/{seriesName}/{distance}",
+                new HttpEntity<>(points, headers),
+                IngestResponse.class,
+                seriesDefinition.getOwner(),
+                seriesDefinition.getName(),
+                seriesDefinition.getDistance()
+        );
+        assertTrue(response.getStatusCode().is2xxSuccessful());
+        awaitSecondaryWrites();
+        return response;
+    }
+
+    /**
+     * Rollups are written after the response, so wait for them to be done
+     */
+    private void awaitSecondaryWrites() {
+        try {
+            assertTrue(secondaryWrites.await(Duration.ofSeconds(30)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+
+}
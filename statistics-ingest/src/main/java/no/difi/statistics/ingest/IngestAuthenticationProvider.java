@@ -1,5 +1,11 @@
 package no.difi.statistics.ingest;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpEntity;
@@ -16,20 +22,68 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.web.client.RestTemplate;
 
 import javax.xml.bind.annotation.XmlRootElement;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singletonList;
 
-public class IngestAuthenticationProvider implements AuthenticationProvider {
+/**
+ * Authenticates against the authenticate service and caches its answers. Cache keys hold the username and a SHA-256
+ * hash of the password, salted with a random value generated at start-up, so passwords are never held in the cache and
+ * the keys are useless outside this process. Rejections are cached for a shorter time than acceptances. Failures to
+ * reach the service are not cached.
+ */
+public class IngestAuthenticationProvider implements AuthenticationProvider, MeterBinder {
 
     private Logger logger = LoggerFactory.getLogger(getClass());
     private RestTemplate restTemplate;
     private String serviceHost;
     private int servicePort;
+    private final byte[] salt = new byte[32];
+    private final Cache<String, Boolean> authentications;
 
     public IngestAuthenticationProvider(RestTemplate restTemplate, String serviceHost, int servicePort) {
+        this(restTemplate, serviceHost, servicePort, 10_000, Duration.ofMinutes(5), Duration.ofSeconds(30));
+    }
+
+    public IngestAuthenticationProvider(
+            RestTemplate restTemplate,
+            String serviceHost,
+            int servicePort,
+            long cacheSize,
+            Duration acceptedTimeToLive,
+            Duration rejectedTimeToLive
+    ) {
         this.restTemplate = restTemplate;
         this.serviceHost = serviceHost;
         this.servicePort = servicePort;
+        new SecureRandom().nextBytes(salt);
+        this.authentications = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfter(new Expiry<String, Boolean>() {
+
+                    @Override
+                    public long expireAfterCreate(String key, Boolean authenticated, long currentTime) {
+                        return (authenticated ? acceptedTimeToLive : rejectedTimeToLive).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Boolean authenticated, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, authenticated, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Boolean authenticated, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                })
+                .recordStats()
+                .build();
     }
 
     public Authentication authenticate(Authentication authentication)
@@ -37,13 +91,37 @@ public class IngestAuthenticationProvider implements AuthenticationProvider {
         String username = authentication.getPrincipal().toString();
         Object credentials = authentication.getCredentials();
         String password = credentials == null ? null : credentials.toString();
+        Boolean authenticated = authentications.get(key(username, password), k -> isAuthenticated(username, password));
+        if (!authenticated) {
+            throw new BadCredentialsException(username);
+        }
+        return new UsernamePasswordAuthenticationToken(username, password, singletonList(new SimpleGrantedAuthority("USER")));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, authentications, "authentications");
+    }
+
+    private boolean isAuthenticated(String username, String password) {
         ResponseEntity<AuthenticationResponse> response = authenticate(requestEntity(username, password));
         if (response == null || response.getBody() == null)
             throw new AuthenticationServiceException("No response from authenticate service");
-        if (!response.getBody().isAuthenticated()) {
-            throw new BadCredentialsException(username);
+        return response.getBody().isAuthenticated();
+    }
+
+    private String key(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(username.getBytes(UTF_8));
+            digest.update((byte) 0);
+            if (password != null)
+                digest.update(password.getBytes(UTF_8));
+            return username + ":" + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AuthenticationServiceException("Failed to hash credentials", e);
         }
-        return new UsernamePasswordAuthenticationToken(username, password, singletonList(new SimpleGrantedAuthority("USER")));
     }
 
     private ResponseEntity<AuthenticationResponse> authenticate(HttpEntity<AuthenticationRequest> request) {
@@ -4,6 +4,8 @@ import no.difi.statistics.ingest.api.IngestResponse;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import static java.lang.String.format;
@@ -12,6 +14,23 @@ public interface IngestService {
 
     IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints);
 
+    /**
+     * Ingest points as they are read from the iterator, in chunks of at most <code>chunkSize</code> points. Only one
+     * chunk is held in memory at a time.
+     */
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, int chunkSize) {
+        IngestResponse.Builder response = IngestResponse.builder();
+        List<TimeSeriesPoint> chunk = new ArrayList<>(chunkSize);
+        while (dataPoints.hasNext()) {
+            chunk.add(dataPoints.next());
+            if (chunk.size() == chunkSize || !dataPoints.hasNext()) {
+                ingest(seriesDefinition, chunk).getStatuses().forEach(response::status);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        return response.build();
+    }
+
     TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition);
 
     class TimeSeriesPointAlreadyExists extends RuntimeException {
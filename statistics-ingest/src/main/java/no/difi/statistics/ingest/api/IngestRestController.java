@@ -1,5 +1,10 @@
 package no.difi.statistics.ingest.api;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import no.difi.statistics.ingest.IngestService;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
@@ -9,18 +14,26 @@ import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.view.RedirectView;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 
 @RestController
 public class IngestRestController {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+    public static final String APPLICATION_CBOR_VALUE = "application/cbor";
+
     private IngestService ingestService;
+    private ObjectReader pointReader;
+    private int streamChunkSize;
 
-    public IngestRestController(IngestService ingestService) {
+    public IngestRestController(IngestService ingestService, ObjectMapper objectMapper, int streamChunkSize) {
         this.ingestService = ingestService;
+        this.pointReader = objectMapper.readerFor(TimeSeriesPoint.class);
+        this.streamChunkSize = streamChunkSize;
     }
 
     @GetMapping("/")
@@ -34,9 +47,15 @@ public class IngestRestController {
         // Do nothing
     }
 
+    @ExceptionHandler({JsonProcessingException.class, RuntimeJsonMappingException.class})
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public void invalidContent() {
+        // Do nothing
+    }
+
     @PostMapping(
             value = "{owner}/{seriesName}/{distance}",
-            consumes = MediaType.APPLICATION_JSON_UTF8_VALUE
+            consumes = {MediaType.APPLICATION_JSON_UTF8_VALUE, APPLICATION_SMILE_VALUE, APPLICATION_CBOR_VALUE}
     )
     public IngestResponse ingest(
             @PathVariable String owner,
@@ -50,6 +69,29 @@ public class IngestRestController {
         );
     }
 
+    /**
+     * Ingest newline-delimited JSON points as they are read, without holding the whole body in memory. Points before
+     * invalid content will already have been ingested when the request fails.
+     */
+    @PostMapping(
+            value = "{owner}/{seriesName}/{distance}",
+            consumes = APPLICATION_NDJSON_VALUE
+    )
+    public IngestResponse ingestStream(
+            @PathVariable String owner,
+            @PathVariable String seriesName,
+            @PathVariable MeasurementDistance distance,
+            HttpServletRequest request
+    ) throws IOException {
+        try (MappingIterator<TimeSeriesPoint> dataPoints = pointReader.readValues(request.getInputStream())) {
+            return ingestService.ingest(
+                    TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner),
+                    dataPoints,
+                    streamChunkSize
+            );
+        }
+    }
+
     @GetMapping("{owner}/{seriesName}/{distance}/last")
     public TimeSeriesPoint last(
             @PathVariable String owner,
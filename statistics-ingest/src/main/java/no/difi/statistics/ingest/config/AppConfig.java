@@ -1,16 +1,22 @@
 package no.difi.statistics.ingest.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import no.difi.statistics.ingest.IngestAuthenticationProvider;
 import no.difi.statistics.ingest.api.IngestRestController;
 import no.difi.statistics.ingest.poc.RandomIngesterRestController;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
@@ -24,8 +30,10 @@ import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.Date;
+import java.util.List;
 
 import static java.lang.String.format;
 import static java.util.Collections.singletonList;
@@ -44,10 +52,45 @@ public class AppConfig extends WebSecurityConfigurerAdapter {
 
     @Autowired
     private BackendConfig backendConfig;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private List<Jackson2ObjectMapperBuilderCustomizer> objectMapperCustomizers;
+    @Autowired
+    private ApplicationContext applicationContext;
+    @Autowired
+    private Environment environment;
 
     @Bean
     public IngestRestController api() {
-        return new IngestRestController(backendConfig.ingestService());
+        return new IngestRestController(
+                backendConfig.ingestService(),
+                objectMapper,
+                environment.getProperty("no.difi.statistics.ingest.stream.chunk-size", Integer.class, 1000)
+        );
+    }
+
+    /**
+     * Replaces Spring's default Smile converter, so that Smile uses the same Jackson settings as JSON. Same for CBOR.
+     */
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter() {
+        return new MappingJackson2SmileHttpMessageConverter(objectMapper(Jackson2ObjectMapperBuilder.smile()));
+    }
+
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter() {
+        return new MappingJackson2CborHttpMessageConverter(objectMapper(Jackson2ObjectMapperBuilder.cbor()));
+    }
+
+    /**
+     * @return an object mapper built with the customizations Spring Boot applies to the JSON object mapper, on a builder
+     * of its own so that the shared builder is not changed
+     */
+    private ObjectMapper objectMapper(Jackson2ObjectMapperBuilder builder) {
+        builder.applicationContext(applicationContext);
+        objectMapperCustomizers.forEach(customizer -> customizer.customize(builder));
+        return builder.build();
     }
 
     @Bean
@@ -61,8 +104,15 @@ public class AppConfig extends WebSecurityConfigurerAdapter {
     }
 
     @Bean
-    public AuthenticationProvider authenticationProvider() {
-        return new IngestAuthenticationProvider(authenticationRestTemplate(), "authenticate", 8080);
+    public IngestAuthenticationProvider authenticationProvider() {
+        return new IngestAuthenticationProvider(
+                authenticationRestTemplate(),
+                "authenticate",
+                8080,
+                environment.getProperty("no.difi.statistics.ingest.authentication.cache.size", Long.class, 10_000L),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.ingest.authentication.cache.accepted-ttl-seconds", Long.class, 300L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.ingest.authentication.cache.rejected-ttl-seconds", Long.class, 30L))
+        );
     }
 
     @Bean
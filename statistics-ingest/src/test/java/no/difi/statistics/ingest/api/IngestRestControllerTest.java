@@ -1,6 +1,9 @@
 package no.difi.statistics.ingest.api;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import no.difi.statistics.ingest.IngestService;
@@ -27,13 +30,17 @@ import org.springframework.web.client.RestTemplate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static no.difi.statistics.model.MeasurementDistance.minutes;
 import static org.apache.tomcat.util.codec.binary.Base64.encodeBase64;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
@@ -47,7 +54,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest(webEnvironment = RANDOM_PORT)
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "no.difi.statistics.ingest.stream.chunk-size=2")
 @ContextConfiguration(classes = {AppConfig.class, MockBackendConfig.class})
 @AutoConfigureMockMvc
 public class IngestRestControllerTest {
@@ -108,6 +115,27 @@ public class IngestRestControllerTest {
         );
     }
 
+    @Test
+    public void whenSendingSmileRequestThenPointsAreIngested() throws Exception {
+        whenSendingBinaryRequestThenPointsAreIngested(IngestRestController.APPLICATION_SMILE_VALUE, new SmileFactory());
+    }
+
+    @Test
+    public void whenSendingCborRequestThenPointsAreIngested() throws Exception {
+        whenSendingBinaryRequestThenPointsAreIngested(IngestRestController.APPLICATION_CBOR_VALUE, new CBORFactory());
+    }
+
+    private void whenSendingBinaryRequestThenPointsAreIngested(String contentType, JsonFactory format) throws Exception {
+        validCredentials("aUser", "aPassword");
+        List<TimeSeriesPoint> points = asList(aPoint(1), aPoint(2));
+        mockMvc.perform(request().distance("minutes").ingest(contentType, binary(format, points)))
+                .andExpect(status().is(HttpStatus.OK.value()));
+        verify(service).ingest(
+                eq(TimeSeriesDefinition.builder().name("aTimeSeries").distance(minutes).owner("aUser")),
+                eq(points)
+        );
+    }
+
     @Test
     public void whenSendingValidMinuteRequestThenExpectNormalResponse() throws Exception {
         validCredentials("aUser", "aPassword");
@@ -145,6 +173,24 @@ public class IngestRestControllerTest {
                 .andExpect(status().is(HttpStatus.UNAUTHORIZED.value()));
     }
 
+    @Test
+    public void whenRepeatingRequestWithValidLoginThenAuthenticationServiceIsCalledOnce() throws Exception {
+        validCredentials("aCachedUser", "aPassword");
+        for (int i = 0; i < 2; i++)
+            mockMvc.perform(request().owner("aCachedUser").user("aCachedUser").content(json(singletonList(aPoint()))).distance("minutes").ingest())
+                    .andExpect(status().is(HttpStatus.OK.value()));
+        authenticationService.verify();
+    }
+
+    @Test
+    public void whenRepeatingRequestWithWrongPasswordThenAuthenticationServiceIsCalledOnce() throws Exception {
+        invalidCredentials("aRejectedUser", "wrongPassword");
+        for (int i = 0; i < 2; i++)
+            mockMvc.perform(request().owner("aRejectedUser").user("aRejectedUser").password("wrongPassword").content(json(singletonList(aPoint()))).distance("minutes").ingest())
+                    .andExpect(status().is(HttpStatus.UNAUTHORIZED.value()));
+        authenticationService.verify();
+    }
+
     @Test
     public void whenRequestingLastPointInASeriesThenNoAuthenticationIsRequired() throws Exception {
         when(service.last(any(TimeSeriesDefinition.class))).thenReturn(aPoint());
@@ -173,6 +219,29 @@ public class IngestRestControllerTest {
                 .andExpect(status().is(HttpStatus.OK.value()));
     }
 
+    @Test
+    public void whenStreamingPointsThenTheyAreIngestedInChunks() throws Exception {
+        validCredentials("aUser", "aPassword");
+        when(service.ingest(any(TimeSeriesDefinition.class), any(Iterator.class), anyInt())).thenCallRealMethod();
+        when(service.ingest(any(TimeSeriesDefinition.class), anyListOf(TimeSeriesPoint.class)))
+                .thenAnswer(invocation -> okResponse(invocation.<List<?>>getArgument(1).size()));
+        List<TimeSeriesPoint> points = asList(aPoint(1), aPoint(2), aPoint(3));
+        mockMvc.perform(request().content(ndjson(points)).distance("minutes").ingestStream())
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(MockMvcResultMatchers.jsonPath("statuses", hasSize(3)));
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("aTimeSeries").distance(minutes).owner("aUser");
+        verify(service).ingest(eq(seriesDefinition), eq(asList(points.get(0), points.get(1))));
+        verify(service).ingest(eq(seriesDefinition), eq(singletonList(points.get(2))));
+    }
+
+    @Test
+    public void whenStreamingInvalidContentThenExpect400Response() throws Exception {
+        validCredentials("aUser", "aPassword");
+        when(service.ingest(any(TimeSeriesDefinition.class), any(Iterator.class), anyInt())).thenCallRealMethod();
+        mockMvc.perform(request().content("invalidJson").distance("minutes").ingestStream())
+                .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+    }
+
     private TimeSeriesPoint aPoint() {
         return TimeSeriesPoint.builder()
                 .measurement("antall", 2)
@@ -180,6 +249,20 @@ public class IngestRestControllerTest {
                 .build();
     }
 
+    private TimeSeriesPoint aPoint(int minute) {
+        return TimeSeriesPoint.builder()
+                .measurement("antall", minute)
+                .timestamp(ZonedDateTime.of(2016, 3, 3, 20, minute, 0, 0, ZoneId.of("UTC")))
+                .build();
+    }
+
+    private IngestResponse okResponse(int size) {
+        IngestResponse.Builder response = IngestResponse.builder();
+        for (int i = 0; i < size; i++)
+            response.status(IngestResponse.Status.Ok);
+        return response.build();
+    }
+
     public static RequestBuilder request() {
         return new RequestBuilder();
     }
@@ -233,6 +316,20 @@ public class IngestRestControllerTest {
                     .content(content);
         }
 
+        MockHttpServletRequestBuilder ingest(String contentType, byte[] content) {
+            return post("/{owner}/{seriesName}/{distance}", owner, series, distance)
+                    .contentType(contentType)
+                    .header("Authorization", authorizationHeader(user, password))
+                    .content(content);
+        }
+
+        MockHttpServletRequestBuilder ingestStream() {
+            return post("/{owner}/{seriesName}/{distance}", owner, series, distance)
+                    .contentType(IngestRestController.APPLICATION_NDJSON_VALUE)
+                    .header("Authorization", authorizationHeader(user, password))
+                    .content(content);
+        }
+
         MockHttpServletRequestBuilder last() {
             return get("/{owner}/{seriesName}/{distance}/last", owner, series, distance);
         }
@@ -246,6 +343,20 @@ public class IngestRestControllerTest {
                 .writeValueAsString(object);
     }
 
+    private byte[] binary(JsonFactory format, Object object) throws Exception {
+        return new ObjectMapper(format)
+                .registerModule(new JavaTimeModule())
+                .registerModule(new Jdk8Module())
+                .writeValueAsBytes(object);
+    }
+
+    private String ndjson(List<?> objects) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (Object object : objects)
+            content.append(json(object)).append('\n');
+        return content.toString();
+    }
+
     private void validCredentials(String username, String password) {
         authenticationService
                 .expect(once(), requestTo("http://authenticate:8080/authentications"))
@@ -1,28 +1,49 @@
 package no.difi.statistics.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.IOException;
+import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 
 import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
 import static java.util.Collections.unmodifiableMap;
 import static java.util.stream.Collectors.joining;
 
 
+/**
+ * A point of a time series. Points read from Elasticsearch are built from epoch millis, and get a UTC
+ * <code>ZonedDateTime</code> only when it is asked for, so that large query results which are written as columns of
+ * millis never create one. Points built from a <code>ZonedDateTime</code> keep it, with its zone.
+ * <p>
+ * The timestamp is written to and read from JSON with {@link TimestampCodec} where it is UTC with at most millis, and
+ * with <code>ISO_OFFSET_DATE_TIME</code> otherwise, so that neither ingest nor query creates a
+ * <code>ZonedDateTime</code> per point. It is always written as a string, as the applications are configured to do.
+ * Points read from JSON are in UTC with millis, as the default of Jackson to adjust dates to UTC made them before.
+ */
 @XmlRootElement
+@JsonPropertyOrder({"timestamp", "measurements", "categories"})
 public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
 
-    private ZonedDateTime timestamp;
+    private ZonedDateTime timestamp; // Null until asked for if the point was built from epoch millis
+    private long epochMillis;
     private Map<String, Long> measurements = new HashMap<>();
     private Map<String, String> categories;
 
@@ -31,10 +52,34 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
     }
 
     @XmlElement
+    @JsonIgnore
     public ZonedDateTime getTimestamp() {
+        if (timestamp == null)
+            timestamp = Instant.ofEpochMilli(epochMillis).atZone(UTC);
         return timestamp;
     }
 
+    @JsonIgnore
+    public long getEpochMillis() {
+        if (timestamp == null)
+            return epochMillis;
+        return timestamp.toEpochSecond() * 1000 + timestamp.getNano() / 1_000_000;
+    }
+
+    @JsonProperty("timestamp")
+    private String timestampAsString() {
+        if (timestamp == null || UTC.equals(timestamp.getOffset()) && timestamp.getNano() % 1_000_000 == 0)
+            return TimestampCodec.encode(getEpochMillis());
+        return ISO_OFFSET_DATE_TIME.format(timestamp);
+    }
+
+    @JsonProperty("timestamp")
+    @JsonDeserialize(using = EpochMillisDeserializer.class)
+    private void timestamp(long epochMillis) {
+        this.timestamp = null;
+        this.epochMillis = epochMillis;
+    }
+
     @XmlElement
     public Map<String, Long> getMeasurements() {
         return measurements;
@@ -59,7 +104,9 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
 
     @Override
     public int compareTo(TimeSeriesPoint other) {
-        int difference = timestamp.compareTo(other.timestamp);
+        int difference = Long.compare(getEpochMillis(), other.getEpochMillis());
+        if (difference == 0)
+            difference = Integer.compare(nanosOfMillisecond(), other.nanosOfMillisecond());
         if (difference == 0 && categories != null && other.categories != null)
             return categoriesAsString().compareTo(other.categoriesAsString());
         else
@@ -86,6 +133,7 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
         private Map<String, Long> measurements = new HashMap<>();
         private Map<String, String> categories = new HashMap<>();
         private Function<ZonedDateTime, ZonedDateTime> timestampModifier;
+        private boolean hasEpochMillis;
 
         Builder() {
             this.instance = new TimeSeriesPoint();
@@ -93,6 +141,14 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
 
         public Builder timestamp(ZonedDateTime timestamp) {
             instance.timestamp = timestamp;
+            hasEpochMillis = false;
+            return this;
+        }
+
+        public Builder timestamp(long epochMillis) {
+            instance.timestamp = null;
+            instance.epochMillis = epochMillis;
+            hasEpochMillis = true;
             return this;
         }
 
@@ -124,13 +180,15 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
         public Builder add(TimeSeriesPoint other) {
             measurements(other.measurements);
             instance.timestamp = other.timestamp;
+            instance.epochMillis = other.epochMillis;
+            hasEpochMillis = true;
             return this;
         }
 
         public TimeSeriesPoint build() {
-            if (instance.timestamp == null) throw new IllegalArgumentException("timestamp");
+            if (instance.timestamp == null && !hasEpochMillis) throw new IllegalArgumentException("timestamp");
             if (timestampModifier != null)
-                instance.timestamp = timestampModifier.apply(instance.timestamp);
+                instance.timestamp = timestampModifier.apply(instance.getTimestamp());
             instance.measurements = measurements;
             if (!categories.isEmpty()) {
                 instance.categories = new HashMap<>();
@@ -141,6 +199,26 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
 
     }
 
+    /**
+     * Reads a timestamp string with {@link TimestampCodec}, and leaves other forms to the deserializer of
+     * <code>ZonedDateTime</code>
+     */
+    static class EpochMillisDeserializer extends JsonDeserializer<Long> {
+
+        @Override
+        public Long deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            if (!parser.hasToken(JsonToken.VALUE_STRING))
+                return ctxt.readValue(parser, ZonedDateTime.class).toInstant().toEpochMilli();
+            String value = parser.getText().trim();
+            try {
+                return TimestampCodec.decode(value);
+            } catch (DateTimeParseException e) {
+                throw ctxt.weirdStringException(value, ZonedDateTime.class, e.getMessage());
+            }
+        }
+
+    }
+
     /**
      * Use custom deserializer to maintain immutability property
      */
@@ -156,7 +234,7 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
     @Override
     public String toString() {
         return "TimeSeriesPoint{" +
-                "timestamp=" + timestamp +
+                "timestamp=" + (timestamp != null ? timestamp : TimestampCodec.encode(epochMillis)) +
                 ", measurements=" + measurements +
                 (categories != null ? format(", categories=%s", categoriesAsString()) : "") +
         '}';
@@ -173,14 +251,26 @@ public class TimeSeriesPoint implements Comparable<TimeSeriesPoint> {
 
         TimeSeriesPoint that = (TimeSeriesPoint) o;
 
-        if (!timestamp.equals(that.timestamp)) return false;
+        if (!sameTimestamp(that)) return false;
         if (!measurements.equals(that.measurements)) return false;
         return categories != null ? categories.equals(that.categories) : that.categories == null;
     }
 
+    /**
+     * Timestamps are the same if they are the same instant, whatever their zones, since points read from JSON are in
+     * UTC whatever zone they were written in.
+     */
+    private boolean sameTimestamp(TimeSeriesPoint other) {
+        return getEpochMillis() == other.getEpochMillis() && nanosOfMillisecond() == other.nanosOfMillisecond();
+    }
+
+    private int nanosOfMillisecond() {
+        return timestamp == null ? 0 : timestamp.getNano() % 1_000_000;
+    }
+
     @Override
     public int hashCode() {
-        int result = timestamp.hashCode();
+        int result = Long.hashCode(getEpochMillis()); // Equal timestamps have equal millis
         result = 31 * result + measurements.hashCode();
         result = 31 * result + (categories != null ? categories.hashCode() : 0);
         return result;
@@ -0,0 +1,182 @@
+package no.difi.statistics.model;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Converts between epoch millis and ISO-8601 strings without going through <code>ZonedDateTime</code>, for where
+ * timestamps are strings: the JSON of points, the keys of date buckets and documents stored before timestamps were
+ * stored as epoch millis. Encoding gives the same string as <code>DateTimeFormatter.ISO_OFFSET_DATE_TIME</code> in UTC,
+ * and decoding accepts what it accepts. Dates are converted with the civil-from-days and days-from-civil algorithms of
+ * Howard Hinnant. Years outside 0000-9999 and offsets with seconds are left to <code>java.time</code>.
+ */
+public class TimestampCodec {
+
+    /**
+     * The longest string given by {@link #encode(long, byte[], int)}: <code>yyyy-MM-ddTHH:mm:ss.SSSZ</code>
+     */
+    public static final int maxLength = 24;
+
+    public static String encode(long epochMillis) {
+        byte[] bytes = new byte[maxLength];
+        int length = encode(epochMillis, bytes, 0);
+        if (length < 0)
+            return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(Instant.ofEpochMilli(epochMillis).atZone(UTC));
+        return new String(bytes, 0, length, US_ASCII);
+    }
+
+    /**
+     * Write the timestamp as ASCII to the target, which must have room for {@link #maxLength} bytes from the offset.
+     *
+     * @return the offset after the timestamp, or -1 if the year has other than four digits, in which case nothing is
+     * written and {@link #encode(long)} must be used
+     */
+    public static int encode(long epochMillis, byte[] target, int offset) {
+        long days = Math.floorDiv(epochMillis, 86400_000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86400_000L);
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999)
+            return -1;
+        int i = offset;
+        i = digits((int) year, 4, target, i);
+        target[i++] = '-';
+        i = digits(month, 2, target, i);
+        target[i++] = '-';
+        i = digits(day, 2, target, i);
+        target[i++] = 'T';
+        i = digits(millisOfDay / 3600_000, 2, target, i);
+        target[i++] = ':';
+        i = digits(millisOfDay / 60_000 % 60, 2, target, i);
+        target[i++] = ':';
+        i = digits(millisOfDay / 1000 % 60, 2, target, i);
+        int millis = millisOfDay % 1000;
+        if (millis != 0) {
+            // As ISO_LOCAL_TIME, which leaves out trailing zeros of the fraction
+            target[i++] = '.';
+            i = digits(millis, 3, target, i);
+            while (target[i - 1] == '0')
+                i--;
+        }
+        target[i++] = 'Z';
+        return i;
+    }
+
+    /**
+     * @return the epoch millis of the timestamp. The common form <code>yyyy-MM-ddTHH:mm[:ss[.fraction]]</code>
+     * followed by <code>Z</code> or an offset <code>+HH:mm</code> is decoded directly, and others by
+     * <code>java.time</code>. Fractions beyond millis are truncated, as by <code>Instant.toEpochMilli()</code>.
+     * @throws java.time.format.DateTimeParseException if the value is not an ISO-8601 offset date-time
+     */
+    public static long decode(String value) {
+        long epochMillis = decodeStrict(value);
+        if (epochMillis != Long.MIN_VALUE)
+            return epochMillis;
+        return ZonedDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the epoch millis of the value, or <code>Long.MIN_VALUE</code> if it is not on the common form
+     */
+    private static long decodeStrict(String value) {
+        int length = value.length();
+        if (length < 17 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T' || value.charAt(13) != ':')
+            return Long.MIN_VALUE;
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = 0;
+        int millis = 0;
+        int i = 16;
+        if (i < length && value.charAt(i) == ':') {
+            second = digits(value, i + 1, 2);
+            i += 3;
+            if (i < length && value.charAt(i) == '.') {
+                int start = ++i;
+                while (i < length && isDigit(value.charAt(i)))
+                    i++;
+                if (i == start || i - start > 9)
+                    return Long.MIN_VALUE;
+                for (int j = start; j < start + 3; j++)
+                    millis = millis * 10 + (j < i ? value.charAt(j) - '0' : 0);
+            }
+        }
+        if ((year | month | day | hour | minute | second) < 0
+                || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59)
+            return Long.MIN_VALUE;
+        int offsetSeconds;
+        if (i == length - 1 && value.charAt(i) == 'Z') {
+            offsetSeconds = 0;
+        } else if (i == length - 6 && (value.charAt(i) == '+' || value.charAt(i) == '-') && value.charAt(i + 3) == ':') {
+            int offsetHours = digits(value, i + 1, 2);
+            int offsetMinutes = digits(value, i + 4, 2);
+            if ((offsetHours | offsetMinutes) < 0 || offsetHours > 18 || offsetMinutes > 59)
+                return Long.MIN_VALUE;
+            offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (value.charAt(i) == '-' ? -1 : 1);
+        } else {
+            return Long.MIN_VALUE;
+        }
+        long epochSecond = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second - offsetSeconds;
+        return epochSecond * 1000 + millis;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    /**
+     * @return the value of the digits, or -1 if any of the characters is not a digit or the value is too short
+     */
+    private static int digits(String value, int start, int count) {
+        if (start + count > value.length())
+            return -1;
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(int value, int count, byte[] target, int offset) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + count;
+    }
+
+}
@@ -46,4 +46,8 @@ public class CommandFactory implements ApplicationContextAware {
         return applicationContext.getBean(AvailableSeriesQuery.Builder.class);
     }
 
+    public GetWatermark.Builder watermark() {
+        return applicationContext.getBean(GetWatermark.Builder.class);
+    }
+
 }
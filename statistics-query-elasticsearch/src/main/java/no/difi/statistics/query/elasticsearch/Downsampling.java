@@ -0,0 +1,151 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Comparator.comparingLong;
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+
+/**
+ * Limits the number of points of a query to the maximum given by its filter. The histogram distance is first made
+ * coarse enough for the time range to have no more buckets than the maximum, and what is still too much is reduced
+ * with Largest-Triangle-Three-Buckets. The distance is not made coarser when the time range has no start, since the
+ * first point of the series is not known before the query, nor for queries per category, since sum histograms are
+ * not per category. All points of the range are then read, and only reduced with Largest-Triangle-Three-Buckets.
+ */
+public class Downsampling {
+
+    /**
+     * @return the finest distance from the given one and up which gives at most the maximum number of buckets over the
+     * time range of the filter, or the given distance if the filter has no maximum or the range has no start
+     */
+    public static MeasurementDistance distance(MeasurementDistance distance, QueryFilter queryFilter) {
+        TimeRange timeRange = queryFilter.timeRange();
+        if (queryFilter.maxPoints() == null || timeRange == null || timeRange.from() == null)
+            return distance;
+        ZonedDateTime from = timeRange.from().withZoneSameInstant(UTC);
+        ZonedDateTime to = timeRange.to() != null ? timeRange.to().withZoneSameInstant(UTC) : ZonedDateTime.now(UTC);
+        MeasurementDistance result = distance;
+        for (MeasurementDistance candidate : MeasurementDistance.values()) {
+            if (candidate.lessThan(distance))
+                continue;
+            result = candidate;
+            if (buckets(from, to, candidate) <= queryFilter.maxPoints())
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * @return the points reduced to the maximum of the filter. Points of a query per category are reduced separately
+     * for each category, which shares the maximum between them.
+     */
+    public static List<TimeSeriesPoint> downsample(List<TimeSeriesPoint> points, QueryFilter queryFilter) {
+        Integer maxPoints = queryFilter.maxPoints();
+        if (maxPoints == null || points.size() <= maxPoints)
+            return points;
+        if (queryFilter.perCategory() == null)
+            return largestTriangleThreeBuckets(points, maxPoints);
+        Map<String, List<TimeSeriesPoint>> pointsPerCategory = new LinkedHashMap<>();
+        for (TimeSeriesPoint point : points)
+            pointsPerCategory.computeIfAbsent(point.getCategoryValue(queryFilter.perCategory()), k -> new ArrayList<>()).add(point);
+        List<TimeSeriesPoint> result = new ArrayList<>(maxPoints);
+        int remainder = maxPoints % pointsPerCategory.size();
+        for (List<TimeSeriesPoint> categoryPoints : pointsPerCategory.values())
+            result.addAll(largestTriangleThreeBuckets(categoryPoints, maxPoints / pointsPerCategory.size() + (remainder-- > 0 ? 1 : 0)));
+        result.sort(comparingLong(TimeSeriesPoint::getEpochMillis)); // Stable, so categories keep their order
+        return result;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets (Steinarsson, 2013). The first and last points are kept, and the points between
+     * are split into equally sized buckets. From each bucket the point is chosen which forms the largest triangle
+     * with the point chosen from the previous bucket and the average of the next bucket. With several measurements
+     * the areas are added up, each measurement scaled by its range so that large values do not dominate.
+     */
+    static List<TimeSeriesPoint> largestTriangleThreeBuckets(List<TimeSeriesPoint> points, int threshold) {
+        if (threshold >= points.size())
+            return points;
+        if (threshold == 0)
+            return Collections.emptyList();
+        if (threshold == 1)
+            return Collections.singletonList(points.get(0));
+        if (threshold == 2)
+            return Arrays.asList(points.get(0), points.get(points.size() - 1));
+        double[] x = new double[points.size()];
+        double[][] y = values(points);
+        for (int i = 0; i < points.size(); i++)
+            x[i] = points.get(i).getEpochMillis() - points.get(0).getEpochMillis();
+        List<TimeSeriesPoint> result = new ArrayList<>(threshold);
+        result.add(points.get(0));
+        double bucketSize = (double) (points.size() - 2) / (threshold - 2);
+        int a = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, points.size());
+            double averageX = average(x, end, nextEnd);
+            double[] averageY = new double[y.length];
+            for (int m = 0; m < y.length; m++)
+                averageY[m] = average(y[m], end, nextEnd);
+            int chosen = start;
+            double maxArea = -1;
+            for (int b = start; b < end; b++) {
+                double area = 0;
+                for (int m = 0; m < y.length; m++)
+                    area += Math.abs((x[a] - averageX) * (y[m][b] - y[m][a]) - (x[a] - x[b]) * (averageY[m] - y[m][a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = b;
+                }
+            }
+            result.add(points.get(chosen));
+            a = chosen;
+        }
+        result.add(points.get(points.size() - 1));
+        return result;
+    }
+
+    /**
+     * @return the values of each measurement, scaled to [0, 1] by the range of the measurement. A point without the
+     * measurement has the value 0.
+     */
+    private static double[][] values(List<TimeSeriesPoint> points) {
+        SortedSet<String> measurementIds = new TreeSet<>();
+        points.forEach(point -> measurementIds.addAll(point.getMeasurements().keySet()));
+        double[][] values = new double[measurementIds.size()][points.size()];
+        int m = 0;
+        for (String measurementId : measurementIds) {
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = 0; i < points.size(); i++) {
+                Long value = points.get(i).getMeasurements().get(measurementId);
+                values[m][i] = value != null ? value : 0;
+                min = Math.min(min, values[m][i]);
+                max = Math.max(max, values[m][i]);
+            }
+            for (int i = 0; i < points.size(); i++)
+                values[m][i] = max > min ? (values[m][i] - min) / (max - min) : 0;
+            m++;
+        }
+        return values;
+    }
+
+    private static double average(double[] values, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++)
+            sum += values[i];
+        return sum / (to - from);
+    }
+
+    private static long buckets(ZonedDateTime from, ZonedDateTime to, MeasurementDistance distance) {
+        return chronoUnit(distance).between(normalize(from, distance), normalize(to, distance)) + 1;
+    }
+
+}
@@ -4,17 +4,32 @@ import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.model.BatchQuery;
 import no.difi.statistics.query.model.QueryFilter;
+import no.difi.statistics.query.model.QueryPlan;
 import no.difi.statistics.query.QueryService;
 
 import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.util.Collections.emptyMap;
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.query.elasticsearch.Downsampling.distance;
+import static no.difi.statistics.query.elasticsearch.Downsampling.downsample;
 
 public class ElasticsearchQueryService implements QueryService {
 
     private CommandFactory commandFactory;
+    private QueryPlanner queryPlanner;
+    private QueryCoalescer queryCoalescer;
+    private MultiSearch multiSearch;
 
-    public ElasticsearchQueryService(CommandFactory commandFactory) {
+    public ElasticsearchQueryService(CommandFactory commandFactory, QueryPlanner queryPlanner, QueryCoalescer queryCoalescer, MultiSearch multiSearch) {
         this.commandFactory = commandFactory;
+        this.queryPlanner = queryPlanner;
+        this.queryCoalescer = queryCoalescer;
+        this.multiSearch = multiSearch;
     }
 
     @Override
@@ -22,17 +37,45 @@ public class ElasticsearchQueryService implements QueryService {
         return commandFactory.availableTimeSeries().build().execute();
     }
 
+    @Override
+    public List<TimeSeriesDefinition> availableTimeSeries(String owner) {
+        return commandFactory.availableTimeSeries().owner(owner).build().execute();
+    }
+
     @Override
     public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
-        return commandFactory.query()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+        return queryCoalescer.execute(() -> doQuery(seriesDefinition, queryFilter), "query", seriesDefinition, queryFilter);
+    }
+
+    private List<TimeSeriesPoint> doQuery(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        MeasurementDistance distance = queryFilter.perCategory() == null
+                ? distance(seriesDefinition.getDistance(), queryFilter)
+                : seriesDefinition.getDistance(); // Sum histograms are not per category
+        QueryPlan plan = queryPlanner.plan(seriesDefinition, distance, queryFilter);
+        if (plan.getSourceSeries().equals(seriesDefinition) && distance == seriesDefinition.getDistance())
+            return downsample(commandFactory.query()
+                    .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                    .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute(), queryFilter);
+        return downsample(doSumHistogram(plan, queryFilter), queryFilter);
+    }
+
+    @Override
+    public Stream<TimeSeriesPoint> stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        QueryPlan plan = queryPlanner.plan(seriesDefinition, seriesDefinition.getDistance(), queryFilter);
+        if (plan.getSourceSeries().equals(seriesDefinition) && queryFilter.maxPoints() == null)
+            return commandFactory.query()
+                    .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                    .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().stream();
+        return query(seriesDefinition, queryFilter).stream(); // Histograms and downsampled results are bounded
     }
 
     @Override
     public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
-        return commandFactory.percentile()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().execute();
+        return queryCoalescer.execute(
+                () -> commandFactory.percentile()
+                        .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().execute(),
+                "percentile", seriesDefinition, queryFilter, filter
+        );
     }
 
     @Override
@@ -41,30 +84,77 @@ public class ElasticsearchQueryService implements QueryService {
             MeasurementDistance targetDistance,
             QueryFilter queryFilter
     ){
-        return commandFactory.lastHistogram()
-                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+        MeasurementDistance distance = distance(targetDistance, queryFilter);
+        return queryCoalescer.execute(
+                () -> downsample(commandFactory.lastHistogram()
+                        .seriesDefinition(seriesDefinition).targetDistance(distance).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute(), queryFilter),
+                "lastHistogram", seriesDefinition, distance, queryFilter
+        );
     }
 
     @Override
     public TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
-        return commandFactory.sum()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+        QueryPlan plan = queryPlanner.planSum(seriesDefinition, queryFilter);
+        return queryCoalescer.execute(
+                () -> doSum(seriesDefinition, plan, queryFilter),
+                "sum", seriesDefinition, plan.getSourceSeries(), queryFilter // The timestamp is that of the series itself
+        );
+    }
+
+    private TimeSeriesPoint doSum(TimeSeriesDefinition seriesDefinition, QueryPlan plan, QueryFilter queryFilter) {
+        TimeSeriesPoint sum = commandFactory.sum()
+                .seriesDefinition(plan.getSourceSeries()).queryFilter(queryFilter)
                 .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+        if (sum == null || plan.getSourceSeries().equals(seriesDefinition))
+            return sum;
+        // The sum point has the timestamp of the last point of the series, not that of the last period of the rollup
+        TimeSeriesPoint last = last(seriesDefinition, queryFilter);
+        return TimeSeriesPoint.builder()
+                .timestamp(last != null ? last.getEpochMillis() : sum.getEpochMillis())
+                .measurements(sum.getMeasurements())
+                .categories(sum.getCategories().orElse(emptyMap()))
+                .build();
     }
 
     @Override
     public List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        QueryPlan plan = queryPlanner.plan(seriesDefinition, distance(targetDistance, queryFilter), queryFilter);
+        return queryCoalescer.execute(
+                () -> downsample(doSumHistogram(plan, queryFilter), queryFilter),
+                "sumHistogram", seriesDefinition, plan.getSourceSeries(), plan.getTargetDistance(), queryFilter
+        );
+    }
+
+    private List<TimeSeriesPoint> doSumHistogram(QueryPlan plan, QueryFilter queryFilter) {
         return commandFactory.sumHistogram()
-                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
+                .seriesDefinition(plan.getSourceSeries()).targetDistance(plan.getTargetDistance()).queryFilter(queryFilter)
                 .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
     }
 
     @Override
     public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
-        return commandFactory.last()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+        return queryCoalescer.execute(
+                () -> commandFactory.last()
+                        .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute(),
+                "last", seriesDefinition, queryFilter
+        );
+    }
+
+    @Override
+    public List<Object> batch(List<BatchQuery> queries) {
+        return multiSearch.execute(queries.stream().map(query -> (Supplier<Object>) () -> query.execute(this)).collect(toList()));
+    }
+
+    @Override
+    public QueryPlan explain(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return queryPlanner.plan(seriesDefinition, targetDistance, queryFilter);
+    }
+
+    @Override
+    public long watermark(String owner, String seriesName) {
+        return commandFactory.watermark().owner(owner).seriesName(seriesName).build().execute();
     }
 
 }
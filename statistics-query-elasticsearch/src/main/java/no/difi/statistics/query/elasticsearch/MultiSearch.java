@@ -0,0 +1,251 @@
+package no.difi.statistics.query.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Executes a batch of queries with their searches sent together in multi search requests. The queries run concurrently,
+ * and whenever all of them that have not yet finished are waiting for a search, the waiting searches are sent in one
+ * request. A batch of queries that search once each thus takes a single round trip to Elasticsearch, and queries that
+ * search more than once take one round trip for each search of the longest of them.
+ * <p>
+ * Since the queries of a batch wait for each other, a batch is only started once there is a thread for each of its
+ * queries. Batches wait for threads in turn, and are rejected with {@link RejectedExecutionException} when more than
+ * <code>queueSize</code> queries are waiting already.
+ */
+public class MultiSearch implements MeterBinder {
+
+    private static final ThreadLocal<Batch> currentBatch = new ThreadLocal<>();
+    private final RestHighLevelClient elasticsearchClient;
+    private final ExecutorService executor;
+    private final Semaphore threads;
+    private final Semaphore queue;
+    private final int maxQueries;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * @param executor must have at least <code>threads</code> threads, so that it starts each query without waiting
+     *                 for others to finish
+     */
+    public MultiSearch(RestHighLevelClient elasticsearchClient, ExecutorService executor, int threads, int queueSize, int maxQueries) {
+        if (maxQueries > threads || maxQueries > queueSize)
+            throw new IllegalArgumentException(
+                    "Maximum of " + maxQueries + " queries per batch exceeds the " + threads + " threads or queue size of " + queueSize
+            );
+        this.elasticsearchClient = elasticsearchClient;
+        this.executor = executor;
+        this.threads = new Semaphore(threads, true);
+        this.queue = new Semaphore(queueSize);
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * @return the results of the queries in the same order as the queries
+     */
+    public List<Object> execute(List<Supplier<Object>> queries) {
+        if (queries.size() > maxQueries)
+            throw new IllegalArgumentException("Batch of " + queries.size() + " queries exceeds the maximum of " + maxQueries);
+        acquireThreads(queries.size());
+        Batch batch = new Batch(queries.size());
+        List<CompletableFuture<Object>> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            Supplier<Object> query = queries.get(i);
+            try {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return batch.run(query);
+                    } finally {
+                        threads.release();
+                    }
+                }, executor));
+            } catch (RejectedExecutionException e) {
+                // Let the queries already started finish without the rest
+                threads.release(queries.size() - i);
+                for (int j = i; j < queries.size(); j++)
+                    batch.leave();
+                throw e;
+            }
+        }
+        return results.stream().map(MultiSearch::join).collect(toList());
+    }
+
+    private void acquireThreads(int count) {
+        if (!queue.tryAcquire(count))
+            throw new RejectedExecutionException("Too many queries waiting to be executed");
+        try {
+            threads.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to execute queries", e);
+        } finally {
+            queue.release(count);
+        }
+    }
+
+    /**
+     * @return whether the current thread executes a query of a batch, in which case its searches must go through
+     * {@link #search(SearchRequest)}
+     */
+    public static boolean isBatched() {
+        return currentBatch.get() != null;
+    }
+
+    /**
+     * Waits for the search to be sent along with the searches of the other queries of the current thread's batch.
+     */
+    public static SearchResponse search(SearchRequest request) {
+        return currentBatch.get().search(request);
+    }
+
+    /**
+     * Lets the rest of the current thread's batch, if any, search without waiting for this thread while it waits for
+     * something else.
+     */
+    public static <T> T awaiting(Supplier<T> wait) {
+        Batch batch = currentBatch.get();
+        if (batch == null)
+            return wait.get();
+        batch.leave();
+        try {
+            return wait.get();
+        } finally {
+            batch.enter();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("elasticsearch.multisearch.requests", requests, AtomicLong::get)
+                .description("Multi search requests sent for batches of queries").register(registry);
+        FunctionCounter.builder("elasticsearch.multisearch.searches", searches, AtomicLong::get)
+                .description("Searches sent in multi search requests").register(registry);
+    }
+
+    MultiSearchResponse multiSearch(MultiSearchRequest request) {
+        try {
+            return elasticsearchClient.multiSearch(request);
+        } catch (IOException e) {
+            try {
+                return elasticsearchClient.multiSearch(request);
+            } catch (IOException ee) {
+                throw new RuntimeException("Multi search failed (performed a retry after IOException)", ee);
+            }
+        }
+    }
+
+    private static Object join(CompletableFuture<Object> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private class Batch {
+
+        private final List<PendingSearch> pending = new ArrayList<>();
+        private int running;
+
+        private Batch(int size) {
+            this.running = size;
+        }
+
+        private Object run(Supplier<Object> query) {
+            currentBatch.set(this);
+            try {
+                return query.get();
+            } finally {
+                currentBatch.remove();
+                leave();
+            }
+        }
+
+        private synchronized void enter() {
+            running++;
+        }
+
+        private synchronized void leave() {
+            running--;
+            sendIfAllWaiting();
+        }
+
+        private synchronized SearchResponse search(SearchRequest request) {
+            PendingSearch search = new PendingSearch(request);
+            pending.add(search);
+            sendIfAllWaiting();
+            while (!search.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for multi search", e);
+                }
+            }
+            if (search.failure != null)
+                throw search.failure;
+            return search.response;
+        }
+
+        private void sendIfAllWaiting() {
+            if (pending.isEmpty() || pending.size() < running)
+                return;
+            MultiSearchRequest request = new MultiSearchRequest();
+            pending.forEach(search -> request.add(search.request));
+            requests.incrementAndGet();
+            searches.addAndGet(pending.size());
+            try {
+                MultiSearchResponse.Item[] items = multiSearch(request).getResponses();
+                for (int i = 0; i < items.length; i++) {
+                    if (items[i].isFailure())
+                        pending.get(i).failure = new RuntimeException("Search failed", items[i].getFailure());
+                    else
+                        pending.get(i).response = items[i].getResponse();
+                }
+            } catch (RuntimeException e) {
+                pending.forEach(search -> search.failure = e);
+            }
+            pending.forEach(search -> search.done = true);
+            pending.clear();
+            notifyAll();
+        }
+
+    }
+
+    private static class PendingSearch {
+
+        private final SearchRequest request;
+        private SearchResponse response;
+        private RuntimeException failure;
+        private boolean done;
+
+        private PendingSearch(SearchRequest request) {
+            this.request = request;
+        }
+
+    }
+
+}
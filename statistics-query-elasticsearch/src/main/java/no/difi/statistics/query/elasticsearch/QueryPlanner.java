@@ -0,0 +1,110 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.cache.RollupCoverageCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesCatalogue;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
+import no.difi.statistics.query.model.QueryFilter;
+import no.difi.statistics.query.model.QueryPlan;
+
+import java.time.ZonedDateTime;
+import java.util.Set;
+
+import static java.time.ZoneOffset.UTC;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+import static no.difi.statistics.query.model.QueryPlan.queryPlan;
+
+/**
+ * Chooses which series to read from. The reference is the requested series if its distance exists according to the
+ * series catalogue, otherwise the finest series of the same name available, and the requested one if none is. The
+ * plan reads from the coarsest rollup of the reference (see {@link Rollups}) between the reference and the target
+ * distance which gives the same sums as the reference, and from the reference itself if there is none. This holds when
+ * the rollup covers the time range, and the range starts and ends on period boundaries of the rollup. The indices of
+ * the plan are limited to those which exist according to the statistics of the series.
+ */
+public class QueryPlanner {
+
+    private final SeriesCatalogue seriesCatalogue;
+    private final SeriesStatisticsCache seriesStatisticsCache;
+    private final RollupCoverageCache rollupCoverageCache;
+    private final PartitioningPolicy partitioningPolicy;
+
+    public QueryPlanner(
+            SeriesCatalogue seriesCatalogue,
+            SeriesStatisticsCache seriesStatisticsCache,
+            RollupCoverageCache rollupCoverageCache,
+            PartitioningPolicy partitioningPolicy
+    ) {
+        this.seriesCatalogue = seriesCatalogue;
+        this.seriesStatisticsCache = seriesStatisticsCache;
+        this.rollupCoverageCache = rollupCoverageCache;
+        this.partitioningPolicy = partitioningPolicy;
+    }
+
+    public QueryPlan plan(TimeSeriesDefinition series, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        MeasurementDistance reference = referenceDistance(
+                seriesCatalogue.distances(series.getOwner(), series.getName()),
+                series.getDistance(),
+                targetDistance
+        );
+        return plan(series, TimeSeriesDefinition.builder().name(series.getName()).distance(reference).owner(series.getOwner()), targetDistance, queryFilter);
+    }
+
+    /**
+     * @return the plan of a sum of the requested series over the time range, which may read from a rollup of any
+     * distance, but not from other series
+     */
+    public QueryPlan planSum(TimeSeriesDefinition series, QueryFilter queryFilter) {
+        return plan(series, series, MeasurementDistance.years, queryFilter);
+    }
+
+    private QueryPlan plan(TimeSeriesDefinition series, TimeSeriesDefinition reference, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        TimeSeriesDefinition source = reference;
+        for (MeasurementDistance candidate : MeasurementDistance.values()) {
+            if (!reference.getDistance().lessThan(candidate) || targetDistance.lessThan(candidate))
+                continue;
+            TimeSeriesDefinition rollup = Rollups.definition(reference, candidate);
+            if (aligned(queryFilter.timeRange(), candidate, reference.getDistance()) && rollupCoverageCache.covers(rollup, queryFilter.timeRange()))
+                source = rollup; // Distances are ordered, so the last one is the coarsest
+        }
+        return queryPlan()
+                .series(series)
+                .targetDistance(targetDistance)
+                .sourceSeries(source)
+                .indices(resolveIndexName(partitioningPolicy).seriesDefinition(source).range(queryFilter.timeRange())
+                        .list(seriesStatisticsCache.partitions(source)))
+                .build();
+    }
+
+    private static MeasurementDistance referenceDistance(
+            Set<MeasurementDistance> available,
+            MeasurementDistance requested,
+            MeasurementDistance target
+    ) {
+        if (available.contains(requested))
+            return requested;
+        // Nothing known to be better if none is available (the catalogue may not yet know of a new series)
+        return available.stream().filter(d -> !target.lessThan(d)).findFirst().orElse(requested);
+    }
+
+    private static boolean aligned(TimeRange timeRange, MeasurementDistance candidate, MeasurementDistance reference) {
+        if (timeRange == null)
+            return true;
+        if (timeRange.from() != null && !isPeriodStart(timeRange.from(), candidate))
+            return false;
+        // The range includes its end, so the period following the last reference point must start a new candidate period
+        return timeRange.to() == null
+                || isPeriodStart(normalize(timeRange.to().withZoneSameInstant(UTC), reference).plus(1, chronoUnit(reference)), candidate);
+    }
+
+    private static boolean isPeriodStart(ZonedDateTime timestamp, MeasurementDistance distance) {
+        return normalize(timestamp.withZoneSameInstant(UTC), distance).isEqual(timestamp);
+    }
+
+}
@@ -0,0 +1,127 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Points of closed histogram buckets, keyed on the query kind, series, target distance, category filter and bucket
+ * start. A bucket without data is cached as an empty value. A bucket is closed once the lag has passed since it
+ * ended, which leaves time for points arriving shortly after their period. Points written later than that are picked up
+ * by also keying entries on the number of late writes to the series (see
+ * {@link SeriesStatisticsCache#currentLateWrites}), so that entries cached before a late write are no longer found. The
+ * cache is bounded by the estimated memory held by the points, and entries expire after a while.
+ */
+public class HistogramBucketCache implements MeterBinder {
+
+    private final Cache<Key, Optional<TimeSeriesPoint>> buckets;
+    private final Duration lag;
+    private final Clock clock;
+
+    public HistogramBucketCache(long maxBytes, Duration timeToLive, Duration lag, Clock clock) {
+        this.lag = lag;
+        this.clock = clock;
+        this.buckets = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Optional<TimeSeriesPoint> point) -> key.weight() + point.map(HistogramBucketCache::weight).orElse(0))
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return whether a bucket ending at the given time is closed, and can be cached
+     */
+    public boolean isClosed(ZonedDateTime end) {
+        return !end.plus(lag).isAfter(ZonedDateTime.now(clock));
+    }
+
+    /**
+     * @return the cached bucket, which is empty if the bucket has no data, or <code>null</code> if it is not cached
+     */
+    public Optional<TimeSeriesPoint> get(String kind, TimeSeriesDefinition series, long lateWrites, MeasurementDistance targetDistance, Map<String, String> categories, ZonedDateTime bucket) {
+        return buckets.getIfPresent(new Key(kind, series, lateWrites, targetDistance, categories, bucket));
+    }
+
+    public void put(String kind, TimeSeriesDefinition series, long lateWrites, MeasurementDistance targetDistance, Map<String, String> categories, ZonedDateTime bucket, TimeSeriesPoint point) {
+        buckets.put(new Key(kind, series, lateWrites, targetDistance, categories, bucket), Optional.ofNullable(point));
+    }
+
+    public void invalidateAll() {
+        buckets.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, buckets, "histogramBuckets");
+    }
+
+    private static int weight(TimeSeriesPoint point) {
+        int weight = 64;
+        for (String measurementId : point.getMeasurements().keySet())
+            weight += 64 + 2 * measurementId.length();
+        return weight + point.getCategories().map(HistogramBucketCache::weight).orElse(0);
+    }
+
+    private static int weight(Map<String, String> categories) {
+        int weight = 0;
+        for (Map.Entry<String, String> category : categories.entrySet())
+            weight += 64 + 2 * (category.getKey().length() + category.getValue().length());
+        return weight;
+    }
+
+    private static class Key {
+
+        private final String kind;
+        private final TimeSeriesDefinition series;
+        private final long lateWrites;
+        private final MeasurementDistance targetDistance;
+        private final Map<String, String> categories;
+        private final long bucket;
+
+        private Key(String kind, TimeSeriesDefinition series, long lateWrites, MeasurementDistance targetDistance, Map<String, String> categories, ZonedDateTime bucket) {
+            this.kind = kind;
+            this.series = series;
+            this.lateWrites = lateWrites;
+            this.targetDistance = targetDistance;
+            this.categories = categories;
+            this.bucket = bucket.toInstant().toEpochMilli();
+        }
+
+        private int weight() {
+            return 104 + 2 * (series.getOwner().length() + series.getName().length()) + HistogramBucketCache.weight(categories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return bucket == that.bucket &&
+                    lateWrites == that.lateWrites &&
+                    kind.equals(that.kind) &&
+                    series.equals(that.series) &&
+                    targetDistance == that.targetDistance &&
+                    categories.equals(that.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, series, lateWrites, targetDistance, categories, bucket);
+        }
+
+    }
+
+}
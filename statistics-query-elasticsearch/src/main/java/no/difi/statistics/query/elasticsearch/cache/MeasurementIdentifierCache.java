@@ -0,0 +1,91 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Measurement identifiers per series, keyed on the generic index name of the series. Entries are refreshed in the
+ * background when they are older than the refresh interval, and evicted when they are older than the time-to-live.
+ * Misses are looked up with the field capabilities API. Series without measurements are not cached, so that a new
+ * series is visible as soon as it has been ingested.
+ */
+public class MeasurementIdentifierCache implements MeterBinder {
+
+    private static final String timeFieldName = "timestamp";
+    private final RestClient elasticsearchClient;
+    private final LoadingCache<String, List<String>> measurementIdentifiers;
+
+    public MeasurementIdentifierCache(RestClient elasticsearchClient, long size, Duration refreshInterval, Duration timeToLive) {
+        this(elasticsearchClient, size, refreshInterval, timeToLive, ForkJoinPool.commonPool(), Ticker.systemTicker());
+    }
+
+    MeasurementIdentifierCache(
+            RestClient elasticsearchClient,
+            long size,
+            Duration refreshInterval,
+            Duration timeToLive,
+            Executor executor,
+            Ticker ticker
+    ) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.measurementIdentifiers = Caffeine.newBuilder()
+                .maximumSize(size)
+                .refreshAfterWrite(refreshInterval)
+                .expireAfterWrite(timeToLive)
+                .executor(executor)
+                .ticker(ticker)
+                .recordStats()
+                .build(this::load);
+    }
+
+    public List<String> get(String genericIndexName) {
+        List<String> result = measurementIdentifiers.get(genericIndexName);
+        return result != null ? result : emptyList();
+    }
+
+    public void invalidateAll() {
+        measurementIdentifiers.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, measurementIdentifiers, "measurementIdentifiers");
+    }
+
+    private List<String> load(String genericIndexName) {
+        List<String> result = new ArrayList<>();
+        try (InputStream response = elasticsearchClient
+                .performRequest("GET", "/" + genericIndexName + "/_field_caps?fields=*&ignore_unavailable=true")
+                .getEntity().getContent()) {
+            JsonReader reader = Json.createReader(response);
+            reader.readObject().getJsonObject("fields").keySet().stream()
+                    .filter(p -> !p.startsWith("_"))
+                    .filter(p -> !p.startsWith("category."))
+                    .filter(p -> !p.equals("category"))
+                    .filter(p -> !p.equals(timeFieldName))
+                    .forEach(result::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get available measurement ids", e);
+        }
+        return result.isEmpty() ? null : unmodifiableList(result);
+    }
+
+}
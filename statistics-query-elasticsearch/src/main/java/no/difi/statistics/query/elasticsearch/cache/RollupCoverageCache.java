@@ -0,0 +1,107 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+
+/**
+ * Coverage of the rollups maintained by ingest (see {@link Rollups}), so that queries only read a rollup for a time
+ * range it holds the sums of. A rollup covers any range once it has been backfilled, and before that only ranges
+ * starting at or after the first of its periods with points from its boundary on. A stale rollup, or one which does
+ * not exist, covers nothing. Entries are refreshed in the background when they are older than the refresh interval,
+ * which is therefore how long a rollup marked stale may still be read.
+ */
+public class RollupCoverageCache implements MeterBinder {
+
+    private static final Coverage missing = new Coverage(Long.MAX_VALUE, false, true);
+    private final RestClient elasticsearchClient;
+    private final LoadingCache<String, Coverage> coverage;
+
+    public RollupCoverageCache(RestClient elasticsearchClient, long size, Duration refreshInterval, Duration timeToLive) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.coverage = Caffeine.newBuilder()
+                .maximumSize(size)
+                .refreshAfterWrite(refreshInterval)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build(this::load);
+    }
+
+    /**
+     * @param timeRange the range to read, or null for all of it
+     * @return whether the rollup holds the sums of every point of its source series in the range
+     */
+    public boolean covers(TimeSeriesDefinition rollup, TimeRange timeRange) {
+        Coverage entry = coverage.get(Rollups.id(rollup));
+        if (entry.stale)
+            return false;
+        if (entry.backfilled)
+            return true;
+        return timeRange != null && timeRange.from() != null
+                && !timeRange.from().isBefore(Rollups.liveFrom(rollup.getDistance(), entry.boundary));
+    }
+
+    public void invalidateAll() {
+        coverage.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, coverage, "rollupCoverage");
+    }
+
+    private Coverage load(String id) {
+        Response response;
+        try {
+            response = elasticsearchClient.performRequest(
+                    "GET",
+                    "/" + Rollups.indexName + "/" + Rollups.indexType + "/" + id + "/_source"
+            );
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404)
+                return missing;
+            throw new RuntimeException("Failed to get coverage of rollup " + id, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get coverage of rollup " + id, e);
+        }
+        try (InputStream content = response.getEntity().getContent()) {
+            JsonObject source = Json.createReader(content).readObject();
+            return new Coverage(
+                    source.getJsonNumber(Rollups.boundaryField).longValue(),
+                    source.getBoolean(Rollups.backfilledField, false),
+                    source.getBoolean(Rollups.staleField, false)
+            );
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read coverage of rollup " + id, e);
+        }
+    }
+
+    private static class Coverage {
+
+        private final long boundary;
+        private final boolean backfilled;
+        private final boolean stale;
+
+        private Coverage(long boundary, boolean backfilled, boolean stale) {
+            this.boundary = boundary;
+            this.backfilled = backfilled;
+            this.stale = stale;
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import no.difi.statistics.elasticsearch.IndexNameResolver;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.elasticsearch.SharedIndices;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableList;
+import static no.difi.statistics.model.MeasurementDistance.*;
+
+/**
+ * In-memory catalogue of available series, refreshed in the background from the list of indices. Only index names not
+ * seen in a previous refresh are parsed. Reads are served from an immutable snapshot, sorted and grouped per owner.
+ * The first read after start-up or {@link #invalidate()} loads the catalogue synchronously, and a read of a snapshot
+ * older than the refresh interval refreshes it in the background, keeping the snapshot if that fails. Series in shared
+ * indices (see {@link SharedIndices}) have no indices of their own, and are found by aggregating over their series
+ * fields. Rollups (see {@link Rollups}) are not listed, as they are only read through the series they are rolled up
+ * from.
+ */
+public class SeriesCatalogue {
+
+    private static final String key = "catalogue";
+    private final RestClient elasticsearchClient;
+    private final LoadingCache<String, Snapshot> snapshot;
+    private final Map<String, Optional<TimeSeriesDefinition>> definitionsByIndex = new HashMap<>();
+
+    public SeriesCatalogue(RestClient elasticsearchClient, Duration refreshInterval) {
+        this(elasticsearchClient, refreshInterval, ForkJoinPool.commonPool(), Ticker.systemTicker());
+    }
+
+    SeriesCatalogue(RestClient elasticsearchClient, Duration refreshInterval, Executor executor, Ticker ticker) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.snapshot = Caffeine.newBuilder()
+                .refreshAfterWrite(refreshInterval)
+                .executor(executor)
+                .ticker(ticker)
+                .build(key -> load());
+    }
+
+    public List<TimeSeriesDefinition> all() {
+        return snapshot.get(key).all;
+    }
+
+    public List<TimeSeriesDefinition> owner(String owner) {
+        return snapshot.get(key).byOwner.getOrDefault(owner, emptyList());
+    }
+
+    public Set<MeasurementDistance> distances(String owner, String name) {
+        Set<MeasurementDistance> distances = EnumSet.noneOf(MeasurementDistance.class);
+        for (TimeSeriesDefinition definition : owner(owner))
+            if (definition.getName().equals(name))
+                distances.add(definition.getDistance());
+        return distances;
+    }
+
+    public void invalidate() {
+        snapshot.invalidateAll();
+    }
+
+    private synchronized Snapshot load() {
+        Set<String> indices = new HashSet<>();
+        try (InputStream response = elasticsearchClient.performRequest("GET", "/_cat/indices?h=index").getEntity().getContent();
+             Scanner scanner = new Scanner(response)) {
+            scanner.forEachRemaining(indices::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list available time series", e);
+        }
+        definitionsByIndex.keySet().retainAll(indices);
+        indices.forEach(index -> definitionsByIndex.computeIfAbsent(index, SeriesCatalogue::definition));
+        SortedSet<TimeSeriesDefinition> definitions = new TreeSet<>();
+        definitionsByIndex.values().forEach(definition -> definition.ifPresent(definitions::add));
+        if (indices.stream().anyMatch(SharedIndices::isShared))
+            definitions.addAll(sharedDefinitions());
+        definitions.removeIf(Rollups::isRollup);
+        return new Snapshot(definitions);
+    }
+
+    private List<TimeSeriesDefinition> sharedDefinitions() {
+        List<TimeSeriesDefinition> definitions = new ArrayList<>();
+        JsonValue afterKey = null;
+        do {
+            String request = "{\"size\": 0, \"aggs\": {\"series\": {\"composite\": {\"size\": 1000, \"sources\": [" +
+                    "{\"owner\": {\"terms\": {\"field\": \"" + SharedIndices.ownerField + "\"}}}," +
+                    "{\"series\": {\"terms\": {\"field\": \"" + SharedIndices.seriesField + "\"}}}," +
+                    "{\"distance\": {\"terms\": {\"field\": \"" + SharedIndices.distanceField + "\"}}}]" +
+                    (afterKey != null ? ", \"after\": " + afterKey : "") +
+                    "}}}}";
+            JsonObject aggregation;
+            try (InputStream response = elasticsearchClient.performRequest(
+                    "GET",
+                    "/" + SharedIndices.prefix + "@*/_search",
+                    emptyMap(),
+                    new StringEntity(request, ContentType.APPLICATION_JSON)
+            ).getEntity().getContent()) {
+                aggregation = Json.createReader(response).readObject().getJsonObject("aggregations").getJsonObject("series");
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to list available time series in shared indices", e);
+            }
+            for (JsonObject bucket : aggregation.getJsonArray("buckets").getValuesAs(JsonObject.class)) {
+                JsonObject key = bucket.getJsonObject("key");
+                definitions.add(TimeSeriesDefinition.builder()
+                        .name(key.getString("series"))
+                        .distance(MeasurementDistance.valueOf(key.getString("distance")))
+                        .owner(key.getString("owner")));
+            }
+            afterKey = aggregation.getJsonArray("buckets").isEmpty() ? null : aggregation.get("after_key");
+        } while (afterKey != null);
+        return definitions;
+    }
+
+    private static Optional<TimeSeriesDefinition> definition(String indexName) {
+        Matcher matcher = IndexNameResolver.pattern().matcher(indexName);
+        if (!matcher.find())
+            return Optional.empty();
+        return Optional.of(TimeSeriesDefinition.builder()
+                .name(matcher.group(2))
+                .distance(distanceFrom(matcher.group(3)))
+                .owner(matcher.group(1)));
+    }
+
+    private static MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
+        switch (indexNamePatternGroup3) {
+            case "minute": return minutes;
+            case "hour": return hours;
+            case "day": return days;
+            case "month": return months;
+            case "year": return years;
+            default: throw new IllegalArgumentException(indexNamePatternGroup3);
+        }
+    }
+
+    private static class Snapshot {
+
+        private final List<TimeSeriesDefinition> all;
+        private final Map<String, List<TimeSeriesDefinition>> byOwner = new HashMap<>();
+
+        private Snapshot(SortedSet<TimeSeriesDefinition> definitions) {
+            this.all = unmodifiableList(new ArrayList<>(definitions));
+            Map<String, List<TimeSeriesDefinition>> grouped = new HashMap<>();
+            for (TimeSeriesDefinition definition : all)
+                grouped.computeIfAbsent(definition.getOwner(), owner -> new ArrayList<>()).add(definition);
+            grouped.forEach((owner, definitionsOfOwner) -> byOwner.put(owner, unmodifiableList(definitionsOfOwner)));
+        }
+
+    }
+
+}
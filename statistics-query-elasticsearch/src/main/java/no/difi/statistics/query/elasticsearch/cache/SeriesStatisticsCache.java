@@ -0,0 +1,164 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.elasticsearch.SeriesStatistics;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Partitions and measurement ids per series from the statistics maintained by ingest (see {@link SeriesStatistics}), so
+ * that queries search only the indices of a series which exist. Entries are refreshed in the background when they are older than
+ * the refresh interval, and evicted when they are older than the time-to-live. The partitions of statistics which are
+ * missing or incomplete are not known, and queries then search every index the time range could have. That a series
+ * has no statistics is cached for the shorter time-to-live of missing statistics, so that each query of such a series
+ * does not look them up again, while statistics created by ingest are soon seen.
+ */
+public class SeriesStatisticsCache implements MeterBinder {
+
+    private static final Entry missing = new Entry(emptyList(), emptyList(), false, 0);
+    private final RestClient elasticsearchClient;
+    private final LoadingCache<String, Entry> statistics;
+
+    public SeriesStatisticsCache(RestClient elasticsearchClient, long size, Duration refreshInterval, Duration timeToLive, Duration missingTimeToLive) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.statistics = Caffeine.newBuilder()
+                .maximumSize(size)
+                .refreshAfterWrite(refreshInterval)
+                .expireAfter(new Expiry<String, Entry>() {
+
+                    @Override
+                    public long expireAfterCreate(String id, Entry entry, long currentTime) {
+                        return (entry == missing ? missingTimeToLive : timeToLive).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String id, Entry entry, long currentTime, long currentDuration) {
+                        return expireAfterCreate(id, entry, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String id, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                })
+                .recordStats()
+                .build(this::load);
+    }
+
+    /**
+     * @return the names of the indices the series has points in, or an empty list if the series has no statistics or
+     * they are incomplete
+     */
+    public List<String> partitions(TimeSeriesDefinition seriesDefinition) {
+        Entry entry = statistics.get(SeriesStatistics.id(seriesDefinition));
+        return entry.complete ? entry.partitions : emptyList();
+    }
+
+    /**
+     * @return the ids of the measurements the series has points with, or an empty list if the series has no statistics.
+     * The ids of incomplete statistics are those of the points ingested since the statistics were kept.
+     */
+    public List<String> measurementIds(TimeSeriesDefinition seriesDefinition) {
+        return statistics.get(SeriesStatistics.id(seriesDefinition)).measurementIds;
+    }
+
+    /**
+     * @return the number of writes to the series with points before its last timestamp, or zero if the series has no
+     * statistics
+     */
+    public long lateWrites(TimeSeriesDefinition seriesDefinition) {
+        return statistics.get(SeriesStatistics.id(seriesDefinition)).lateWrites;
+    }
+
+    /**
+     * Like {@link #lateWrites}, but read from Elasticsearch instead of the cache, which is updated with what is read.
+     * A late write is thus seen at once, instead of at the next refresh.
+     */
+    public long currentLateWrites(TimeSeriesDefinition seriesDefinition) {
+        String id = SeriesStatistics.id(seriesDefinition);
+        Entry entry = load(id);
+        statistics.put(id, entry);
+        return entry.lateWrites;
+    }
+
+    public void invalidateAll() {
+        statistics.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, statistics, "seriesStatistics");
+    }
+
+    private Entry load(String id) {
+        Response response;
+        try {
+            response = elasticsearchClient.performRequest(
+                    "GET",
+                    "/" + SeriesStatistics.indexName + "/" + SeriesStatistics.indexType + "/" + id + "/_source"
+            );
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404)
+                return missing;
+            throw new RuntimeException("Failed to get statistics of series " + id, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get statistics of series " + id, e);
+        }
+        try (InputStream content = response.getEntity().getContent()) {
+            JsonObject source = Json.createReader(content).readObject();
+            return new Entry(
+                    strings(source, "partitions"),
+                    strings(source, "measurementIds"),
+                    source.getBoolean(SeriesStatistics.completeField, false), // Statistics written before completeness was kept are incomplete
+                    source.containsKey(SeriesStatistics.lateWritesField) ? source.getJsonNumber(SeriesStatistics.lateWritesField).longValue() : 0
+            );
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read statistics of series " + id, e);
+        }
+    }
+
+    private static List<String> strings(JsonObject source, String field) {
+        if (!source.containsKey(field))
+            return emptyList();
+        return unmodifiableList(source.getJsonArray(field).getValuesAs(JsonString.class).stream()
+                .map(JsonString::getString)
+                .collect(toList()));
+    }
+
+    private static class Entry {
+
+        private final List<String> partitions;
+        private final List<String> measurementIds;
+        private final boolean complete;
+        private final long lateWrites;
+
+        private Entry(List<String> partitions, List<String> measurementIds, boolean complete, long lateWrites) {
+            this.partitions = partitions;
+            this.measurementIds = measurementIds;
+            this.complete = complete;
+            this.lateWrites = lateWrites;
+        }
+
+    }
+
+}
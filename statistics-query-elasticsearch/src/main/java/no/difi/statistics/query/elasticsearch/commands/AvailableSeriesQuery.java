@@ -1,58 +1,21 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
-import no.difi.statistics.elasticsearch.IndexNameResolver;
-import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
-import org.elasticsearch.client.RestClient;
+import no.difi.statistics.query.elasticsearch.cache.SeriesCatalogue;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-
-import static java.util.stream.Collectors.toList;
-import static no.difi.statistics.model.MeasurementDistance.*;
 
 public class AvailableSeriesQuery {
 
-    private RestClient elasticSearchClient;
+    private SeriesCatalogue seriesCatalogue;
+    private String owner;
 
     private AvailableSeriesQuery() {
         // Use builder
     }
 
     public List<TimeSeriesDefinition> execute() {
-        List<String> indices = new ArrayList<>();
-        try (InputStream response = elasticSearchClient.performRequest("GET", "/_cat/indices?h=index").getEntity().getContent();
-             Scanner scanner = new Scanner(response)) {
-            scanner.forEachRemaining(indices::add);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to list available time series", e);
-        }
-        return indices.stream()
-                .map(IndexNameResolver.pattern()::matcher)
-                .filter(Matcher::find)
-                .map(matcher -> TimeSeriesDefinition.builder()
-                        .name(matcher.group(2))
-                        .distance(distanceFrom(matcher.group(3)))
-                        .owner(matcher.group(1))
-                )
-                .distinct()
-                .sorted()
-                .collect(toList());
-    }
-
-    private MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
-        switch (indexNamePatternGroup3) {
-            case "minute": return minutes;
-            case "hour": return hours;
-            case "day": return days;
-            case "month": return months;
-            case "year": return years;
-            default: throw new IllegalArgumentException(indexNamePatternGroup3);
-        }
+        return owner != null ? seriesCatalogue.owner(owner) : seriesCatalogue.all();
     }
 
     public static Builder builder() {
@@ -63,8 +26,13 @@ public class AvailableSeriesQuery {
 
         private AvailableSeriesQuery instance = new AvailableSeriesQuery();
 
-        public Builder elasticsearchClient(RestClient client) {
-            instance.elasticSearchClient = client;
+        public Builder seriesCatalogue(SeriesCatalogue seriesCatalogue) {
+            instance.seriesCatalogue = seriesCatalogue;
+            return this;
+        }
+
+        public Builder owner(String owner) {
+            instance.owner = owner;
             return this;
         }
 
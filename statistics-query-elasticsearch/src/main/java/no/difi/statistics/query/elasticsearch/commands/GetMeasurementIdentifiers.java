@@ -1,46 +1,26 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.elasticsearch.IndexNameResolver;
-import org.elasticsearch.client.RestClient;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.cache.MeasurementIdentifierCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 
-import javax.json.Json;
-import javax.json.JsonReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-
-import static java.util.stream.Collectors.toSet;
 
 public class GetMeasurementIdentifiers {
 
-    private static final String timeFieldName = "timestamp";
-    private RestClient elasticsearchClient;
+    private MeasurementIdentifierCache measurementIdentifierCache;
+    private SeriesStatisticsCache seriesStatisticsCache;
+    private PartitioningPolicy partitioningPolicy = PartitioningPolicy.defaults();
+    private TimeSeriesDefinition seriesDefinition;
     private List<String> indexNames;
 
     private List<String> doExecute() {
-        String genericIndexName = IndexNameResolver.generic(indexNames.get(0));
-        Set<String> result = new HashSet<>();
-        try (InputStream response = elasticsearchClient
-                .performRequest("GET", "/" + genericIndexName + "/_mappings?ignore_unavailable=true")
-                .getEntity().getContent()) {
-            JsonReader reader = Json.createReader(response);
-            reader.readObject().forEach(
-                    (key, value) -> result.addAll(
-                            value.asJsonObject().getJsonObject("mappings").getJsonObject("default")
-                                    .getJsonObject("properties").keySet().stream()
-                                    .filter(p -> !p.startsWith("category."))
-                                    .filter(p -> !p.equals("category"))
-                                    .filter(p -> !p.equals(timeFieldName))
-                                    .collect(toSet())
-                    )
-            );
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to get available measurement ids", e);
-        }
-        return new ArrayList<>(result);
+        // The mapping of a shared index has the measurements of every series in it
+        if (seriesDefinition != null && seriesStatisticsCache != null && partitioningPolicy.isShared(seriesDefinition))
+            return seriesStatisticsCache.measurementIds(seriesDefinition);
+        return measurementIdentifierCache.get(IndexNameResolver.generic(indexNames.get(0)));
     }
 
     public static Builder builder() {
@@ -51,8 +31,23 @@ public class GetMeasurementIdentifiers {
 
         private GetMeasurementIdentifiers instance = new GetMeasurementIdentifiers();
 
-        public Builder elasticsearchClient(RestClient client) {
-            instance.elasticsearchClient = client;
+        public Builder measurementIdentifierCache(MeasurementIdentifierCache cache) {
+            instance.measurementIdentifierCache = cache;
+            return this;
+        }
+
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
+        Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
+            instance.seriesDefinition = seriesDefinition;
             return this;
         }
 
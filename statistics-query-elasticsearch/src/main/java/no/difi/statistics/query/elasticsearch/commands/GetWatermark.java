@@ -0,0 +1,103 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.elasticsearch.SeriesStatistics;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.util.Collections.emptyMap;
+
+/**
+ * Sum of the versions of the statistics documents of all distances of a series and of their rollups (see
+ * {@link SeriesStatistics} and {@link Rollups}). Ingest updates the statistics of a series whenever points are written
+ * to it, and those of a rollup whenever its sums change, so this changes on every write to the series and on no other.
+ * Unlike refresh counts, it moves even when the shards of the series are search idle, and it is not moved by writes to
+ * other series in the same shared index.
+ */
+public class GetWatermark {
+
+    private RestClient elasticsearchClient;
+    private String owner;
+    private String seriesName;
+
+    private GetWatermark() {
+        // Use builder
+    }
+
+    public long execute() {
+        JsonArrayBuilder ids = Json.createArrayBuilder();
+        for (MeasurementDistance distance : MeasurementDistance.values()) {
+            TimeSeriesDefinition series = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+            ids.add(SeriesStatistics.id(series));
+            for (MeasurementDistance rollupDistance : MeasurementDistance.values())
+                if (distance.lessThan(rollupDistance))
+                    ids.add(Rollups.id(Rollups.definition(series, rollupDistance)));
+        }
+        String body = Json.createObjectBuilder().add("ids", ids).build().toString();
+        try (InputStream response = elasticsearchClient
+                .performRequest(
+                        "POST",
+                        "/" + SeriesStatistics.indexName + "/" + SeriesStatistics.indexType + "/_mget",
+                        emptyMap(),
+                        new StringEntity(body, ContentType.APPLICATION_JSON)
+                )
+                .getEntity().getContent()) {
+            JsonReader reader = Json.createReader(response);
+            long watermark = 0;
+            for (JsonValue doc : reader.readObject().getJsonArray("docs")) {
+                JsonObject document = (JsonObject) doc;
+                if (document.containsKey("_version"))
+                    watermark += document.getJsonNumber("_version").longValue();
+            }
+            return watermark;
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 404)
+                return 0; // No statistics index yet
+            throw new RuntimeException("Failed to get watermark of " + owner + "@" + seriesName, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get watermark of " + owner + "@" + seriesName, e);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private GetWatermark instance = new GetWatermark();
+
+        public Builder elasticsearchClient(RestClient client) {
+            instance.elasticsearchClient = client;
+            return this;
+        }
+
+        public Builder owner(String owner) {
+            instance.owner = owner;
+            return this;
+        }
+
+        public Builder seriesName(String seriesName) {
+            instance.seriesName = seriesName;
+            return this;
+        }
+
+        public GetWatermark build() {
+            return instance;
+        }
+
+    }
+
+}
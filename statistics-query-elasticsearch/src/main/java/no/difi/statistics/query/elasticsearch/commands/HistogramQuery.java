@@ -1,16 +1,28 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.HistogramBucketCache;
+import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 
-import java.util.List;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.function.Function;
+
+import static java.time.ZoneOffset.UTC;
+import static no.difi.statistics.elasticsearch.Timestamp.chronoUnit;
+import static no.difi.statistics.elasticsearch.Timestamp.normalize;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
 
 abstract class HistogramQuery extends Query {
 
     private static final String timeFieldName = "timestamp";
+    private static final int maxCachedBucketsPerQuery = 100_000;
 
     public abstract List<TimeSeriesPoint> execute();
 
@@ -21,6 +33,128 @@ abstract class HistogramQuery extends Query {
                 .dateHistogramInterval(dateHistogramInterval(targetDistance));
     }
 
+    /**
+     * Answer buckets which are closed (see {@link HistogramBucketCache#isClosed}) and entirely within the time range
+     * from the cache, and search for the rest. Only the cached buckets before the first missing one are used, so a
+     * single search from that bucket covers the rest of the range. Closed buckets returned by the search are added to
+     * the cache.
+     * <p>
+     * Cached buckets are keyed on the number of late writes to the series. The count kept by the statistics cache may
+     * be as old as its refresh interval, so when any bucket is found the count is read again, and the buckets are
+     * looked up with it if it has changed. A late write thus invalidates cached buckets as soon as its statistics are
+     * written.
+     */
+    List<TimeSeriesPoint> withBucketCache(
+            HistogramBucketCache cache,
+            String kind,
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter,
+            Function<QueryFilter, List<TimeSeriesPoint>> search
+    ) {
+        TimeRange timeRange = queryFilter.timeRange();
+        if (cache == null || timeRange == null || timeRange.from() == null)
+            return search.apply(queryFilter);
+        ZonedDateTime now = ZonedDateTime.now(UTC);
+        long lateWrites = seriesStatisticsCache != null ? seriesStatisticsCache.lateWrites(seriesDefinition) : 0;
+        ZonedDateTime from = timeRange.from().withZoneSameInstant(UTC);
+        ZonedDateTime last = timeRange.to() != null ? min(timeRange.to().withZoneSameInstant(UTC), now) : now;
+        List<ZonedDateTime> buckets = new ArrayList<>();
+        for (ZonedDateTime bucket = normalize(from, targetDistance); !bucket.isAfter(last); bucket = next(bucket, targetDistance)) {
+            if (buckets.size() == maxCachedBucketsPerQuery)
+                return search.apply(queryFilter);
+            buckets.add(bucket);
+        }
+        List<TimeSeriesPoint> result = new ArrayList<>();
+        int cachedBuckets = cached(cache, kind, seriesDefinition, lateWrites, targetDistance, queryFilter, buckets, result);
+        if (cachedBuckets > 0 && seriesStatisticsCache != null) {
+            long currentLateWrites = seriesStatisticsCache.currentLateWrites(seriesDefinition);
+            if (currentLateWrites != lateWrites) {
+                lateWrites = currentLateWrites;
+                result.clear();
+                cachedBuckets = cached(cache, kind, seriesDefinition, lateWrites, targetDistance, queryFilter, buckets, result);
+            }
+        }
+        if (cachedBuckets == buckets.size())
+            return result;
+        ZonedDateTime firstMissing = buckets.get(cachedBuckets);
+        List<TimeSeriesPoint> searched = search.apply(
+                queryFilter()
+                        .range(max(firstMissing, timeRange.from()), timeRange.to())
+                        .categories(queryFilter.categories())
+                        .perCategory(queryFilter.perCategory())
+                        .build()
+        );
+        Map<ZonedDateTime, TimeSeriesPoint> searchedPerBucket = new HashMap<>();
+        for (TimeSeriesPoint point : searched)
+            searchedPerBucket.put(normalize(point.getTimestamp().withZoneSameInstant(UTC), targetDistance), point);
+        for (ZonedDateTime bucket : buckets.subList(cachedBuckets, buckets.size()))
+            if (isCacheable(cache, bucket, seriesDefinition, targetDistance, timeRange))
+                cache.put(kind, seriesDefinition, lateWrites, targetDistance, queryFilter.categories(), bucket, searchedPerBucket.get(bucket));
+        result.addAll(searched);
+        return result;
+    }
+
+    /**
+     * Add the points of the cached buckets before the first missing one to the result
+     *
+     * @return the number of buckets found
+     */
+    private static int cached(
+            HistogramBucketCache cache,
+            String kind,
+            TimeSeriesDefinition seriesDefinition,
+            long lateWrites,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter,
+            List<ZonedDateTime> buckets,
+            List<TimeSeriesPoint> result
+    ) {
+        int found = 0;
+        for (ZonedDateTime bucket : buckets) {
+            Optional<TimeSeriesPoint> cached = isCacheable(cache, bucket, seriesDefinition, targetDistance, queryFilter.timeRange())
+                    ? cache.get(kind, seriesDefinition, lateWrites, targetDistance, queryFilter.categories(), bucket)
+                    : null;
+            if (cached == null)
+                break;
+            cached.ifPresent(result::add);
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * A bucket can be cached when it is closed and all of it lies within the time range. The last point of a bucket
+     * is one series distance before the start of the next bucket.
+     */
+    private static boolean isCacheable(
+            HistogramBucketCache cache,
+            ZonedDateTime bucket,
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            TimeRange timeRange
+    ) {
+        ZonedDateTime next = next(bucket, targetDistance);
+        if (!cache.isClosed(next))
+            return false;
+        if (bucket.isBefore(timeRange.from()))
+            return false;
+        return timeRange.to() == null
+                || !next.minus(1, chronoUnit(seriesDefinition.getDistance())).isAfter(timeRange.to());
+    }
+
+    static ZonedDateTime next(ZonedDateTime bucket, MeasurementDistance distance) {
+        return bucket.plus(1, chronoUnit(distance));
+    }
+
+    private static ZonedDateTime min(ZonedDateTime a, ZonedDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static ZonedDateTime max(ZonedDateTime a, ZonedDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+
     private static DateHistogramInterval dateHistogramInterval(MeasurementDistance distance) {
         switch (distance) {
             case minutes: return DateHistogramInterval.MINUTE;
@@ -1,8 +1,11 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.HistogramBucketCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -12,14 +15,12 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggre
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.metrics.sum.Sum;
 
-import java.time.ZonedDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
 
@@ -29,22 +30,33 @@ public class LastHistogramQuery extends HistogramQuery {
     private QueryFilter queryFilter;
     private MeasurementDistance targetDistance;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private HistogramBucketCache bucketCache;
 
     public List<TimeSeriesPoint> execute() {
-        return lastPerDistance(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
+        return withBucketCache(
+                bucketCache,
+                "last",
+                seriesDefinition,
                 targetDistance,
-                queryFilter
+                queryFilter,
+                filter -> lastPerDistance(
+                        indexNames(seriesDefinition, filter.timeRange()),
+                        targetDistance,
+                        filter
+                )
         );
     }
 
     private List<TimeSeriesPoint> lastPerDistance(List<String> indexNames, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                lastPerDistanceAggregation(targetDistance, getMeasurementIdentifiersCommand.indexNames(indexNames).execute())
+                lastPerDistanceAggregation(
+                        targetDistance,
+                        getMeasurementIdentifiersCommand.seriesDefinition(seriesDefinition).indexNames(indexNames).execute()
+                )
         ));
         if (response.getAggregations() != null)
             return points(response.getAggregations().get(targetDistance.name()), queryFilter.categories());
@@ -66,11 +78,9 @@ public class LastHistogramQuery extends HistogramQuery {
     }
 
     private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket) {
-        return TimeSeriesPoint.builder().timestamp(timestamp(bucket)).measurements(measurements(bucket));
-    }
-
-    private ZonedDateTime timestamp(MultiBucketsAggregation.Bucket bucket) {
-        return ZonedDateTime.parse(timestampAggregation(bucket).getBuckets().get(0).getKeyAsString());
+        return TimeSeriesPoint.builder()
+                .timestamp(epochMillis(timestampAggregation(bucket).getBuckets().get(0)))
+                .measurements(measurements(bucket));
     }
 
     private Map<String, Long> measurements(MultiBucketsAggregation.Bucket bucket) {
@@ -98,6 +108,16 @@ public class LastHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
@@ -118,6 +138,11 @@ public class LastHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder bucketCache(HistogramBucketCache bucketCache) {
+            instance.bucketCache = bucketCache;
+            return this;
+        }
+
         public LastHistogramQuery build() {
             return instance;
         }
@@ -1,19 +1,29 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
-import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.elasticsearch.LatestPoints;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
 
+import java.io.IOException;
+import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map;
 
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
-import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
-import static org.elasticsearch.search.aggregations.BucketOrder.key;
+import static java.util.Collections.emptyMap;
+import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurements;
+import static org.elasticsearch.search.sort.SortOrder.DESC;
 
 public class LastQuery extends SinglePointQuery {
 
@@ -23,25 +33,74 @@ public class LastQuery extends SinglePointQuery {
 
     @Override
     public TimeSeriesPoint execute() {
-        return last(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
+        List<String> indexNames = indexNames(seriesDefinition, queryFilter.timeRange());
+        TimeSeriesPoint latest = latest(indexNames);
+        return latest != null ? latest : last(indexNames, queryFilter);
+    }
+
+    /**
+     * @return the latest point of the series with the categories of the filter (see {@link LatestPoints}), or null if
+     * it is not kept, cannot be relied on or is not within the time range, in which case the last point must be
+     * searched for
+     */
+    private TimeSeriesPoint latest(List<String> indexNames) {
+        Map<String, String> categories = queryFilter.categories();
+        String id = LatestPoints.id(seriesDefinition, categories);
+        String idWithoutCategories = LatestPoints.id(seriesDefinition, emptyMap());
+        MultiGetRequest request = new MultiGetRequest().add(LatestPoints.indexName, LatestPoints.indexType, id);
+        if (!id.equals(idWithoutCategories)) // Tells whether the documents of combinations are kept
+            request.add(LatestPoints.indexName, LatestPoints.indexType, idWithoutCategories);
+        MultiGetResponse response;
+        try {
+            response = elasticsearchClient.multiGet(request);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND)
+                return null;
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get latest point of " + seriesDefinition, e);
+        }
+        Map<String, Object> source = null;
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed() || !item.getResponse().isExists())
+                return null;
+            Map<String, Object> itemSource = item.getResponse().getSource();
+            if (LatestPoints.isStale(itemSource))
+                return null;
+            if (item.getId().equals(id))
+                source = itemSource;
+            else if (LatestPoints.isPartial(itemSource))
+                return null;
+        }
+        if (source == null)
+            return null;
+        ZonedDateTime timestamp = LatestPoints.timestamp(source);
+        TimeRange timeRange = queryFilter.timeRange();
+        if (timeRange != null && (timeRange.from() != null && timestamp.isBefore(timeRange.from())
+                || timeRange.to() != null && timestamp.isAfter(timeRange.to())))
+            return null;
+        Map<String, Long> measurements = LatestPoints.measurements(source);
+        measurementIds(indexNames).forEach(measurementId -> measurements.putIfAbsent(measurementId, 0L)); // As the sums of the search
+        return TimeSeriesPoint.builder()
+                .timestamp(timestamp)
+                .measurements(measurements)
+                .categories(categories)
+                .build();
     }
 
     private TimeSeriesPoint last(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                sumPerTimestampAggregation("last", measurementIds(indexNames)).order(key(false)).size(1)
+                summarizeMeasurements("last", measurementIds(indexNames), null, DESC).size(1)
         ));
         return pointFromLastAggregation(response, queryFilter.categories());
     }
 
     private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
+        return getMeasurementIdentifiersCommand.seriesDefinition(seriesDefinition).indexNames(indexNames).execute();
     }
 
     private TimeSeriesPoint pointFromLastAggregation(SearchResponse response, Map<String, String> categories) {
@@ -49,14 +108,14 @@ public class LastQuery extends SinglePointQuery {
             return null;
         if (response.getAggregations().get("last") == null)
             throw new RuntimeException("No last aggregation in result");
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() == 0)
+        if (response.getAggregations().<CompositeAggregation>get("last").getBuckets().size() == 0)
             return null;
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() > 1)
+        if (response.getAggregations().<CompositeAggregation>get("last").getBuckets().size() > 1)
             throw new RuntimeException("Too many buckets in last aggregation: "
-                    + response.getAggregations().<Terms>get("last").getBuckets().size());
-        Terms.Bucket bucket = response.getAggregations().<Terms>get("last").getBuckets().get(0);
+                    + response.getAggregations().<CompositeAggregation>get("last").getBuckets().size());
+        CompositeAggregation.Bucket bucket = response.getAggregations().<CompositeAggregation>get("last").getBuckets().get(0);
         return TimeSeriesPoint.builder()
-                .timestamp(Timestamp.parse(bucket.getKeyAsString()))
+                .timestamp(epochMillis(bucket))
                 .measurements(measurementsFromSumAggregations(bucket.getAggregations()))
                 .categories(categories)
                 .build();
@@ -75,6 +134,16 @@ public class LastQuery extends SinglePointQuery {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
@@ -1,9 +1,11 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
 import no.difi.statistics.model.RelationalOperator;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -20,7 +22,6 @@ import java.util.Map;
 import static java.lang.String.format;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toMap;
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.percentiles;
 
@@ -36,7 +37,7 @@ public class PercentileQuery extends Query {
 
     public List<TimeSeriesPoint> execute() {
         return searchWithPercentileFilter(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
+                indexNames(seriesDefinition, queryFilter.timeRange()),
                 queryFilter, percentileFilter
         );
     }
@@ -44,7 +45,7 @@ public class PercentileQuery extends Query {
     private List<TimeSeriesPoint> searchWithPercentileFilter(List<String> indexNames, QueryFilter queryFilter, PercentileFilter filter) {
         double percentileValue = percentileValue(indexNames, filter.getMeasurementId(), filter.getPercentile(), queryFilter);
         logger.info(filter.getPercentile() + ". percentile value: " + percentileValue);
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 range(filter.getMeasurementId(), filter.getRelationalOperator(), percentileValue),
@@ -59,7 +60,7 @@ public class PercentileQuery extends Query {
 
     private static TimeSeriesPoint.Builder point(SearchHit hit) {
         return TimeSeriesPoint.builder()
-                .timestamp(timestamp(hit))
+                .timestamp(epochMillis(hit))
                 .measurements(measurements(hit))
                 .categories(categories(hit));
     }
@@ -94,7 +95,7 @@ public class PercentileQuery extends Query {
     }
 
     private double percentileValue(List<String> indexNames, String measurementId, int percentile, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
@@ -119,6 +120,16 @@ public class PercentileQuery extends Query {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
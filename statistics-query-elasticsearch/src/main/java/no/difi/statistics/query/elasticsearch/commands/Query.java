@@ -1,7 +1,13 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.SharedIndices;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimestampCodec;
+import no.difi.statistics.query.elasticsearch.MultiSearch;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.apache.http.ConnectionClosedException;
 import org.elasticsearch.action.search.SearchRequest;
@@ -13,15 +19,19 @@ import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
 import org.elasticsearch.search.aggregations.metrics.sum.Sum;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.joda.time.ReadableInstant;
 
 import java.io.IOException;
-import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map;
 
 import static java.util.stream.Collectors.toMap;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.QueryBuilders.timestampSource;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.elasticsearch.search.sort.SortOrder.ASC;
 
@@ -30,8 +40,22 @@ public abstract class Query {
     private static final String indexType = "default";
     private static final String timeFieldName = "timestamp";
     RestHighLevelClient elasticsearchClient;
+    SeriesStatisticsCache seriesStatisticsCache;
+    PartitioningPolicy partitioningPolicy = PartitioningPolicy.defaults();
 
-    SearchResponse search(SearchRequest request) {
+    /**
+     * Search the series, which if it is stored in shared indices is limited to its shard and its documents.
+     */
+    SearchResponse search(TimeSeriesDefinition seriesDefinition, SearchRequest request) {
+        if (partitioningPolicy.isShared(seriesDefinition)) {
+            request.routing(SharedIndices.routing(seriesDefinition));
+            BoolQueryBuilder query = SharedIndices.seriesFilter(seriesDefinition);
+            if (request.source().query() != null)
+                query.must(request.source().query());
+            request.source().query(query);
+        }
+        if (MultiSearch.isBatched())
+            return MultiSearch.search(request);
         try {
             return elasticsearchClient.search(request);
         } catch (IOException e) {
@@ -43,12 +67,39 @@ public abstract class Query {
         }
     }
 
+    /**
+     * @return the indices of the series within the time range, limited to those which exist if the series has
+     * statistics
+     */
+    List<String> indexNames(TimeSeriesDefinition seriesDefinition, TimeRange timeRange) {
+        return resolveIndexName(partitioningPolicy).seriesDefinition(seriesDefinition).range(timeRange)
+                .list(seriesStatisticsCache != null ? seriesStatisticsCache.partitions(seriesDefinition) : null);
+    }
+
     Map<String, Long> measurementsFromSumAggregations(Aggregations aggregations) {
         return aggregations.asList().stream().filter(a -> a instanceof Sum).map(a -> (Sum)a).collect(toMap(Aggregation::getName, a -> (long)a.getValue()));
     }
 
-    protected static ZonedDateTime timestamp(SearchHit hit) {
-        return Timestamp.parse(hit.getSourceAsMap().get(timeFieldName).toString());
+    protected static long epochMillis(SearchHit hit) {
+        return Timestamp.epochMillis(hit.getSourceAsMap().get(timeFieldName));
+    }
+
+    static long epochMillis(CompositeAggregation.Bucket bucket) {
+        Object key = bucket.getKey().get(timestampSource);
+        return key instanceof Number ? ((Number)key).longValue() : TimestampCodec.decode(key.toString());
+    }
+
+    /**
+     * @return the key of a bucket of a date histogram or of terms on the timestamp, read as the number it is rather
+     * than parsed from its string
+     */
+    static long epochMillis(MultiBucketsAggregation.Bucket bucket) {
+        Object key = bucket.getKey();
+        if (key instanceof Number)
+            return ((Number) key).longValue();
+        if (key instanceof ReadableInstant)
+            return ((ReadableInstant) key).getMillis();
+        return TimestampCodec.decode(bucket.getKeyAsString());
     }
 
     static SearchRequest searchRequest(List<String> indexNames, QueryFilter queryFilter, QueryBuilder postFilter, int resultSize, AggregationBuilder...aggregations) {
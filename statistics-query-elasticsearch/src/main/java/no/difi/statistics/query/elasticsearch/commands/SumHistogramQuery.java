@@ -1,8 +1,11 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.HistogramBucketCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -12,14 +15,14 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggre
 import org.elasticsearch.search.aggregations.metrics.sum.Sum;
 
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
 
 public class SumHistogramQuery extends HistogramQuery {
@@ -28,23 +31,56 @@ public class SumHistogramQuery extends HistogramQuery {
     private QueryFilter queryFilter;
     private MeasurementDistance targetDistance;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private HistogramBucketCache bucketCache;
 
     @Override
     public List<TimeSeriesPoint> execute() {
-        return sumPerDistance(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
+        return withoutGaps(withBucketCache(
+                bucketCache,
+                "sum",
+                seriesDefinition,
                 targetDistance,
-                queryFilter
-        );
+                queryFilter,
+                filter -> sumPerDistance(
+                        indexNames(seriesDefinition, filter.timeRange()),
+                        targetDistance,
+                        filter
+                )
+        ));
+    }
+
+    /**
+     * Elasticsearch gives empty buckets between the first and last point. Results combined from the cache and a search
+     * lack those at the border, so they are added here.
+     */
+    private List<TimeSeriesPoint> withoutGaps(List<TimeSeriesPoint> points) {
+        List<TimeSeriesPoint> result = new ArrayList<>(points.size());
+        ZonedDateTime expected = null;
+        for (TimeSeriesPoint point : points) {
+            for (; expected != null && expected.isBefore(point.getTimestamp()); expected = next(expected, targetDistance))
+                result.add(emptyPoint(expected, point.getMeasurements().keySet()));
+            result.add(point);
+            expected = next(point.getTimestamp(), targetDistance);
+        }
+        return result;
+    }
+
+    private TimeSeriesPoint emptyPoint(ZonedDateTime timestamp, Set<String> measurementIds) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder().timestamp(timestamp).categories(queryFilter.categories());
+        measurementIds.forEach(measurementId -> point.measurement(measurementId, 0));
+        return point.build();
     }
 
     private List<TimeSeriesPoint> sumPerDistance(List<String> indexNames, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                sumPerDistanceAggregation(targetDistance, getMeasurementIdentifiersCommand.indexNames(indexNames).execute())
+                sumPerDistanceAggregation(
+                        targetDistance,
+                        getMeasurementIdentifiersCommand.seriesDefinition(seriesDefinition).indexNames(indexNames).execute()
+                )
         ));
         if (response.getAggregations() != null)
             return points(response.getAggregations().get(targetDistance.name()), queryFilter.categories());
@@ -67,11 +103,7 @@ public class SumHistogramQuery extends HistogramQuery {
     }
 
     private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket) {
-        return TimeSeriesPoint.builder().timestamp(timestamp(bucket)).measurements(measurements(bucket));
-    }
-
-    private ZonedDateTime timestamp(MultiBucketsAggregation.Bucket bucket) {
-        return ZonedDateTime.parse(bucket.getKeyAsString(), DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        return TimeSeriesPoint.builder().timestamp(epochMillis(bucket)).measurements(measurements(bucket));
     }
 
     private Map<String, Long> measurements(MultiBucketsAggregation.Bucket bucket) {
@@ -95,6 +127,16 @@ public class SumHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
@@ -115,6 +157,11 @@ public class SumHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder bucketCache(HistogramBucketCache bucketCache) {
+            instance.bucketCache = bucketCache;
+            return this;
+        }
+
         public SumHistogramQuery build() {
             return instance;
         }
@@ -1,28 +1,26 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
-import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
 import org.elasticsearch.search.aggregations.bucket.range.DateRangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.range.Range;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
 import org.elasticsearch.search.sort.SortOrder;
 
-import java.time.ZonedDateTime;
 import java.util.List;
 
 import static java.util.stream.Collectors.toList;
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.*;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
@@ -37,7 +35,7 @@ public class SumQuery extends SinglePointQuery {
     @Override
     public TimeSeriesPoint execute() {
         return sumAggregate(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
+                indexNames(seriesDefinition, queryFilter.timeRange()),
                 queryFilter
         );
     }
@@ -45,7 +43,7 @@ public class SumQuery extends SinglePointQuery {
     private TimeSeriesPoint sumAggregate(List<String> indexNames, QueryFilter queryFilter) {
         if (queryFilter.timeRange() == null)
             return sumAggregateUnbounded(indexNames, queryFilter);
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
@@ -76,7 +74,7 @@ public class SumQuery extends SinglePointQuery {
         List<String> measurementIds = measurementIds(indexNames);
         List<AggregationBuilder> aggregations = measurementIds.stream().map(mid -> AggregationBuilders.sum(mid).field(mid)).collect(toList());
         aggregations.add(sumPerTimestampAggregation("last", measurementIds).order(key(false)).size(1));
-        SearchResponse response = search(searchRequest(
+        SearchResponse response = search(seriesDefinition, searchRequest(
                 indexNames,
                 queryFilter,
                 null,
@@ -91,27 +89,19 @@ public class SumQuery extends SinglePointQuery {
             return null;
         Range.Bucket bucket = range.getBuckets().get(0);
         Aggregations aggregations = bucket.getAggregations();
-        ZonedDateTime timestamp = timestamp(aggregations.<TopHits>get("last").getHits().getAt(0));
+        long timestamp = epochMillis(aggregations.<TopHits>get("last").getHits().getAt(0));
         return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(aggregations));
     }
 
     private TimeSeriesPoint.Builder sumPoint(Aggregations aggregations) {
         if (aggregations == null)
             return null;
-        ZonedDateTime timestamp = timestamp(aggregations.<Terms>get("last").getBuckets().get(0));
+        long timestamp = epochMillis(aggregations.<Terms>get("last").getBuckets().get(0));
         return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(aggregations));
     }
 
     private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
-    }
-
-    private static ZonedDateTime timestamp(MultiBucketsAggregation.Bucket bucket) {
-        return Timestamp.parse(bucket.getKeyAsString());
-    }
-
-    public static ZonedDateTime timestamp(SearchHit hit) {
-        return Timestamp.parse(hit.getSourceAsMap().get(timestampField).toString());
+        return getMeasurementIdentifiersCommand.seriesDefinition(seriesDefinition).indexNames(indexNames).execute();
     }
 
     public static Builder builder() {
@@ -127,6 +117,16 @@ public class SumQuery extends SinglePointQuery {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
@@ -1,101 +1,104 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
-import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.model.QueryFilter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
 
-import java.time.ZonedDateTime;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
-import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.QueryBuilders.categorySource;
 import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurements;
-import static no.difi.statistics.model.MeasurementDistance.*;
+import static org.elasticsearch.search.sort.SortOrder.ASC;
 
 public class TimeSeriesQuery extends Query {
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final String aggregationName = "pointAggregation";
+    private static final int pageSize = 1_000;
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
-    private SumHistogramQuery.Builder getSumHistogramCommand;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
 
     public List<TimeSeriesPoint> execute() {
-        List<TimeSeriesPoint> result = search(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
-        if (result.isEmpty() && seriesDefinition.getDistance().equals(days)) {
-            logger.info("Empty result for day series search. Attempting to aggregate minute series...");
-            seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
-                    .seriesDefinition(seriesDefinition).targetDistance(days).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
-        } else if (result.isEmpty() && seriesDefinition.getDistance().equals(months)) {
-            logger.info("Empty result for month series search. Attempting to aggregate minute series...");
-            seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
-                    .seriesDefinition(seriesDefinition).targetDistance(months).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
-        }
-        return result;
+        return stream().collect(toList());
     }
 
-    private List<TimeSeriesPoint> search(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
-                indexNames,
-                queryFilter,
-                null,
-                0,
-                summarizeMeasurements("categoryAggregation", getMeasurementIdentifiersCommand.indexNames(indexNames).execute(), queryFilter.perCategory())
-        ));
-        if (response.getAggregations() != null)
-            return points(response.getAggregations().get("categoryAggregation"), queryFilter);
-        else
-            return emptyList();
+    /**
+     * The points of the series in timestamp order. Pages of points are searched for as the stream is consumed, so the
+     * points of a large range need not be held in memory at once.
+     */
+    public Stream<TimeSeriesPoint> stream() {
+        List<String> indexNames = indexNames(seriesDefinition, queryFilter.timeRange());
+        List<String> measurementIds = getMeasurementIdentifiersCommand.seriesDefinition(seriesDefinition).indexNames(indexNames).execute();
+        Iterator<TimeSeriesPoint> points = new PageIterator(indexNames, measurementIds);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(points, Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
-    private List<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, QueryFilter queryFilter) {
-        return points(aggregation.getBuckets().stream(), queryFilter.perCategory())
-                .map(p -> p.categories(queryFilter.categories()).build())
-                .collect(toList());
+    private TimeSeriesPoint point(CompositeAggregation.Bucket bucket) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder()
+                .timestamp(epochMillis(bucket))
+                .measurements(measurementsFromSumAggregations(bucket.getAggregations()));
+        if (queryFilter.perCategory() != null)
+            point.category(queryFilter.perCategory(), bucket.getKey().get(categorySource).toString());
+        return point.categories(queryFilter.categories()).build();
     }
 
-    private Stream<TimeSeriesPoint.Builder> points(Stream<? extends MultiBucketsAggregation.Bucket> bucketStream, String categoryKey) {
-        if (categoryKey != null)
-            return bucketStream
-                    .map(bucket -> pointPerCategoryValue(categoryAggregation(bucket), Timestamp.parse(bucket.getKeyAsString()), categoryKey))
-                    .flatMap(Collection::stream);
-        else
-            return bucketStream
-                    .map(bucket -> point(bucket, Timestamp.parse(bucket.getKeyAsString())));
-    }
+    /**
+     * Searches for the next page of buckets when the current one is consumed, continuing after the last key of the
+     * previous page.
+     */
+    private class PageIterator implements Iterator<TimeSeriesPoint> {
+
+        private final List<String> indexNames;
+        private final List<String> measurementIds;
+        private Iterator<? extends CompositeAggregation.Bucket> page = Collections.emptyIterator();
+        private Map<String, Object> after;
+        private boolean exhausted;
+
+        private PageIterator(List<String> indexNames, List<String> measurementIds) {
+            this.indexNames = indexNames;
+            this.measurementIds = measurementIds;
+        }
 
-    private List<TimeSeriesPoint.Builder> pointPerCategoryValue(
-            MultiBucketsAggregation aggregation,
-            ZonedDateTime timestamp,
-            String categoryKey
-    ) {
-        return aggregation.getBuckets().stream()
-                .map(bucket -> point(bucket, timestamp).category(categoryKey, bucket.getKeyAsString()))
-                .collect(toList());
-    }
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !exhausted)
+                fetch();
+            return page.hasNext();
+        }
 
-    private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket, ZonedDateTime timestamp) {
-        return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(bucket.getAggregations()));
-    }
+        @Override
+        public TimeSeriesPoint next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return point(page.next());
+        }
+
+        private void fetch() {
+            SearchResponse response = search(seriesDefinition, searchRequest(
+                    indexNames,
+                    queryFilter,
+                    null,
+                    0,
+                    summarizeMeasurements(aggregationName, measurementIds, queryFilter.perCategory(), ASC).size(pageSize).aggregateAfter(after)
+            ));
+            if (response.getAggregations() == null) {
+                exhausted = true;
+                return;
+            }
+            CompositeAggregation aggregation = response.getAggregations().get(aggregationName);
+            after = aggregation.afterKey();
+            exhausted = after == null || aggregation.getBuckets().size() < pageSize;
+            page = aggregation.getBuckets().iterator();
+        }
 
-    private MultiBucketsAggregation categoryAggregation(MultiBucketsAggregation.Bucket bucket) {
-        return (MultiBucketsAggregation)bucket.getAggregations().iterator().next();
     }
 
     public static Builder builder() {
@@ -111,6 +114,16 @@ public class TimeSeriesQuery extends Query {
             return this;
         }
 
+        public Builder seriesStatisticsCache(SeriesStatisticsCache cache) {
+            instance.seriesStatisticsCache = cache;
+            return this;
+        }
+
+        public Builder partitioningPolicy(PartitioningPolicy partitioningPolicy) {
+            instance.partitioningPolicy = partitioningPolicy;
+            return this;
+        }
+
         public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
             instance.seriesDefinition = seriesDefinition;
             return this;
@@ -126,15 +139,10 @@ public class TimeSeriesQuery extends Query {
             return this;
         }
 
-        public Builder sumHistogramCommand(SumHistogramQuery.Builder command) {
-            instance.getSumHistogramCommand = command;
-            return this;
-        }
-
         public TimeSeriesQuery build() {
             return instance;
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -1,11 +1,27 @@
 package no.difi.statistics.query.elasticsearch.config;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.Partitioning;
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.query.QueryService;
 import no.difi.statistics.query.config.BackendConfig;
 import no.difi.statistics.query.elasticsearch.*;
+import no.difi.statistics.query.elasticsearch.cache.HistogramBucketCache;
+import no.difi.statistics.query.elasticsearch.cache.MeasurementIdentifierCache;
+import no.difi.statistics.query.elasticsearch.cache.RollupCoverageCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesCatalogue;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.elasticsearch.commands.*;
 import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -15,6 +31,13 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
 import org.springframework.core.env.Environment;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class ElasticsearchConfig implements BackendConfig {
 
@@ -28,7 +51,52 @@ public class ElasticsearchConfig implements BackendConfig {
     @Override
     @Bean
     public QueryService queryService() {
-        return new ElasticsearchQueryService(commandFactory());
+        return new ElasticsearchQueryService(commandFactory(), queryPlanner(), queryCoalescer(), multiSearch());
+    }
+
+    @Bean
+    public QueryCoalescer queryCoalescer() {
+        return new QueryCoalescer();
+    }
+
+    @Bean
+    public MultiSearch multiSearch() {
+        return new MultiSearch(
+                elasticsearchHighLevelClient(),
+                multiSearchExecutor(),
+                multiSearchThreads(),
+                environment.getProperty("no.difi.statistics.query.batch.queue-size", Integer.class, 1000),
+                environment.getProperty("no.difi.statistics.query.batch.max-queries", Integer.class, 100)
+        );
+    }
+
+    /**
+     * Each query of a batch needs a thread of its own. Batches wait for threads before they are started (see
+     * {@link MultiSearch}), so the queue only holds queries until the thread they were admitted for is idle again.
+     * Queries rejected nonetheless fail their request with 503.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService multiSearchExecutor() {
+        int threads = multiSearchThreads();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private int multiSearchThreads() {
+        return environment.getProperty("no.difi.statistics.query.batch.threads", Integer.class, 200);
+    }
+
+    @Bean
+    public QueryPlanner queryPlanner() {
+        return new QueryPlanner(seriesCatalogue(), seriesStatisticsCache(), rollupCoverageCache(), partitioningPolicy());
     }
 
     @Bean
@@ -39,49 +107,144 @@ public class ElasticsearchConfig implements BackendConfig {
     @Bean
     @Scope("prototype")
     public TimeSeriesQuery.Builder queryCommandBuilder() {
-        return TimeSeriesQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).sumHistogramCommand(sumHistogramCommandBuilder());
+        return TimeSeriesQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy());
     }
 
     @Bean
     @Scope("prototype")
     public AvailableSeriesQuery.Builder listAvailableTimeSeriesCommandBuilder() {
-        return AvailableSeriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return AvailableSeriesQuery.builder().seriesCatalogue(seriesCatalogue());
+    }
+
+    @Bean
+    public HistogramBucketCache histogramBucketCache() {
+        return new HistogramBucketCache(
+                environment.getProperty("no.difi.statistics.query.histogram-buckets.cache.max-bytes", Long.class, 64L * 1024 * 1024),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.histogram-buckets.cache.ttl-seconds", Long.class, 3600L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.histogram-buckets.cache.lag-seconds", Long.class, 600L)),
+                Clock.systemUTC()
+        );
+    }
+
+    @Bean
+    public SeriesCatalogue seriesCatalogue() {
+        return new SeriesCatalogue(
+                elasticsearchHighLevelClient().getLowLevelClient(),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.series-catalogue.refresh-seconds", Long.class, 30L))
+        );
     }
 
     @Bean
     @Scope("prototype")
     public LastHistogramQuery.Builder lastHistogramCommandBuilder() {
-        return LastHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return LastHistogramQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy())
+                .bucketCache(histogramBucketCache());
     }
 
     @Bean
     @Scope("prototype")
     public LastQuery.Builder lastCommandBuilder() {
-        return LastQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return LastQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy());
     }
 
     @Bean
     @Scope("prototype")
     public SumHistogramQuery.Builder sumHistogramCommandBuilder() {
-        return SumHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumHistogramQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy())
+                .bucketCache(histogramBucketCache());
     }
 
     @Bean
     @Scope("prototype")
     public SumQuery.Builder sumCommandBuilder() {
-        return SumQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy());
     }
 
     @Bean
     @Scope("prototype")
     public PercentileQuery.Builder percentileCommandBuilder() {
-        return PercentileQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return PercentileQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy());
     }
 
     @Bean
     @Scope("prototype")
     public GetMeasurementIdentifiers.Builder measurementIdentifiersCommandBuilder() {
-        return GetMeasurementIdentifiers.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return GetMeasurementIdentifiers.builder()
+                .measurementIdentifierCache(measurementIdentifierCache())
+                .seriesStatisticsCache(seriesStatisticsCache())
+                .partitioningPolicy(partitioningPolicy());
+    }
+
+    @Bean
+    @Scope("prototype")
+    public GetWatermark.Builder watermarkCommandBuilder() {
+        return GetWatermark.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient().getLowLevelClient());
+    }
+
+    @Bean
+    public MeasurementIdentifierCache measurementIdentifierCache() {
+        return new MeasurementIdentifierCache(
+                elasticsearchHighLevelClient().getLowLevelClient(),
+                environment.getProperty("no.difi.statistics.query.measurement-ids.cache.size", Long.class, 10_000L),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.measurement-ids.cache.refresh-seconds", Long.class, 60L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.measurement-ids.cache.ttl-seconds", Long.class, 600L))
+        );
+    }
+
+    /**
+     * Must be the same as the one of ingest, since index names are resolved from it.
+     */
+    @Bean
+    public PartitioningPolicy partitioningPolicy() {
+        PartitioningPolicy.Builder builder = PartitioningPolicy.builder();
+        for (MeasurementDistance distance : MeasurementDistance.values()) {
+            String partitioning = environment.getProperty("no.difi.statistics.elasticsearch.partitioning." + distance);
+            if (partitioning != null && !partitioning.isEmpty())
+                builder.distance(distance, Partitioning.valueOf(partitioning));
+        }
+        for (String series : environment.getProperty("no.difi.statistics.elasticsearch.partitioning.series", String[].class, new String[0]))
+            builder.series(series);
+        return builder.build();
+    }
+
+    @Bean
+    public SeriesStatisticsCache seriesStatisticsCache() {
+        return new SeriesStatisticsCache(
+                elasticsearchHighLevelClient().getLowLevelClient(),
+                environment.getProperty("no.difi.statistics.query.series-statistics.cache.size", Long.class, 10_000L),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.series-statistics.cache.refresh-seconds", Long.class, 60L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.series-statistics.cache.ttl-seconds", Long.class, 600L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.series-statistics.cache.missing-ttl-seconds", Long.class, 10L))
+        );
+    }
+
+    @Bean
+    public RollupCoverageCache rollupCoverageCache() {
+        return new RollupCoverageCache(
+                elasticsearchHighLevelClient().getLowLevelClient(),
+                environment.getProperty("no.difi.statistics.query.rollup-coverage.cache.size", Long.class, 10_000L),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.rollup-coverage.cache.refresh-seconds", Long.class, 10L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.rollup-coverage.cache.ttl-seconds", Long.class, 600L))
+        );
     }
 
     @Bean
@@ -92,15 +255,71 @@ public class ElasticsearchConfig implements BackendConfig {
         );
     }
 
+    /**
+     * The one client shared by all commands. Closing it shuts down the connection pool and its I/O threads.
+     */
     @Bean(destroyMethod = "close")
     public RestHighLevelClient elasticsearchHighLevelClient() {
         return new RestHighLevelClient(elasticsearchLowLevelClient());
     }
 
+    @Bean(destroyMethod = "") // Shut down by the client
+    public PoolingNHttpClientConnectionManager elasticsearchConnectionManager() {
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig()));
+        } catch (IOReactorException e) {
+            throw new RuntimeException("Failed to create I/O reactor for Elasticsearch client", e);
+        }
+        connectionManager.setDefaultMaxPerRoute(environment.getProperty("no.difi.statistics.elasticsearch.max-connections-per-route", Integer.class, 50));
+        connectionManager.setMaxTotal(environment.getProperty("no.difi.statistics.elasticsearch.max-connections", Integer.class, 100));
+        return connectionManager;
+    }
+
+    IOReactorConfig ioReactorConfig() {
+        return IOReactorConfig.custom()
+                .setIoThreadCount(environment.getProperty(
+                        "no.difi.statistics.elasticsearch.io-threads",
+                        Integer.class,
+                        Runtime.getRuntime().availableProcessors()
+                ))
+                .build();
+    }
+
+    @Bean
+    public MeterBinder elasticsearchConnectionPoolMetrics() {
+        PoolingNHttpClientConnectionManager connectionManager = elasticsearchConnectionManager();
+        return registry -> {
+            Gauge.builder("elasticsearch.connections.leased", connectionManager, cm -> cm.getTotalStats().getLeased())
+                    .description("Connections to Elasticsearch in use").register(registry);
+            Gauge.builder("elasticsearch.connections.available", connectionManager, cm -> cm.getTotalStats().getAvailable())
+                    .description("Idle connections to Elasticsearch").register(registry);
+            Gauge.builder("elasticsearch.connections.pending", connectionManager, cm -> cm.getTotalStats().getPending())
+                    .description("Requests waiting for a connection to Elasticsearch").register(registry);
+            Gauge.builder("elasticsearch.connections.max", connectionManager, cm -> cm.getTotalStats().getMax())
+                    .description("Maximum number of connections to Elasticsearch").register(registry);
+        };
+    }
+
     private RestClientBuilder elasticsearchLowLevelClient() {
         String host = environment.getRequiredProperty("no.difi.statistics.elasticsearch.host");
         int port = environment.getRequiredProperty("no.difi.statistics.elasticsearch.port", Integer.class);
-        return RestClient.builder(new HttpHost(host, port, "http"));
+        return RestClient.builder(new HttpHost(host, port, "http"))
+                .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                        .setConnectionManager(elasticsearchConnectionManager())
+                        .setKeepAliveStrategy(keepAliveStrategy())
+                );
+    }
+
+    /**
+     * Keeps idle connections as long as the server allows, but no longer than configured.
+     */
+    ConnectionKeepAliveStrategy keepAliveStrategy() {
+        long keepAlive = environment.getProperty("no.difi.statistics.elasticsearch.keep-alive-seconds", Long.class, 60L) * 1000;
+        return (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive < 0 ? keepAlive : Math.min(serverKeepAlive, keepAlive);
+        };
     }
 
     private String elasticsearchHost() {
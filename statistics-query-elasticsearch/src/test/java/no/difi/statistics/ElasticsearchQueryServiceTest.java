@@ -3,11 +3,22 @@ package no.difi.statistics;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.SeriesStatistics;
 import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.QueryService;
+import no.difi.statistics.query.cache.ResponseCache;
 import no.difi.statistics.query.config.AppConfig;
+import no.difi.statistics.query.elasticsearch.cache.HistogramBucketCache;
+import no.difi.statistics.query.elasticsearch.cache.MeasurementIdentifierCache;
+import no.difi.statistics.query.elasticsearch.cache.RollupCoverageCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesCatalogue;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
 import no.difi.statistics.query.elasticsearch.config.ElasticsearchConfig;
 import no.difi.statistics.query.elasticsearch.helpers.*;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.QueryFilter;
 import no.difi.statistics.test.utils.DataOperations;
 import no.difi.statistics.test.utils.ElasticsearchHelper;
 import no.difi.statistics.test.utils.ElasticsearchRule;
@@ -39,6 +50,7 @@ import java.util.function.Predicate;
 
 import static java.lang.String.format;
 import static java.time.temporal.ChronoUnit.DAYS;
+import static java.util.Arrays.asList;
 import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
 import static no.difi.statistics.model.MeasurementDistance.*;
 import static no.difi.statistics.query.elasticsearch.helpers.AvailableSeriesQuery.calculatedAvailableSeries;
@@ -52,6 +64,7 @@ import static no.difi.statistics.query.elasticsearch.helpers.SumQuery.requesting
 import static no.difi.statistics.query.elasticsearch.helpers.TimeSeriesQuery.requestingSeries;
 import static no.difi.statistics.query.elasticsearch.helpers.TimeSeriesQuery.withAttributes;
 import static no.difi.statistics.query.elasticsearch.helpers.Verification.given;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
 import static no.difi.statistics.test.utils.DataGenerator.createRandomTimeSeries;
 import static no.difi.statistics.test.utils.DataOperations.*;
 import static org.junit.Assert.assertEquals;
@@ -71,7 +84,12 @@ public class ElasticsearchQueryServiceTest {
         public void initialize(ConfigurableApplicationContext applicationContext) {
             TestPropertyValues.of(
                     "no.difi.statistics.elasticsearch.host=" + elasticsearchRule.getHost(),
-                    "no.difi.statistics.elasticsearch.port=" + elasticsearchRule.getPort()
+                    "no.difi.statistics.elasticsearch.port=" + elasticsearchRule.getPort(),
+                    "no.difi.statistics.query.response-cache.watermark-refresh-seconds=0",
+                    // Invalidated after each test, and never old enough to be refreshed in the background during one
+                    "no.difi.statistics.query.series-catalogue.refresh-seconds=3600",
+                    // Points are indexed directly here and not through ingest, so watermarks do not move
+                    "no.difi.statistics.query.response-cache.settle-millis=3600000"
             ).applyTo(applicationContext);
         }
 
@@ -96,6 +114,20 @@ public class ElasticsearchQueryServiceTest {
     private ObjectMapper objectMapper;
     @Autowired
     private Environment environment;
+    @Autowired
+    private MeasurementIdentifierCache measurementIdentifierCache;
+    @Autowired
+    private SeriesCatalogue seriesCatalogue;
+    @Autowired
+    private SeriesStatisticsCache seriesStatisticsCache;
+    @Autowired
+    private RollupCoverageCache rollupCoverageCache;
+    @Autowired
+    private HistogramBucketCache histogramBucketCache;
+    @Autowired
+    private ResponseCache responseCache;
+    @Autowired
+    private QueryService queryService;
 
     @Before
     public void prepare() {
@@ -116,6 +148,12 @@ public class ElasticsearchQueryServiceTest {
     @After
     public void cleanup() {
         helper.clear();
+        measurementIdentifierCache.invalidateAll();
+        seriesCatalogue.invalidate();
+        seriesStatisticsCache.invalidateAll();
+        rollupCoverageCache.invalidateAll();
+        histogramBucketCache.invalidateAll();
+        responseCache.invalidateAll();
     }
 
     @Test
@@ -214,6 +252,28 @@ public class ElasticsearchQueryServiceTest {
         assertEquals(expectedLastPoint, actualLastPoint);
     }
 
+    @Test
+    public void givenMinuteSeriesWhenQueryingInBatchThenResultsAreTheSameAsForSeparateQueries() throws IOException {
+        helper.indexPointsFrom(now.minusMinutes(1003), minutes, 1003, 1002, 1001, 1000);
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(series).distance(minutes).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(now.minusMinutes(1002), now).build();
+        List<BatchQuery> queries = asList(
+                new BatchQuery(BatchQuery.Kind.query, seriesDefinition, null, queryFilter, null),
+                new BatchQuery(BatchQuery.Kind.last, seriesDefinition, null, queryFilter, null),
+                new BatchQuery(BatchQuery.Kind.sum, seriesDefinition, null, queryFilter, null),
+                new BatchQuery(BatchQuery.Kind.sumHistogram, seriesDefinition, hours, queryFilter, null)
+        );
+        assertEquals(
+                asList(
+                        queryService.query(seriesDefinition, queryFilter),
+                        queryService.last(seriesDefinition, queryFilter),
+                        queryService.sum(seriesDefinition, queryFilter),
+                        queryService.sumHistogram(seriesDefinition, hours, queryFilter)
+                ),
+                queryService.batch(queries)
+        );
+    }
+
     @Test
     public void givenMinuteSeriesWhenQueryingForRangeInsideSeriesThenCorrespondingDataPointsAreReturned() throws IOException {
         helper.indexPointsFrom(now.minusMinutes(1003), minutes, 1003, 1002, 1001, 1000);
@@ -245,6 +305,13 @@ public class ElasticsearchQueryServiceTest {
                 .thenThatSeriesIsReturned();
     }
 
+    @Test
+    public void givenMinuteSeriesWithMoreThanOnePageOfPointsWhenQueryingThenAllDataPointsAreReturned() {
+        given(aSeries(withAttributes().distance(minutes)).withSize(12_345))
+                .when(requestingSeries().distance(minutes))
+                .thenThatSeriesIsReturned();
+    }
+
     @Test
     public void givenMinuteSeriesWhenQueryingWithCategoryThenPointsWithThatCategoryAreReturned() {
         given(aSeries(withAttributes().distance(minutes)).category("Category A", "Value for category A").category("Category B", "Value for category B"))
@@ -600,6 +667,23 @@ public class ElasticsearchQueryServiceTest {
         assertEquals(truncatedTimestamp(now.plusDays(1), ChronoUnit.DAYS).toInstant(), timestamp(1, resultingPoints).toInstant());
     }
 
+    @Test
+    public void givenCachedHistogramBucketWhenSeriesHasLateWriteThenLatePointIsSummedAtOnce() throws IOException {
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(series).minutes().owner(owner);
+        QueryFilter queryFilter = queryFilter().range(now, now.plusMinutes(59)).build();
+        helper.indexPoint(minutes, now, 1);
+        assertEquals(1L, queryService.sumHistogram(seriesDefinition, hours, queryFilter).get(0).getMeasurement(measurementId).orElse(-1L).longValue());
+        // Counting the late write makes the bucket searched again, although the late writes of the series are cached
+        helper.indexPoint(minutes, now.plusMinutes(1), 2);
+        helper.index(
+                SeriesStatistics.indexName,
+                SeriesStatistics.indexType,
+                SeriesStatistics.id(seriesDefinition),
+                "{\"" + SeriesStatistics.lateWritesField + "\": 1}"
+        );
+        assertEquals(3L, queryService.sumHistogram(seriesDefinition, hours, queryFilter).get(0).getMeasurement(measurementId).orElse(-1L).longValue());
+    }
+
     @Test
     public void givenSeriesWhenRequestingUnboundedSumThenSingleSummarizedPointIsReturned() {
         Verification.WhenStep given = given(
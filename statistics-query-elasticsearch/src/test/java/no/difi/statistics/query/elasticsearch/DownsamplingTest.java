@@ -0,0 +1,111 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.time.ZoneOffset.UTC;
+import static no.difi.statistics.model.MeasurementDistance.*;
+import static no.difi.statistics.query.elasticsearch.Downsampling.distance;
+import static no.difi.statistics.query.elasticsearch.Downsampling.downsample;
+import static no.difi.statistics.query.elasticsearch.Downsampling.largestTriangleThreeBuckets;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownsamplingTest {
+
+    @Test
+    public void givenNoMaxPointsWhenChoosingDistanceThenDistanceIsKept() {
+        assertEquals(minutes, distance(minutes, queryFilter().range(timestamp(2017, 1, 1), timestamp(2017, 6, 1)).build()));
+    }
+
+    @Test
+    public void givenMonthsOfMinutesWhenChoosingDistanceForFewPointsThenDaysAreChosen() {
+        QueryFilter filter = queryFilter().range(timestamp(2017, 1, 1), timestamp(2017, 6, 1)).maxPoints(500).build();
+        assertEquals(days, distance(minutes, filter));
+    }
+
+    @Test
+    public void givenRangeWithFewerBucketsThanMaxPointsWhenChoosingDistanceThenDistanceIsKept() {
+        QueryFilter filter = queryFilter().range(timestamp(2017, 1, 1), timestamp(2017, 1, 2)).maxPoints(2000).build();
+        assertEquals(minutes, distance(minutes, filter));
+    }
+
+    @Test
+    public void givenRangeWithoutStartWhenChoosingDistanceThenDistanceIsKept() {
+        QueryFilter filter = queryFilter().range(null, timestamp(2017, 6, 1)).maxPoints(500).build();
+        assertEquals(minutes, distance(minutes, filter));
+    }
+
+    @Test
+    public void givenTooManyPointsWhenDownsamplingThenResultHasMaxPointsIncludingFirstAndLast() {
+        List<TimeSeriesPoint> points = points(10_000);
+        List<TimeSeriesPoint> result = downsample(points, queryFilter().maxPoints(100).build());
+        assertEquals(100, result.size());
+        assertSame(points.get(0), result.get(0));
+        assertSame(points.get(points.size() - 1), result.get(result.size() - 1));
+        for (int i = 1; i < result.size(); i++)
+            assertTrue(result.get(i).getTimestamp().isAfter(result.get(i - 1).getTimestamp()));
+    }
+
+    @Test
+    public void givenFewerPointsThanMaxPointsWhenDownsamplingThenPointsAreKept() {
+        List<TimeSeriesPoint> points = points(10);
+        assertSame(points, downsample(points, queryFilter().maxPoints(100).build()));
+    }
+
+    @Test
+    public void givenSpikeWhenDownsamplingThenSpikeIsKept() {
+        List<TimeSeriesPoint> points = points(1000);
+        points.set(500, point(500, 1_000_000));
+        assertTrue(largestTriangleThreeBuckets(points, 10).contains(points.get(500)));
+    }
+
+    @Test
+    public void givenPointsPerCategoryWhenDownsamplingThenMaxPointsIsSharedBetweenCategories() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            points.add(TimeSeriesPoint.builder().timestamp(timestamp(i)).measurement("m", i).category("c", "a").build());
+            points.add(TimeSeriesPoint.builder().timestamp(timestamp(i)).measurement("m", 2 * i).category("c", "b").build());
+        }
+        List<TimeSeriesPoint> result = downsample(points, queryFilter().perCategory("c").maxPoints(21).build());
+        assertEquals(21, result.size());
+        assertEquals(11, result.stream().filter(point -> "a".equals(point.getCategoryValue("c"))).count());
+        assertEquals(10, result.stream().filter(point -> "b".equals(point.getCategoryValue("c"))).count());
+    }
+
+    @Test
+    public void givenMoreCategoriesThanMaxPointsWhenDownsamplingThenResultHasMaxPoints() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            for (int c = 0; c < 5; c++)
+                points.add(TimeSeriesPoint.builder().timestamp(timestamp(i)).measurement("m", i).category("c", "c" + c).build());
+        assertEquals(3, downsample(points, queryFilter().perCategory("c").maxPoints(3).build()).size());
+    }
+
+    private static List<TimeSeriesPoint> points(int count) {
+        List<TimeSeriesPoint> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            points.add(point(i, (long) (100 * Math.sin(i / 50.0))));
+        return points;
+    }
+
+    private static TimeSeriesPoint point(int minute, long value) {
+        return TimeSeriesPoint.builder().timestamp(timestamp(minute)).measurement("m1", value).measurement("m2", minute).build();
+    }
+
+    private static ZonedDateTime timestamp(int minute) {
+        return ZonedDateTime.of(2017, 1, 1, 0, 0, 0, 0, UTC).plusMinutes(minute);
+    }
+
+    private static ZonedDateTime timestamp(int year, int month, int day) {
+        return ZonedDateTime.of(year, month, day, 0, 0, 0, 0, UTC);
+    }
+
+}
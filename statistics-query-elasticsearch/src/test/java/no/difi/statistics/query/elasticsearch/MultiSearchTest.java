@@ -0,0 +1,175 @@
+package no.difi.statistics.query.elasticsearch;
+
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class MultiSearchTest {
+
+    private final Map<String, SearchResponse> responses = new HashMap<>();
+    private final List<Integer> multiSearchSizes = new ArrayList<>();
+    private ExecutorService executor;
+    private MultiSearch multiSearch;
+
+    @Before
+    public void prepare() {
+        executor = Executors.newCachedThreadPool();
+        multiSearch = multiSearch(10, 10, 10);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenQueriesSearchingOnceWhenExecutingThenAllSearchesAreSentTogether() {
+        List<Object> results = multiSearch.execute(asList(search("a"), search("b"), search("c")));
+        assertEquals(asList(response("a"), response("b"), response("c")), results);
+        assertEquals(asList(3), multiSearchSizes);
+    }
+
+    @Test
+    public void givenQueriesSearchingDifferentNumberOfTimesWhenExecutingThenSearchesAreSentInRounds() {
+        List<Object> results = multiSearch.execute(asList(search("a", "b"), search("c"), () -> null));
+        assertEquals(asList(response("b"), response("c"), null), results);
+        assertEquals(asList(2, 1), multiSearchSizes);
+    }
+
+    @Test
+    public void givenFailingSearchWhenExecutingThenFailureIsPropagated() {
+        try {
+            multiSearch.execute(asList(search("a"), search("failing")));
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("failing", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void givenQueryAwaitingSomethingElseWhenExecutingThenOthersAreNotHeldUp() {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        Supplier<Object> slow = () -> coalescer.execute(() -> MultiSearch.search(new SearchRequest("a")), "same");
+        List<Object> results = multiSearch.execute(asList(slow, slow, search("b")));
+        assertSame(response("a"), results.get(0));
+        assertSame(response("a"), results.get(1));
+        assertSame(response("b"), results.get(2));
+    }
+
+    @Test
+    public void givenTooManyQueriesWhenExecutingThenRequestIsRejected() {
+        List<Supplier<Object>> queries = new ArrayList<>();
+        for (int i = 0; i < 11; i++)
+            queries.add(() -> null);
+        try {
+            multiSearch.execute(queries);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Batch of 11 queries exceeds the maximum of 10", e.getMessage());
+        }
+    }
+
+    @Test
+    public void givenQueuedQueriesWhenExecutingMoreThanQueueSizeThenRequestIsRejected() throws Exception {
+        multiSearch = multiSearch(1, 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<List<Object>> running = CompletableFuture.supplyAsync(() -> multiSearch.execute(singletonList(() -> {
+            started.countDown();
+            await(release);
+            return null;
+        })));
+        started.await();
+        AtomicReference<List<Object>> queuedResults = new AtomicReference<>();
+        Thread queued = new Thread(() -> queuedResults.set(multiSearch.execute(singletonList(search("a")))));
+        queued.start();
+        while (queued.getState() != Thread.State.WAITING)
+            Thread.yield(); // Until it waits for the thread of the running query
+        try {
+            multiSearch.execute(singletonList(search("b")));
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals("Too many queries waiting to be executed", e.getMessage());
+        }
+        release.countDown();
+        running.get();
+        queued.join();
+        assertEquals(singletonList(response("a")), queuedResults.get());
+    }
+
+    @Test
+    public void givenMoreQueriesPerBatchThanThreadsWhenCreatingThenItIsRejected() {
+        try {
+            multiSearch(5, 10, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Maximum of 10 queries per batch exceeds the 5 threads or queue size of 10", e.getMessage());
+        }
+    }
+
+    private MultiSearch multiSearch(int threads, int queueSize, int maxQueries) {
+        return new MultiSearch(null, executor, threads, queueSize, maxQueries) {
+            @Override
+            MultiSearchResponse multiSearch(MultiSearchRequest request) {
+                synchronized (multiSearchSizes) {
+                    multiSearchSizes.add(request.requests().size());
+                }
+                MultiSearchResponse.Item[] items = new MultiSearchResponse.Item[request.requests().size()];
+                for (int i = 0; i < items.length; i++) {
+                    String index = request.requests().get(i).indices()[0];
+                    items[i] = index.startsWith("failing")
+                            ? new MultiSearchResponse.Item(null, new IllegalStateException(index))
+                            : new MultiSearchResponse.Item(response(index), null);
+                }
+                return new MultiSearchResponse(items, 1L);
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Supplier<Object> search(String...indices) {
+        return () -> {
+            SearchResponse response = null;
+            for (String index : indices)
+                response = MultiSearch.search(new SearchRequest(index));
+            return response;
+        };
+    }
+
+    private SearchResponse response(String index) {
+        synchronized (responses) {
+            return responses.computeIfAbsent(index, i -> mock(SearchResponse.class));
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.difi.statistics.query.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class QueryCoalescerTest {
+
+    private final QueryCoalescer coalescer = new QueryCoalescer();
+
+    @Test
+    public void givenIdenticalQueriesInFlightWhenExecutingThenQueryIsExecutedOnce() throws Exception {
+        final int callers = 10;
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Object result = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++)
+                futures.add(executor.submit(() -> coalescer.execute(() -> {
+                    executions.incrementAndGet();
+                    await(release);
+                    return result;
+                }, "query", "series")));
+            Thread.sleep(200); // Let all callers join the flight
+            release.countDown();
+            for (Future<Object> future : futures)
+                assertSame(result, future.get(5, TimeUnit.SECONDS));
+            assertEquals(1, executions.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void givenQueryCompletedWhenExecutingAgainThenQueryIsExecutedAgain() {
+        AtomicInteger executions = new AtomicInteger();
+        coalescer.execute(executions::incrementAndGet, "query", "series");
+        coalescer.execute(executions::incrementAndGet, "query", "series");
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void givenDifferentKeysWhenExecutingThenEachQueryIsExecuted() {
+        AtomicInteger executions = new AtomicInteger();
+        coalescer.execute(() -> coalescer.execute(executions::incrementAndGet, "query", "b") + executions.incrementAndGet(), "query", "a");
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void givenFailingQueryWhenExecutingThenFailureIsPropagated() {
+        try {
+            coalescer.execute(() -> { throw new IllegalStateException("failed"); }, "query", "series");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals("ok", coalescer.execute(() -> "ok", "query", "series"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.elasticsearch.PartitioningPolicy;
+import no.difi.statistics.elasticsearch.Rollups;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.cache.RollupCoverageCache;
+import no.difi.statistics.query.elasticsearch.cache.SeriesCatalogue;
+import no.difi.statistics.query.elasticsearch.cache.SeriesStatisticsCache;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.EnumSet;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Arrays.asList;
+import static no.difi.statistics.model.MeasurementDistance.*;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QueryPlannerTest {
+
+    private SeriesCatalogue seriesCatalogue;
+    private SeriesStatisticsCache seriesStatisticsCache;
+    private RollupCoverageCache rollupCoverageCache;
+    private QueryPlanner planner;
+
+    @Before
+    public void prepare() {
+        seriesCatalogue = mock(SeriesCatalogue.class);
+        seriesStatisticsCache = mock(SeriesStatisticsCache.class);
+        rollupCoverageCache = mock(RollupCoverageCache.class);
+        planner = new QueryPlanner(seriesCatalogue, seriesStatisticsCache, rollupCoverageCache, PartitioningPolicy.defaults());
+    }
+
+    @Test
+    public void givenRequestedDistanceDoesNotExistWhenPlanningThenFinestFinerDistanceIsChosen() {
+        givenDistances(minutes, hours);
+        assertEquals(minutes, sourceDistance(days, days, queryFilter().build()));
+    }
+
+    @Test
+    public void givenRequestedDistanceDoesNotExistWhenPlanningThenCoveredRollupOfFinestDistanceIsChosen() {
+        givenDistances(minutes, hours);
+        givenCovered(minutes, hours, days);
+        assertEquals(Rollups.definition(series(minutes), days), sourceSeries(days, days, queryFilter().build()));
+    }
+
+    @Test
+    public void givenCoarserSeriesWithoutRollupsWhenPlanningThenReferenceIsChosen() {
+        givenDistances(minutes, hours, days, months, years);
+        assertEquals(series(minutes), sourceSeries(minutes, months, queryFilter().build()));
+    }
+
+    @Test
+    public void givenRollupsWhenPlanningUnboundedHistogramThenTargetDistanceIsChosen() {
+        givenDistances(minutes);
+        givenCovered(minutes, hours, days, months, years);
+        assertEquals(Rollups.definition(series(minutes), months), sourceSeries(minutes, months, queryFilter().build()));
+    }
+
+    @Test
+    public void givenRollupsWhenPlanningRangeAlignedToDaysThenDaysAreChosen() {
+        givenDistances(minutes);
+        givenCovered(minutes, hours, days, months);
+        QueryFilter filter = queryFilter().range(timestamp(2017, 3, 1, 0, 0), timestamp(2017, 3, 10, 23, 59)).build();
+        assertEquals(Rollups.definition(series(minutes), days), sourceSeries(minutes, months, filter));
+    }
+
+    @Test
+    public void givenRollupsWhenPlanningRangeNotAlignedToHoursThenReferenceIsChosen() {
+        givenDistances(minutes);
+        givenCovered(minutes, hours, days);
+        QueryFilter filter = queryFilter().range(timestamp(2017, 3, 1, 10, 30), null).build();
+        assertEquals(series(minutes), sourceSeries(minutes, days, filter));
+    }
+
+    @Test
+    public void givenCoarsestRollupNotCoveringRangeWhenPlanningThenCoarsestCoveringRollupIsChosen() {
+        givenDistances(minutes);
+        givenCovered(minutes, hours);
+        assertEquals(Rollups.definition(series(minutes), hours), sourceSeries(minutes, days, queryFilter().build()));
+    }
+
+    @Test
+    public void givenCoveredRollupWhenPlanningSumThenRollupIsChosen() {
+        givenDistances(minutes);
+        givenCovered(minutes, days);
+        QueryFilter filter = queryFilter().range(timestamp(2017, 3, 1, 0, 0), timestamp(2017, 3, 31, 23, 59)).build();
+        assertEquals(Rollups.definition(series(minutes), days), planner.planSum(series(minutes), filter).getSourceSeries());
+    }
+
+    @Test
+    public void givenNoCoveredRollupWhenPlanningSumThenSeriesIsChosen() {
+        givenDistances(minutes, days);
+        assertEquals(series(minutes), planner.planSum(series(minutes), queryFilter().build()).getSourceSeries());
+    }
+
+    @Test
+    public void givenNoKnownDistancesWhenPlanningThenRequestedDistanceIsChosen() {
+        givenDistances();
+        assertEquals(days, sourceDistance(days, days, queryFilter().build()));
+    }
+
+    @Test
+    public void givenStatisticsWhenPlanningOpenRangeThenOnlyExistingIndicesAreIncluded() {
+        givenDistances(minutes);
+        TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").minutes().owner("owner");
+        when(seriesStatisticsCache.partitions(series)).thenReturn(asList("owner@series@minute2016", "owner@series@minute2017"));
+        QueryFilter filter = queryFilter().range(null, timestamp(2017, 3, 1, 0, 0)).build();
+        assertEquals(asList("owner@series@minute2016", "owner@series@minute2017"), planner.plan(series, days, filter).getIndices());
+    }
+
+    private void givenDistances(MeasurementDistance...distances) {
+        EnumSet<MeasurementDistance> set = EnumSet.noneOf(MeasurementDistance.class);
+        for (MeasurementDistance distance : distances)
+            set.add(distance);
+        when(seriesCatalogue.distances("owner", "series")).thenReturn(set);
+    }
+
+    private void givenCovered(MeasurementDistance source, MeasurementDistance...distances) {
+        for (MeasurementDistance distance : distances)
+            when(rollupCoverageCache.covers(eq(Rollups.definition(series(source), distance)), any())).thenReturn(true);
+    }
+
+    private TimeSeriesDefinition sourceSeries(MeasurementDistance requested, MeasurementDistance target, QueryFilter filter) {
+        return planner.plan(series(requested), target, filter).getSourceSeries();
+    }
+
+    private MeasurementDistance sourceDistance(MeasurementDistance requested, MeasurementDistance target, QueryFilter filter) {
+        return planner.plan(series(requested), target, filter).getSourceDistance();
+    }
+
+    private static TimeSeriesDefinition series(MeasurementDistance distance) {
+        return TimeSeriesDefinition.builder().name("series").distance(distance).owner("owner");
+    }
+
+    private static ZonedDateTime timestamp(int year, int month, int day, int hour, int minute) {
+        return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, UTC);
+    }
+
+}
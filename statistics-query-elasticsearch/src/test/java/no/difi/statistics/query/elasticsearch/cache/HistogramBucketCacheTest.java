@@ -0,0 +1,69 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Optional;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.emptyMap;
+import static no.difi.statistics.model.MeasurementDistance.hours;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramBucketCacheTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2017, 3, 1, 12, 0, 0, 0, UTC);
+    private final TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").minutes().owner("owner");
+    private final HistogramBucketCache cache = new HistogramBucketCache(
+            1024 * 1024,
+            Duration.ofHours(1),
+            Duration.ofMinutes(10),
+            Clock.fixed(now.toInstant(), UTC)
+    );
+
+    @Test
+    public void givenBucketEndedWithinLagWhenCheckingThenItIsNotClosed() {
+        assertFalse(cache.isClosed(now.minusMinutes(9)));
+    }
+
+    @Test
+    public void givenBucketEndedBeforeLagWhenCheckingThenItIsClosed() {
+        assertTrue(cache.isClosed(now.minusMinutes(10)));
+    }
+
+    @Test
+    public void givenBucketNotEndedWhenCheckingThenItIsNotClosed() {
+        assertFalse(cache.isClosed(now.plusHours(1)));
+    }
+
+    @Test
+    public void givenCachedBucketWhenGettingWithSameLateWritesThenItIsFound() {
+        TimeSeriesPoint point = point(now.minusHours(2));
+        cache.put("sum", series, 3, hours, emptyMap(), now.minusHours(2), point);
+        assertEquals(Optional.of(point), cache.get("sum", series, 3, hours, emptyMap(), now.minusHours(2)));
+    }
+
+    @Test
+    public void givenCachedBucketWhenSeriesHasLateWriteThenItIsNotFound() {
+        cache.put("sum", series, 3, hours, emptyMap(), now.minusHours(2), point(now.minusHours(2)));
+        assertNull(cache.get("sum", series, 4, hours, emptyMap(), now.minusHours(2)));
+    }
+
+    @Test
+    public void givenCachedEmptyBucketWhenGettingThenEmptyValueIsFound() {
+        cache.put("sum", series, 0, hours, emptyMap(), now.minusHours(2), null);
+        assertEquals(Optional.empty(), cache.get("sum", series, 0, hours, emptyMap(), now.minusHours(2)));
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("aMeasurement", 1).build();
+    }
+
+}
@@ -0,0 +1,132 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Refreshes and evictions run on the reading thread and time is moved by hand, so that the outcome of each read is
+ * known.
+ */
+public class MeasurementIdentifierCacheTest {
+
+    private static final String request = "/owner@series@minute*/_field_caps?fields=*&ignore_unavailable=true";
+    private final AtomicLong nanos = new AtomicLong();
+    private RestClient client;
+    private MeasurementIdentifierCache cache;
+
+    @Before
+    public void prepare() {
+        client = mock(RestClient.class);
+        cache = cache(100);
+    }
+
+    @Test
+    public void whenGettingThenMeasurementFieldsAreLoaded() throws IOException {
+        givenFields("\"timestamp\", \"_id\", \"category\", \"category.service\", \"count\", \"errors\"");
+        assertEquals(asList("count", "errors"), sorted(cache.get("owner@series@minute*")));
+    }
+
+    @Test
+    public void givenCachedEntryWhenGettingWithinRefreshIntervalThenItIsReused() throws IOException {
+        givenFields("\"timestamp\", \"count\"", "\"timestamp\", \"count\", \"errors\"");
+        cache.get("owner@series@minute*");
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertEquals(singletonList("count"), cache.get("owner@series@minute*"));
+        verify(client, times(1)).performRequest("GET", request);
+    }
+
+    @Test
+    public void givenEntryOlderThanRefreshIntervalWhenGettingThenItIsRefreshed() throws IOException {
+        givenFields("\"timestamp\", \"count\"", "\"timestamp\", \"count\", \"errors\"");
+        cache.get("owner@series@minute*");
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        // The read which triggers the refresh is served from the previous entry
+        assertEquals(singletonList("count"), cache.get("owner@series@minute*"));
+        assertEquals(asList("count", "errors"), sorted(cache.get("owner@series@minute*")));
+    }
+
+    @Test
+    public void givenEntryOlderThanTimeToLiveWhenGettingThenItIsLoadedAgain() throws IOException {
+        givenFields("\"timestamp\", \"count\"", "\"timestamp\", \"count\", \"errors\"");
+        cache.get("owner@series@minute*");
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(601));
+        assertEquals(asList("count", "errors"), sorted(cache.get("owner@series@minute*")));
+    }
+
+    @Test
+    public void givenSeriesWithoutMeasurementsWhenGettingThenItIsNotCached() throws IOException {
+        givenFields("\"timestamp\"", "\"timestamp\", \"count\"");
+        assertEquals(emptyList(), cache.get("owner@series@minute*"));
+        assertEquals(singletonList("count"), cache.get("owner@series@minute*"));
+    }
+
+    @Test
+    public void givenFullCacheWhenGettingOtherSeriesThenEntriesAreEvicted() throws IOException {
+        cache = cache(1);
+        when(client.performRequest(eq("GET"), anyString())).thenAnswer(invocation -> response("\"count\""));
+        for (int i = 0; i < 2; i++)
+            for (String series : asList("a", "b", "c"))
+                cache.get("owner@" + series + "@minute*");
+        // At most one of the three series is still cached when they are read again
+        verify(client, atLeast(5)).performRequest(eq("GET"), anyString());
+    }
+
+    @Test
+    public void whenInvalidatedThenEntriesAreLoadedAgain() throws IOException {
+        givenFields("\"count\"", "\"count\", \"errors\"");
+        cache.get("owner@series@minute*");
+        cache.invalidateAll();
+        assertEquals(asList("count", "errors"), sorted(cache.get("owner@series@minute*")));
+    }
+
+    private MeasurementIdentifierCache cache(long size) {
+        return new MeasurementIdentifierCache(client, size, Duration.ofSeconds(60), Duration.ofSeconds(600), Runnable::run, nanos::get);
+    }
+
+    private void givenFields(String first, String... following) throws IOException {
+        Response[] responses = new Response[following.length];
+        for (int i = 0; i < following.length; i++)
+            responses[i] = response(following[i]);
+        Response firstResponse = response(first);
+        when(client.performRequest("GET", request)).thenReturn(firstResponse, responses);
+    }
+
+    private static Response response(String fieldNames) {
+        StringBuilder fields = new StringBuilder();
+        for (String fieldName : fieldNames.split(", "))
+            fields.append(fields.length() > 0 ? ", " : "").append(fieldName).append(": {}");
+        Response response = mock(Response.class);
+        when(response.getEntity()).thenReturn(new StringEntity("{\"fields\": {" + fields + "}}", ContentType.APPLICATION_JSON));
+        return response;
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sorted = new ArrayList<>(list);
+        sorted.sort(null);
+        return sorted;
+    }
+
+}
@@ -0,0 +1,108 @@
+package no.difi.statistics.query.elasticsearch.cache;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Refreshes run on the reading thread and time is moved by hand, so that no refresh races with the assertions.
+ */
+public class SeriesCatalogueTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private RestClient client;
+    private SeriesCatalogue catalogue;
+
+    @Before
+    public void prepare() {
+        client = mock(RestClient.class);
+        catalogue = new SeriesCatalogue(client, Duration.ofSeconds(30), Runnable::run, nanos::get);
+    }
+
+    @Test
+    public void whenReadingThenSeriesAreListedFromIndices() throws IOException {
+        givenIndices("owner@b@hour2018\nowner@a@minute2018\nowner@a@minute2017\nother@c@day2018\nseries-statistics");
+        assertEquals(asList(series("other", "c", "day"), series("owner", "a", "minute"), series("owner", "b", "hour")), catalogue.all());
+        assertEquals(singletonList(series("other", "c", "day")), catalogue.owner("other"));
+    }
+
+    @Test
+    public void givenSnapshotWhenReadingWithinRefreshIntervalThenItIsReused() throws IOException {
+        givenIndices("owner@a@minute2018", "owner@a@minute2018\nowner@b@minute2018");
+        catalogue.all();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(29));
+        assertEquals(singletonList(series("owner", "a", "minute")), catalogue.all());
+        verify(client, times(1)).performRequest("GET", "/_cat/indices?h=index");
+    }
+
+    @Test
+    public void givenSnapshotOlderThanRefreshIntervalWhenReadingThenItIsRefreshed() throws IOException {
+        givenIndices("owner@a@minute2018", "owner@a@minute2018\nowner@b@minute2018");
+        catalogue.all();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        // The read which triggers the refresh is served from the previous snapshot
+        assertEquals(singletonList(series("owner", "a", "minute")), catalogue.all());
+        assertEquals(asList(series("owner", "a", "minute"), series("owner", "b", "minute")), catalogue.all());
+    }
+
+    @Test
+    public void givenFailingRefreshWhenReadingThenPreviousSnapshotIsKept() throws IOException {
+        Response response = response("owner@a@minute2018");
+        when(client.performRequest("GET", "/_cat/indices?h=index"))
+                .thenReturn(response)
+                .thenThrow(new IOException("Unavailable"));
+        catalogue.all();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        catalogue.all();
+        assertEquals(singletonList(series("owner", "a", "minute")), catalogue.all());
+    }
+
+    @Test
+    public void whenInvalidatedThenNextReadLoadsCatalogue() throws IOException {
+        givenIndices("owner@a@minute2018", "owner@b@minute2018");
+        catalogue.all();
+        catalogue.invalidate();
+        assertEquals(singletonList(series("owner", "b", "minute")), catalogue.all());
+    }
+
+    private void givenIndices(String first, String... following) throws IOException {
+        Response[] responses = new Response[following.length];
+        for (int i = 0; i < following.length; i++)
+            responses[i] = response(following[i]);
+        Response firstResponse = response(first);
+        when(client.performRequest("GET", "/_cat/indices?h=index")).thenReturn(firstResponse, responses);
+    }
+
+    private static Response response(String indices) {
+        Response response = mock(Response.class);
+        when(response.getEntity()).thenReturn(new StringEntity(indices, ContentType.TEXT_PLAIN));
+        return response;
+    }
+
+    private static TimeSeriesDefinition series(String owner, String name, String distance) {
+        TimeSeriesDefinition.DistanceEntry entry = TimeSeriesDefinition.builder().name(name);
+        switch (distance) {
+            case "minute": return entry.minutes().owner(owner);
+            case "hour": return entry.hours().owner(owner);
+            default: return entry.days().owner(owner);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package no.difi.statistics.query.elasticsearch.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+
+public class ElasticsearchConfigTest {
+
+    private MockEnvironment environment;
+    private ElasticsearchConfig config;
+
+    @Before
+    public void prepare() {
+        environment = new MockEnvironment();
+        config = new ElasticsearchConfig(environment);
+    }
+
+    @Test
+    public void givenNoPoolPropertiesWhenCreatingConnectionManagerThenDefaultsAreUsed() throws IOException {
+        PoolingNHttpClientConnectionManager connectionManager = config.elasticsearchConnectionManager();
+        try {
+            assertEquals(50, connectionManager.getDefaultMaxPerRoute());
+            assertEquals(100, connectionManager.getMaxTotal());
+        } finally {
+            connectionManager.shutdown();
+        }
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.ioReactorConfig().getIoThreadCount());
+    }
+
+    @Test
+    public void givenPoolPropertiesWhenCreatingConnectionManagerThenTheyAreUsed() throws IOException {
+        environment.setProperty("no.difi.statistics.elasticsearch.max-connections-per-route", "7");
+        environment.setProperty("no.difi.statistics.elasticsearch.max-connections", "11");
+        environment.setProperty("no.difi.statistics.elasticsearch.io-threads", "3");
+        PoolingNHttpClientConnectionManager connectionManager = config.elasticsearchConnectionManager();
+        try {
+            assertEquals(7, connectionManager.getDefaultMaxPerRoute());
+            assertEquals(11, connectionManager.getMaxTotal());
+        } finally {
+            connectionManager.shutdown();
+        }
+        assertEquals(3, config.ioReactorConfig().getIoThreadCount());
+    }
+
+    @Test
+    public void givenEmptyIoThreadsPropertyWhenCreatingReactorConfigThenDefaultIsUsed() {
+        environment.setProperty("no.difi.statistics.elasticsearch.io-threads", "");
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.ioReactorConfig().getIoThreadCount());
+    }
+
+    @Test
+    public void givenBatchThreadsPropertyWhenCreatingMultiSearchExecutorThenItIsBounded() {
+        environment.setProperty("no.difi.statistics.query.batch.threads", "3");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) config.multiSearchExecutor();
+        try {
+            assertEquals(3, executor.getMaximumPoolSize());
+            assertEquals(3, executor.getQueue().remainingCapacity());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void givenNoServerKeepAliveWhenCheckingKeepAliveThenConfiguredIsUsed() {
+        environment.setProperty("no.difi.statistics.elasticsearch.keep-alive-seconds", "20");
+        assertEquals(20_000, keepAlive(config.keepAliveStrategy(), null));
+    }
+
+    @Test
+    public void givenShorterServerKeepAliveWhenCheckingKeepAliveThenServerKeepAliveIsUsed() {
+        environment.setProperty("no.difi.statistics.elasticsearch.keep-alive-seconds", "20");
+        assertEquals(5_000, keepAlive(config.keepAliveStrategy(), "timeout=5"));
+    }
+
+    @Test
+    public void givenLongerServerKeepAliveWhenCheckingKeepAliveThenConfiguredIsUsed() {
+        environment.setProperty("no.difi.statistics.elasticsearch.keep-alive-seconds", "20");
+        assertEquals(20_000, keepAlive(config.keepAliveStrategy(), "timeout=300"));
+    }
+
+    @Test
+    public void whenBindingPoolMetricsThenPoolUtilizationIsMeasured() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        environment.setProperty("no.difi.statistics.elasticsearch.max-connections", "11");
+        config.elasticsearchConnectionPoolMetrics().bindTo(registry);
+        assertEquals(0, registry.get("elasticsearch.connections.leased").gauge().value(), 0);
+        assertEquals(0, registry.get("elasticsearch.connections.available").gauge().value(), 0);
+        assertEquals(0, registry.get("elasticsearch.connections.pending").gauge().value(), 0);
+        assertEquals(11, registry.get("elasticsearch.connections.max").gauge().value(), 0);
+    }
+
+    private static long keepAlive(ConnectionKeepAliveStrategy strategy, String keepAliveHeader) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (keepAliveHeader != null)
+            response.addHeader("Keep-Alive", keepAliveHeader);
+        return strategy.getKeepAliveDuration(response, new BasicHttpContext());
+    }
+
+}
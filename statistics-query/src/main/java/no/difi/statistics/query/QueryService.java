@@ -4,23 +4,54 @@ import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.model.BatchQuery;
 import no.difi.statistics.query.model.QueryFilter;
+import no.difi.statistics.query.model.QueryPlan;
 
 import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
 
 public interface QueryService {
 
     List<TimeSeriesDefinition> availableTimeSeries();
 
+    List<TimeSeriesDefinition> availableTimeSeries(String owner);
+
     TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
 
     List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
 
     List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter);
 
+    /**
+     * Same points as {@link #query(TimeSeriesDefinition, QueryFilter)}, but implementations may produce them while the
+     * stream is consumed instead of holding all of them at once.
+     */
+    default Stream<TimeSeriesPoint> stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return query(seriesDefinition, queryFilter).stream();
+    }
+
     List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
 
     TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
 
     List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    /**
+     * Results of the queries, in the same order as the queries. Implementations may search for all of them together.
+     */
+    default List<Object> batch(List<BatchQuery> queries) {
+        return queries.stream().map(query -> query.execute(this)).collect(toList());
+    }
+
+    QueryPlan explain(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    /**
+     * A value which changes whenever points are written to the series, at any distance. The points may become visible
+     * to queries some time after the value has changed.
+     */
+    long watermark(String owner, String seriesName);
+
 }
\ No newline at end of file
@@ -1,31 +1,61 @@
 package no.difi.statistics.query.api;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import no.difi.statistics.model.*;
 import no.difi.statistics.query.QueryService;
+import no.difi.statistics.query.cache.ResponseCache;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.QueryFilter;
+import no.difi.statistics.query.model.QueryPlan;
+import no.difi.statistics.query.model.TimeSeriesColumns;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.view.RedirectView;
 import springfox.documentation.annotations.ApiIgnore;
 
 import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static no.difi.statistics.query.model.TimeSeriesColumns.columns;
 
 @Api(tags = "Statistics-query", description = "Hent ut data frå statistikk-databasen")
 @RestController
 public class QueryRestController {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+    public static final String APPLICATION_CBOR_VALUE = "application/cbor";
+    private static final MediaType columnsMediaType = MediaType.parseMediaType(TimeSeriesColumns.mediaType);
+    private static final List<MediaType> binaryMediaTypes = asList(
+            MediaType.parseMediaType(APPLICATION_SMILE_VALUE),
+            MediaType.parseMediaType(APPLICATION_CBOR_VALUE)
+    );
     private QueryService service;
+    private ResponseCache responseCache;
+    private ObjectMapper objectMapper;
 
-    public QueryRestController(QueryService service) {
+    public QueryRestController(QueryService service, ResponseCache responseCache, ObjectMapper objectMapper) {
         this.service = service;
+        this.responseCache = responseCache;
+        this.objectMapper = objectMapper;
     }
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -37,6 +67,13 @@ public class QueryRestController {
         return e.getMessage();
     }
 
+    @ExceptionHandler
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public String handle(RejectedExecutionException e) {
+        logger.warn("Query rejected: {}", e.getMessage());
+        return e.getMessage();
+    }
+
     @ApiIgnore
     @GetMapping("/")
     public RedirectView index() {
@@ -45,13 +82,48 @@ public class QueryRestController {
 
     @ApiOperation(value = "Hent ut liste over tilgjengelege tidsseriar")
     @GetMapping("/meta")
-    public List<TimeSeriesDefinition> available() {
-        return service.availableTimeSeries();
+    public List<TimeSeriesDefinition> available(
+            @ApiParam(value = "eigar av tidsseriane i form av eit organisasjonsnummer", example = "991825827")
+            @RequestParam(required = false) String owner,
+            @ApiParam(value = "tal på tidsseriar å hoppe over")
+            @RequestParam(required = false, defaultValue = "0") int offset,
+            @ApiParam(value = "maksimalt tal på tidsseriar å returnere")
+            @RequestParam(required = false) Integer limit
+    ) {
+        if (offset < 0 || (limit != null && limit < 0))
+            throw new IllegalArgumentException(format("Invalid offset %d or limit %d", offset, limit));
+        List<TimeSeriesDefinition> series = owner != null ? service.availableTimeSeries(owner) : service.availableTimeSeries();
+        int fromIndex = Math.min(offset, series.size());
+        int toIndex = limit != null ? (int)Math.min((long)fromIndex + limit, series.size()) : series.size();
+        return series.subList(fromIndex, toIndex);
     }
 
-    @ApiOperation(value = "Hent data frå ein tidsserie")
+    @ApiOperation(value = "Hent data frå ein tidsserie", response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}")
-    public List<TimeSeriesPoint> query(
+    public ResponseEntity<byte[]> query(
+            @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
+            @PathVariable String owner,
+            @PathVariable String seriesName,
+            @ApiParam(value = "tidsserien sin måleavstand", required = true)
+            @PathVariable MeasurementDistance distance,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
+            @RequestParam(required = false) String categories,
+            @RequestParam(required = false) String perCategory,
+            @ApiParam(value = "maksimalt tal på datapunkt å returnere. Måleavstanden blir grovare og datapunkta blir plukka ut med LTTB ved behov")
+            @RequestParam(required = false) Integer maxPoints,
+            @ApiParam(value = "'application/vnd.difi.statistics.columns+json' gjev datapunkta i kolonner")
+            @RequestHeader(value = "Accept", required = false) String accept
+    ) {
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).perCategory(perCategory).maxPoints(maxPoints).build();
+        return cachedPoints("query", accept, seriesDefinition, () -> service.query(seriesDefinition, queryFilter), queryFilter);
+    }
+
+    @ApiOperation(value = "Hent data frå ein tidsserie som ein straum",
+        notes = "Datapunkta blir skrivne som eitt JSON-objekt per linje (NDJSON) etter kvart som dei blir henta, utan mellomlagring")
+    @GetMapping(path = "{owner}/{seriesName}/{distance}", params = "format=ndjson")
+    public ResponseEntity<StreamingResponseBody> queryAsStream(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -63,27 +135,42 @@ public class QueryRestController {
             @RequestParam(required = false) String perCategory
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).categories(categories).perCategory(perCategory).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).perCategory(perCategory).build();
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE))
+                .body(out -> {
+                    try (Stream<TimeSeriesPoint> points = service.stream(seriesDefinition, queryFilter);
+                         JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                        generator.setRootValueSeparator(null);
+                        for (TimeSeriesPoint point : (Iterable<TimeSeriesPoint>) points::iterator) {
+                            writer.writeValue(generator, point);
+                            generator.writeRaw('\n');
+                        }
+                    }
+                });
     }
 
-    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie")
+    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie", response = TimeSeriesPoint.class)
     @GetMapping("{owner}/{seriesName}/{distance}/last")
-    public TimeSeriesPoint last(
+    public ResponseEntity<byte[]> last(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @RequestHeader(value = "Accept", required = false) String accept
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.last(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return cached(responseMediaType(accept, false), "last", seriesDefinition, () -> service.last(seriesDefinition, queryFilter), queryFilter);
     }
 
-    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie")
+    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie", response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}/last/{targetDistance}")
-    public List<TimeSeriesPoint> lastHistogram(
+    public ResponseEntity<byte[]> lastHistogram(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -91,33 +178,41 @@ public class QueryRestController {
             @PathVariable MeasurementDistance targetDistance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiParam(value = "maksimalt tal på datapunkt å returnere. Måleavstanden blir grovare og datapunkta blir plukka ut med LTTB ved behov")
+            @RequestParam(required = false) Integer maxPoints,
+            @ApiParam(value = "'application/vnd.difi.statistics.columns+json' gjev datapunkta i kolonner")
+            @RequestHeader(value = "Accept", required = false) String accept
     ) {
         validateMeasurementDistance(distance, targetDistance);
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.lastHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).maxPoints(maxPoints).build();
+        return cachedPoints("lastHistogram", accept, seriesDefinition, () -> service.lastHistogram(seriesDefinition, targetDistance, queryFilter), targetDistance, queryFilter);
     }
 
     @ApiOperation(value = "Hent eitt datapunkt med sum av målingar",
-        notes = "Returnerer eitt datapunkt")
+        notes = "Returnerer eitt datapunkt", response = TimeSeriesPoint.class)
     @GetMapping("{owner}/{seriesName}/{distance}/sum")
-    public TimeSeriesPoint sum(
+    public ResponseEntity<byte[]> sum(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @RequestHeader(value = "Accept", required = false) String accept
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sum(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return cached(responseMediaType(accept, false), "sum", seriesDefinition, () -> service.sum(seriesDefinition, queryFilter), queryFilter);
     }
 
     @ApiOperation(value = "Hent datapunkter med summar av målingar, omforma til ny måleavstand",
-        notes = "Ein tidsserie med måleavstand på timar kan for eksempel summerast opp på dag, månad eller årsnivå.")
+        notes = "Ein tidsserie med måleavstand på timar kan for eksempel summerast opp på dag, månad eller årsnivå.",
+        response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}/sum/{targetDistance}")
-    public List<TimeSeriesPoint> sumHistogram(
+    public ResponseEntity<byte[]> sumHistogram(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -125,16 +220,22 @@ public class QueryRestController {
             @PathVariable MeasurementDistance targetDistance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiParam(value = "maksimalt tal på datapunkt å returnere. Måleavstanden blir grovare og datapunkta blir plukka ut med LTTB ved behov")
+            @RequestParam(required = false) Integer maxPoints,
+            @ApiParam(value = "'application/vnd.difi.statistics.columns+json' gjev datapunkta i kolonner")
+            @RequestHeader(value = "Accept", required = false) String accept
     ) {
         validateMeasurementDistance(distance, targetDistance);
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sumHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).maxPoints(maxPoints).build();
+        return cachedPoints("sumHistogram", accept, seriesDefinition, () -> service.sumHistogram(seriesDefinition, targetDistance, queryFilter), targetDistance, queryFilter);
     }
 
     @GetMapping(path = "{owner}/{seriesName}/{distance}/percentile", params = {"percentile", "measurementId", "operator"})
-    @ApiOperation(value = "", notes = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b>")
-    public List<TimeSeriesPoint> relationalToPercentile(
+    @ApiOperation(value = "", notes = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b>",
+        response = TimeSeriesPoint.class, responseContainer = "List")
+    public ResponseEntity<byte[]> relationalToPercentile(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -144,10 +245,89 @@ public class QueryRestController {
             @RequestParam(required = false) String categories,
             @RequestParam int percentile,
             @RequestParam String measurementId,
-            @RequestParam RelationalOperator operator
+            @RequestParam RelationalOperator operator,
+            @ApiParam(value = "'application/vnd.difi.statistics.columns+json' gjev datapunkta i kolonner")
+            @RequestHeader(value = "Accept", required = false) String accept
+    ) {
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(from, to).build();
+        PercentileFilter percentileFilter = new PercentileFilter(percentile, measurementId, operator);
+        return cachedPoints("percentile", accept, seriesDefinition, () -> service.query(seriesDefinition, queryFilter, percentileFilter), queryFilter, percentileFilter);
+    }
+
+    @ApiOperation(value = "Hent resultata av fleire spørjingar i éin førespurnad",
+        notes = "Kvar spørjing har feltet 'kind' (query, last, sum, sumHistogram, lastHistogram eller percentile) og dei same " +
+                "parametrane som det tilsvarande endepunktet, til dømes {\"kind\": \"sumHistogram\", \"owner\": \"991825827\", " +
+                "\"series\": \"a\", \"distance\": \"minutes\", \"targetDistance\": \"days\", \"from\": \"2018-01-01T00:00:00Z\"}. " +
+                "Resultata kjem i same rekkefølgje som spørjingane. Søka blir sende samla til databasen.")
+    @PostMapping("/batch")
+    public List<Object> batch(@RequestBody List<BatchQuery> queries) {
+        return service.batch(queries);
+    }
+
+    @ApiOperation(value = "Vis kva for tidsserie og indeksar ei spørjing vil lese frå",
+        notes = "Utan 'targetDistance' gjeld planen spørjingar etter tidsserien sin eigen måleavstand")
+    @GetMapping("{owner}/{seriesName}/{distance}/explain")
+    public QueryPlan explain(
+            @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
+            @PathVariable String owner,
+            @PathVariable String seriesName,
+            @PathVariable MeasurementDistance distance,
+            @RequestParam(required = false) MeasurementDistance targetDistance,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
+            @RequestParam(required = false) String categories
     ) {
+        if (targetDistance == null)
+            targetDistance = distance;
+        else
+            validateMeasurementDistance(distance, targetDistance);
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).build(), new PercentileFilter(percentile, measurementId, operator));
+        return service.explain(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+    }
+
+    /**
+     * Points are returned in columnar form if the client prefers {@value TimeSeriesColumns#mediaType}, and as an array
+     * of points otherwise.
+     */
+    private ResponseEntity<byte[]> cachedPoints(
+            String endpoint,
+            String accept,
+            TimeSeriesDefinition seriesDefinition,
+            Supplier<List<TimeSeriesPoint>> query,
+            Object...parameters
+    ) {
+        MediaType mediaType = responseMediaType(accept, true);
+        if (mediaType == columnsMediaType)
+            return cached(mediaType, endpoint, seriesDefinition, () -> columns(query.get()), parameters);
+        return cached(mediaType, endpoint, seriesDefinition, query::get, parameters);
+    }
+
+    private ResponseEntity<byte[]> cached(MediaType mediaType, String endpoint, TimeSeriesDefinition seriesDefinition, Supplier<Object> query, Object...parameters) {
+        return ResponseEntity.ok()
+                .contentType(mediaType)
+                .body(responseCache.get(mediaType.toString(), endpoint, seriesDefinition, query, parameters));
+    }
+
+    /**
+     * The most preferred of the accepted media types this API can produce, which is JSON if none of the others are
+     * accepted explicitly.
+     */
+    private static MediaType responseMediaType(String accept, boolean columnsAllowed) {
+        if (accept == null)
+            return MediaType.APPLICATION_JSON_UTF8;
+        List<MediaType> acceptedMediaTypes = MediaType.parseMediaTypes(accept);
+        MediaType.sortBySpecificityAndQuality(acceptedMediaTypes);
+        for (MediaType acceptedMediaType : acceptedMediaTypes) {
+            if (columnsAllowed && columnsMediaType.equalsTypeAndSubtype(acceptedMediaType))
+                return columnsMediaType;
+            for (MediaType binaryMediaType : binaryMediaTypes)
+                if (binaryMediaType.equalsTypeAndSubtype(acceptedMediaType))
+                    return binaryMediaType;
+            if (acceptedMediaType.isCompatibleWith(MediaType.APPLICATION_JSON))
+                return MediaType.APPLICATION_JSON_UTF8;
+        }
+        return MediaType.APPLICATION_JSON_UTF8;
     }
 
     private void validateMeasurementDistance(MeasurementDistance distance, MeasurementDistance targetDistance) {
@@ -0,0 +1,198 @@
+package no.difi.statistics.query.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.QueryService;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Serialized responses of queries, keyed on media type, endpoint, series definition and the parameters of the query.
+ * Each media type is serialized with its own object mapper. The cache is
+ * bounded by the size of the responses, and Caffeine's W-TinyLFU policy decides what to evict. Each entry records the
+ * watermark of its series when it was created, and is ignored when the watermark has moved since. Watermarks are
+ * looked up from the query service at most once per refresh interval for each series, or on every request if the
+ * interval is zero.
+ * <p>
+ * Written points may not be visible to queries until some time after the watermark has moved, so responses are not
+ * cached until the watermark has stayed the same for the settle time. Entries expire after the time-to-live in any
+ * case, which bounds how long a response is served if a write did not move the watermark.
+ */
+public class ResponseCache implements MeterBinder {
+
+    private static final byte[] noContent = new byte[0];
+    private final Map<String, ObjectMapper> objectMappers;
+    private final Cache<List<Object>, Entry> responses;
+    private final QueryService service;
+    private final LoadingCache<Series, Long> watermarks;
+    private final Cache<Series, Watermark> observedWatermarks;
+    private final long settleNanos;
+    private final Ticker ticker;
+
+    public ResponseCache(
+            QueryService service,
+            Map<String, ObjectMapper> objectMappers,
+            long maxBytes,
+            Duration watermarkRefreshInterval,
+            Duration settleTime,
+            Duration timeToLive
+    ) {
+        this(service, objectMappers, maxBytes, watermarkRefreshInterval, settleTime, timeToLive, Ticker.systemTicker());
+    }
+
+    ResponseCache(
+            QueryService service,
+            Map<String, ObjectMapper> objectMappers,
+            long maxBytes,
+            Duration watermarkRefreshInterval,
+            Duration settleTime,
+            Duration timeToLive,
+            Ticker ticker
+    ) {
+        this.service = service;
+        this.objectMappers = objectMappers;
+        this.settleNanos = settleTime.toNanos();
+        this.ticker = ticker;
+        this.responses = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((List<Object> key, Entry entry) -> 256 + entry.body.length)
+                .expireAfterWrite(timeToLive)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        this.watermarks = watermarkRefreshInterval.isZero() ? null : Caffeine.newBuilder()
+                .refreshAfterWrite(watermarkRefreshInterval)
+                .expireAfterAccess(watermarkRefreshInterval.multipliedBy(100))
+                .ticker(ticker)
+                .build(series -> service.watermark(series.owner, series.name));
+        this.observedWatermarks = Caffeine.newBuilder()
+                .expireAfterAccess(timeToLive)
+                .ticker(ticker)
+                .build();
+    }
+
+    /**
+     * @return the serialized result of the query, which is empty if the result is <code>null</code>
+     */
+    public byte[] get(String mediaType, String endpoint, TimeSeriesDefinition seriesDefinition, Supplier<Object> query, Object...parameters) {
+        ObjectMapper objectMapper = objectMappers.get(mediaType);
+        if (objectMapper == null)
+            throw new IllegalArgumentException("Unsupported media type: " + mediaType);
+        List<Object> key = key(mediaType, endpoint, seriesDefinition, parameters);
+        Watermark watermark = watermark(new Series(seriesDefinition));
+        Entry entry = responses.getIfPresent(key);
+        if (entry != null && entry.watermark == watermark.value)
+            return entry.body;
+        entry = new Entry(watermark.value, serialize(objectMapper, query.get()));
+        if (ticker.read() - watermark.since >= settleNanos)
+            responses.put(key, entry);
+        return entry.body;
+    }
+
+    public void invalidateAll() {
+        responses.invalidateAll();
+        if (watermarks != null)
+            watermarks.invalidateAll();
+        observedWatermarks.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, responses, "responses");
+    }
+
+    /**
+     * @return the watermark of the series, with the time it was first seen to have its value
+     */
+    private Watermark watermark(Series series) {
+        long value = watermarks != null ? watermarks.get(series) : service.watermark(series.owner, series.name);
+        Watermark observed = observedWatermarks.getIfPresent(series);
+        if (observed == null || observed.value != value) {
+            // Not known how long the value has been there, so it counts from now
+            observed = new Watermark(value, ticker.read());
+            observedWatermarks.put(series, observed);
+        }
+        return observed;
+    }
+
+    private static byte[] serialize(ObjectMapper objectMapper, Object result) {
+        if (result == null)
+            return noContent;
+        try {
+            return objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize response", e);
+        }
+    }
+
+    private static List<Object> key(String mediaType, String endpoint, TimeSeriesDefinition seriesDefinition, Object...parameters) {
+        Object[] key = new Object[parameters.length + 3];
+        key[0] = mediaType;
+        key[1] = endpoint;
+        key[2] = seriesDefinition;
+        System.arraycopy(parameters, 0, key, 3, parameters.length);
+        return Arrays.asList(key);
+    }
+
+    private static class Entry {
+
+        private final long watermark;
+        private final byte[] body;
+
+        private Entry(long watermark, byte[] body) {
+            this.watermark = watermark;
+            this.body = body;
+        }
+
+    }
+
+    private static class Watermark {
+
+        private final long value;
+        private final long since;
+
+        private Watermark(long value, long since) {
+            this.value = value;
+            this.since = since;
+        }
+
+    }
+
+    private static class Series {
+
+        private final String owner;
+        private final String name;
+
+        private Series(TimeSeriesDefinition seriesDefinition) {
+            this.owner = seriesDefinition.getOwner();
+            this.name = seriesDefinition.getName();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Series that = (Series) o;
+            return owner.equals(that.owner) && name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * owner.hashCode() + name.hashCode();
+        }
+
+    }
+
+}
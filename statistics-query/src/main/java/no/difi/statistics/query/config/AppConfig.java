@@ -1,12 +1,22 @@
 package no.difi.statistics.query.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import no.difi.statistics.query.api.QueryRestController;
+import no.difi.statistics.query.cache.ResponseCache;
+import no.difi.statistics.query.model.TimeSeriesColumns;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.servlet.handler.SimpleUrlHandlerMapping;
 import org.springframework.web.servlet.resource.ResourceHttpRequestHandler;
@@ -15,12 +25,18 @@ import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static java.lang.String.format;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
+import static no.difi.statistics.query.api.QueryRestController.APPLICATION_CBOR_VALUE;
+import static no.difi.statistics.query.api.QueryRestController.APPLICATION_SMILE_VALUE;
 import static springfox.documentation.builders.PathSelectors.any;
 import static springfox.documentation.builders.RequestHandlerSelectors.basePackage;
 
@@ -30,15 +46,69 @@ import static springfox.documentation.builders.RequestHandlerSelectors.basePacka
 public class AppConfig {
 
     private final BackendConfig backendConfig;
+    private final Environment environment;
+    private final ObjectMapper objectMapper;
+    private final List<Jackson2ObjectMapperBuilderCustomizer> objectMapperCustomizers;
+    private final ApplicationContext applicationContext;
 
     @Autowired
-    public AppConfig(BackendConfig backendConfig) {
+    public AppConfig(
+            BackendConfig backendConfig,
+            Environment environment,
+            ObjectMapper objectMapper,
+            List<Jackson2ObjectMapperBuilderCustomizer> objectMapperCustomizers,
+            ApplicationContext applicationContext
+    ) {
         this.backendConfig = backendConfig;
+        this.environment = environment;
+        this.objectMapper = objectMapper;
+        this.objectMapperCustomizers = objectMapperCustomizers;
+        this.applicationContext = applicationContext;
     }
 
     @Bean
     public QueryRestController api() {
-        return new QueryRestController(backendConfig.queryService());
+        return new QueryRestController(backendConfig.queryService(), responseCache(), objectMapper);
+    }
+
+    @Bean
+    public ResponseCache responseCache() {
+        Map<String, ObjectMapper> objectMappers = new HashMap<>();
+        objectMappers.put(MediaType.APPLICATION_JSON_UTF8_VALUE, objectMapper);
+        objectMappers.put(TimeSeriesColumns.mediaType, objectMapper);
+        objectMappers.put(APPLICATION_SMILE_VALUE, smileHttpMessageConverter().getObjectMapper());
+        objectMappers.put(APPLICATION_CBOR_VALUE, cborHttpMessageConverter().getObjectMapper());
+        return new ResponseCache(
+                backendConfig.queryService(),
+                objectMappers,
+                environment.getProperty("no.difi.statistics.query.response-cache.max-bytes", Long.class, 64L * 1024 * 1024),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.response-cache.watermark-refresh-seconds", Long.class, 1L)),
+                Duration.ofMillis(environment.getProperty("no.difi.statistics.query.response-cache.settle-millis", Long.class, 2000L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.response-cache.ttl-seconds", Long.class, 300L))
+        );
+    }
+
+    /**
+     * Replaces Spring's default Smile converter, so that Smile uses the same Jackson settings as JSON. Same for CBOR.
+     */
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter() {
+        return new MappingJackson2SmileHttpMessageConverter(objectMapper(Jackson2ObjectMapperBuilder.smile()));
+    }
+
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter() {
+        return new MappingJackson2CborHttpMessageConverter(objectMapper(Jackson2ObjectMapperBuilder.cbor()));
+    }
+
+    /**
+     * @return an object mapper built with the customizations Spring Boot applies to the JSON object mapper, on a builder
+     * of its own so that the shared builder is not changed
+     */
+    private ObjectMapper objectMapper(Jackson2ObjectMapperBuilder builder) {
+        builder.applicationContext(applicationContext);
+        objectMapperCustomizers.forEach(customizer -> customizer.customize(builder));
+        return builder.build();
     }
 
     @Bean
@@ -65,7 +135,11 @@ public class AppConfig {
                                         + "<i>Per kategorinøkkel</i>\n"
                                         + "Med parameteret 'perCategory' kan du hente ut datapunkt for kvar ulik verdi på kategorinøkkelen du oppgir. For eksempel, med statistikk for idporten-innloggingar, kan du få fleire datapunkt på samme tid, der kvart datapunkt er for ulike verdiar av Tjenesteeigar (kategorinøkkel). I dette eksempelet kan ulike verdiar av Tjenesteeigar kan vere Skatteetaten, Aure kommune etc.\n\n"
                                         + "<i>Tidspunkt</i>\n"
-                                        + "Alle tidspunkt i parameter og responsar er oppgjevne i ISO 8601 datetime-format. Eksempel: '2018-06-18T09:00Z'."
+                                        + "Alle tidspunkt i parameter og responsar er oppgjevne i ISO 8601 datetime-format. Eksempel: '2018-06-18T09:00Z'.\n\n"
+                                        + "<i>Kolonneformat</i>\n"
+                                        + "Endepunkt som gjev ei liste av datapunkt kan i staden gje datapunkta i kolonner, dersom Accept-hovudet inneheld '" + TimeSeriesColumns.mediaType + "'. Responsen har då ei liste 'timestamps' med tidspunkt som millisekund sidan 1970-01-01T00:00Z, ei liste per måling under 'measurements' og ei liste per kategorinøkkel under 'categories', alle i same rekkjefølgje som tidspunkta.\n\n"
+                                        + "<i>Binære format</i>\n"
+                                        + "Alle endepunkt kan gje responsen i Smile ('" + APPLICATION_SMILE_VALUE + "') eller CBOR ('" + APPLICATION_CBOR_VALUE + "') i staden for JSON, ut frå Accept-hovudet."
 
                                         ,
                                         apiVersion
@@ -0,0 +1,160 @@
+package no.difi.statistics.query.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.model.RelationalOperator;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.QueryService;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+
+import static java.lang.String.format;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+
+/**
+ * One query of a batch. Its fields are those of the corresponding endpoint, with the path variables and request
+ * parameters side by side:
+ * <pre>{"kind": "sumHistogram", "owner": "991825827", "series": "a", "distance": "minutes", "targetDistance": "days",
+ * "from": "2018-01-01T00:00:00Z", "categories": "k=v", "maxPoints": 100}</pre>
+ */
+@JsonDeserialize(using = BatchQuery.JsonDeserializer.class)
+public class BatchQuery {
+
+    public enum Kind {query, last, sum, sumHistogram, lastHistogram, percentile}
+
+    private final Kind kind;
+    private final TimeSeriesDefinition seriesDefinition;
+    private final MeasurementDistance targetDistance;
+    private final QueryFilter queryFilter;
+    private final PercentileFilter percentileFilter;
+
+    public BatchQuery(
+            Kind kind,
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter,
+            PercentileFilter percentileFilter
+    ) {
+        if (kind == Kind.sumHistogram || kind == Kind.lastHistogram) {
+            if (targetDistance == null || seriesDefinition.getDistance().ordinal() >= targetDistance.ordinal())
+                throw new IllegalArgumentException(format("Distance %s is greater than or equal to target distance %s", seriesDefinition.getDistance(), targetDistance));
+        }
+        if (kind == Kind.percentile && percentileFilter == null)
+            throw new IllegalArgumentException("Percentile query without percentile, measurementId and operator");
+        this.kind = kind;
+        this.seriesDefinition = seriesDefinition;
+        this.targetDistance = targetDistance;
+        this.queryFilter = queryFilter;
+        this.percentileFilter = percentileFilter;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public TimeSeriesDefinition getSeriesDefinition() {
+        return seriesDefinition;
+    }
+
+    public MeasurementDistance getTargetDistance() {
+        return targetDistance;
+    }
+
+    public QueryFilter getQueryFilter() {
+        return queryFilter;
+    }
+
+    public PercentileFilter getPercentileFilter() {
+        return percentileFilter;
+    }
+
+    /**
+     * @return the result of the endpoint corresponding to the kind of query, which is a point or a list of points
+     */
+    public Object execute(QueryService service) {
+        switch (kind) {
+            case query: return service.query(seriesDefinition, queryFilter);
+            case last: return service.last(seriesDefinition, queryFilter);
+            case sum: return service.sum(seriesDefinition, queryFilter);
+            case sumHistogram: return service.sumHistogram(seriesDefinition, targetDistance, queryFilter);
+            case lastHistogram: return service.lastHistogram(seriesDefinition, targetDistance, queryFilter);
+            case percentile: return service.query(seriesDefinition, queryFilter, percentileFilter);
+            default: throw new IllegalArgumentException(kind.toString());
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BatchQuery that = (BatchQuery) o;
+        return kind == that.kind &&
+                seriesDefinition.equals(that.seriesDefinition) &&
+                targetDistance == that.targetDistance &&
+                queryFilter.equals(that.queryFilter) &&
+                Objects.equals(percentileFilter, that.percentileFilter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, seriesDefinition, targetDistance, queryFilter, percentileFilter);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchQuery{" +
+                "kind=" + kind +
+                ", seriesDefinition=" + seriesDefinition +
+                ", targetDistance=" + targetDistance +
+                ", queryFilter=" + queryFilter +
+                '}';
+    }
+
+    /**
+     * Use custom deserializer to maintain immutability property
+     */
+    static class JsonDeserializer extends com.fasterxml.jackson.databind.JsonDeserializer<BatchQuery> {
+
+        @Override
+        public BatchQuery deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            JsonNode node = parser.getCodec().readTree(parser);
+            return new BatchQuery(
+                    Kind.valueOf(required(node, "kind")),
+                    TimeSeriesDefinition.builder()
+                            .name(required(node, "series"))
+                            .distance(MeasurementDistance.valueOf(required(node, "distance")))
+                            .owner(required(node, "owner")),
+                    node.hasNonNull("targetDistance") ? MeasurementDistance.valueOf(node.get("targetDistance").asText()) : null,
+                    queryFilter()
+                            .range(timestamp(node, "from"), timestamp(node, "to"))
+                            .categories(node.hasNonNull("categories") ? node.get("categories").asText() : null)
+                            .perCategory(node.hasNonNull("perCategory") ? node.get("perCategory").asText() : null)
+                            .maxPoints(node.hasNonNull("maxPoints") ? node.get("maxPoints").asInt() : null)
+                            .build(),
+                    node.hasNonNull("percentile") ? new PercentileFilter(
+                            node.get("percentile").asInt(),
+                            required(node, "measurementId"),
+                            RelationalOperator.valueOf(required(node, "operator"))
+                    ) : null
+            );
+        }
+
+        private static String required(JsonNode node, String field) {
+            if (!node.hasNonNull(field))
+                throw new IllegalArgumentException("Missing field " + field + " in batch query");
+            return node.get(field).asText();
+        }
+
+        private static ZonedDateTime timestamp(JsonNode node, String field) {
+            return node.hasNonNull(field) ? ZonedDateTime.parse(node.get(field).asText()) : null;
+        }
+
+    }
+
+}
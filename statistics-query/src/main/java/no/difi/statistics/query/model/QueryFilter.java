@@ -16,6 +16,7 @@ public class QueryFilter {
     private Map<String, String> categories;
     private TimeRange timeRange;
     private String perCategory;
+    private Integer maxPoints;
 
     private QueryFilter() {
         // Use builder
@@ -35,6 +36,13 @@ public class QueryFilter {
         return this.perCategory;
     }
 
+    /**
+     * @return the maximum number of points a query should return, or <code>null</code> if unlimited
+     */
+    public Integer maxPoints() {
+        return maxPoints;
+    }
+
     public static Builder queryFilter() {
         return new Builder(new QueryFilter());
     }
@@ -66,6 +74,13 @@ public class QueryFilter {
             return this;
         }
 
+        public Builder maxPoints(Integer maxPoints) {
+            if (maxPoints != null && maxPoints < 1)
+                throw new IllegalArgumentException("Invalid maxPoints " + maxPoints);
+            instance.maxPoints = maxPoints;
+            return this;
+        }
+
         public Builder range(ZonedDateTime from, ZonedDateTime to) {
             if (from != null || to != null)
                 instance.timeRange = new TimeRange(from, to);
@@ -84,12 +99,14 @@ public class QueryFilter {
         if (o == null || getClass() != o.getClass()) return false;
         QueryFilter that = (QueryFilter) o;
         return Objects.equals(categories, that.categories) &&
-                Objects.equals(timeRange, that.timeRange);
+                Objects.equals(timeRange, that.timeRange) &&
+                Objects.equals(perCategory, that.perCategory) &&
+                Objects.equals(maxPoints, that.maxPoints);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(categories, timeRange);
+        return Objects.hash(categories, timeRange, perCategory, maxPoints);
     }
 
     @Override
@@ -97,6 +114,8 @@ public class QueryFilter {
         return "QueryFilter{" +
                 "categories=" + categories +
                 ", timeRange=" + timeRange +
+                ", perCategory=" + perCategory +
+                ", maxPoints=" + maxPoints +
                 '}';
     }
 
@@ -0,0 +1,106 @@
+package no.difi.statistics.query.model;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.util.List;
+import java.util.Objects;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * The source a query is answered from: the series read, which is the requested one, another distance of it or a
+ * rollup of it, and the indices searched.
+ */
+public class QueryPlan {
+
+    private TimeSeriesDefinition series;
+    private MeasurementDistance targetDistance;
+    private TimeSeriesDefinition sourceSeries;
+    private List<String> indices;
+
+    private QueryPlan() {
+        // Use builder
+    }
+
+    public TimeSeriesDefinition getSeries() {
+        return series;
+    }
+
+    public MeasurementDistance getTargetDistance() {
+        return targetDistance;
+    }
+
+    public MeasurementDistance getSourceDistance() {
+        return sourceSeries.getDistance();
+    }
+
+    public TimeSeriesDefinition getSourceSeries() {
+        return sourceSeries;
+    }
+
+    public List<String> getIndices() {
+        return indices;
+    }
+
+    public static Builder queryPlan() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private QueryPlan instance = new QueryPlan();
+
+        public Builder series(TimeSeriesDefinition series) {
+            instance.series = series;
+            return this;
+        }
+
+        public Builder targetDistance(MeasurementDistance targetDistance) {
+            instance.targetDistance = targetDistance;
+            return this;
+        }
+
+        public Builder sourceSeries(TimeSeriesDefinition sourceSeries) {
+            instance.sourceSeries = sourceSeries;
+            return this;
+        }
+
+        public Builder indices(List<String> indices) {
+            instance.indices = unmodifiableList(indices);
+            return this;
+        }
+
+        public QueryPlan build() {
+            return instance;
+        }
+
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        QueryPlan that = (QueryPlan) o;
+        return Objects.equals(series, that.series) &&
+                targetDistance == that.targetDistance &&
+                Objects.equals(sourceSeries, that.sourceSeries) &&
+                Objects.equals(indices, that.indices);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(series, targetDistance, sourceSeries, indices);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlan{" +
+                "series=" + series +
+                ", targetDistance=" + targetDistance +
+                ", sourceSeries=" + sourceSeries +
+                ", indices=" + indices +
+                '}';
+    }
+
+}
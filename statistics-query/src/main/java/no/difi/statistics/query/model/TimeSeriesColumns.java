@@ -0,0 +1,145 @@
+package no.difi.statistics.query.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.io.IOException;
+import java.util.*;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Points of a time series in columnar form. Serialized as an array of timestamps in epoch millis, an array of values
+ * per measurement id and an array of values per category key, all of them in the order of the points. A measurement
+ * or category a point does not have is <code>null</code>.
+ */
+@JsonSerialize(using = TimeSeriesColumns.TimeSeriesColumnsJsonSerializer.class)
+@JsonDeserialize(using = TimeSeriesColumns.TimeSeriesColumnsJsonDeserializer.class)
+public class TimeSeriesColumns {
+
+    public static final String mediaType = "application/vnd.difi.statistics.columns+json";
+    private final List<TimeSeriesPoint> points;
+
+    private TimeSeriesColumns(List<TimeSeriesPoint> points) {
+        this.points = unmodifiableList(points);
+    }
+
+    /**
+     * @return the points in columnar form, or <code>null</code> if there are no points
+     */
+    public static TimeSeriesColumns columns(List<TimeSeriesPoint> points) {
+        return points == null ? null : new TimeSeriesColumns(points);
+    }
+
+    public List<TimeSeriesPoint> getPoints() {
+        return points;
+    }
+
+    private SortedSet<String> measurementIds() {
+        SortedSet<String> measurementIds = new TreeSet<>();
+        points.forEach(point -> measurementIds.addAll(point.getMeasurements().keySet()));
+        return measurementIds;
+    }
+
+    private SortedSet<String> categoryKeys() {
+        SortedSet<String> categoryKeys = new TreeSet<>();
+        points.forEach(point -> point.getCategories().ifPresent(categories -> categoryKeys.addAll(categories.keySet())));
+        return categoryKeys;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TimeSeriesColumns that = (TimeSeriesColumns) o;
+        return points.equals(that.points);
+    }
+
+    @Override
+    public int hashCode() {
+        return points.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeriesColumns{" +
+                "points=" + points +
+                '}';
+    }
+
+    /**
+     * Writes each column directly from the points, without building intermediate arrays
+     */
+    static class TimeSeriesColumnsJsonSerializer extends JsonSerializer<TimeSeriesColumns> {
+
+        @Override
+        public void serialize(TimeSeriesColumns columns, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("timestamps");
+            for (TimeSeriesPoint point : columns.points)
+                generator.writeNumber(point.getEpochMillis());
+            generator.writeEndArray();
+            generator.writeObjectFieldStart("measurements");
+            for (String measurementId : columns.measurementIds()) {
+                generator.writeArrayFieldStart(measurementId);
+                for (TimeSeriesPoint point : columns.points) {
+                    Long value = point.getMeasurements().get(measurementId);
+                    if (value == null)
+                        generator.writeNull();
+                    else
+                        generator.writeNumber(value);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+            SortedSet<String> categoryKeys = columns.categoryKeys();
+            if (!categoryKeys.isEmpty()) {
+                generator.writeObjectFieldStart("categories");
+                for (String categoryKey : categoryKeys) {
+                    generator.writeArrayFieldStart(categoryKey);
+                    for (TimeSeriesPoint point : columns.points)
+                        generator.writeString(point.getCategoryValue(categoryKey)); // Writes null if absent
+                    generator.writeEndArray();
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+
+    }
+
+    static class TimeSeriesColumnsJsonDeserializer extends JsonDeserializer<TimeSeriesColumns> {
+
+        @Override
+        public TimeSeriesColumns deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            JsonNode node = parser.getCodec().readTree(parser);
+            JsonNode timestamps = node.path("timestamps");
+            List<TimeSeriesPoint.Builder> points = new ArrayList<>(timestamps.size());
+            for (JsonNode timestamp : timestamps)
+                points.add(TimeSeriesPoint.builder().timestamp(timestamp.asLong()));
+            node.path("measurements").fields().forEachRemaining(column -> {
+                for (int i = 0; i < points.size(); i++)
+                    if (!column.getValue().path(i).isNull() && !column.getValue().path(i).isMissingNode())
+                        points.get(i).measurement(column.getKey(), column.getValue().get(i).asLong());
+            });
+            node.path("categories").fields().forEachRemaining(column -> {
+                for (int i = 0; i < points.size(); i++)
+                    if (column.getValue().path(i).isTextual())
+                        points.get(i).category(column.getKey(), column.getValue().get(i).asText());
+            });
+            List<TimeSeriesPoint> result = new ArrayList<>(points.size());
+            points.forEach(point -> result.add(point.build()));
+            return new TimeSeriesColumns(result);
+        }
+
+    }
+
+}
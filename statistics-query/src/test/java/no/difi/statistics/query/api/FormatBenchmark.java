@@ -0,0 +1,98 @@
+package no.difi.statistics.query.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Compares the time to write and read query results as JSON, Smile and CBOR, with the Jackson settings of the
+ * application. The size of each encoding is logged on setup. Run with
+ * <code>mvn test-compile exec:java -Dexec.mainClass=no.difi.statistics.query.api.FormatBenchmark
+ * -Dexec.classpathScope=test</code> in this module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(FormatBenchmark.class);
+
+    @Param({"json", "smile", "cbor"})
+    public String format;
+    private ObjectMapper objectMapper;
+    private List<TimeSeriesPoint> points;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = objectMapperBuilder(format)
+                .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .serializationInclusion(JsonInclude.Include.NON_EMPTY)
+                .build();
+        points = new ArrayList<>();
+        ZonedDateTime timestamp = ZonedDateTime.of(2018, 3, 22, 0, 0, 0, 0, UTC);
+        for (int i = 0; i < 1440; i++)
+            points.add(TimeSeriesPoint.builder()
+                    .timestamp(timestamp.plusMinutes(i))
+                    .measurement("count", i)
+                    .measurement("errors", i % 13)
+                    .category("service", "service" + (i % 7))
+                    .build());
+        encoded = objectMapper.writeValueAsBytes(points);
+        logger.info("{}: {} bytes", format, encoded.length);
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        return objectMapper.writeValueAsBytes(points);
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> read() throws IOException {
+        return objectMapper.readValue(encoded, new TypeReference<List<TimeSeriesPoint>>() {});
+    }
+
+    private static Jackson2ObjectMapperBuilder objectMapperBuilder(String format) {
+        switch (format) {
+            case "json": return Jackson2ObjectMapperBuilder.json();
+            case "smile": return Jackson2ObjectMapperBuilder.smile();
+            case "cbor": return Jackson2ObjectMapperBuilder.cbor();
+            default: throw new IllegalArgumentException(format);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FormatBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
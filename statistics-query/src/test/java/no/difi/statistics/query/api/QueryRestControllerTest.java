@@ -1,10 +1,15 @@
 package no.difi.statistics.query.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import no.difi.statistics.model.RelationalOperator;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.model.BatchQuery;
 import no.difi.statistics.query.model.QueryFilter;
+import no.difi.statistics.query.model.TimeSeriesColumns;
 import no.difi.statistics.query.config.AppConfig;
 import no.difi.statistics.query.config.BackendConfig;
 import org.junit.Test;
@@ -15,19 +20,32 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.MeasurementDistance.hours;
 import static no.difi.statistics.model.MeasurementDistance.minutes;
 import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -35,7 +53,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  */
 @RunWith(SpringRunner.class)
 @SpringBootTest(
-        classes = {AppConfig.class, MockBackendConfig.class}
+        classes = {AppConfig.class, MockBackendConfig.class},
+        properties = "no.difi.statistics.query.response-cache.settle-millis=0"
 )
 @AutoConfigureMockMvc
 public class QueryRestControllerTest {
@@ -90,6 +109,76 @@ public class QueryRestControllerTest {
         );
     }
 
+    @Test
+    public void whenSendingSumHistogramRequestWithMaxPointsThenServiceReceivesCorrespondingRequest() throws Exception {
+        final String timeSeries = "max_points_series";
+        final String from = "2013-10-12T12:13:13.123+02:00";
+        ResultActions result = mockMvc.perform(
+                get("/{owner}/{series}/minutes/sum/hours", anOwner(), timeSeries)
+                        .param("from", from)
+                        .param("maxPoints", "100")
+        );
+        assertNormalResponse(result);
+        verify(backendConfig.queryService()).sumHistogram(
+                TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner()),
+                hours,
+                queryFilter().range(parseTimestamp(from), null).maxPoints(100).build()
+        );
+    }
+
+    @Test
+    public void whenSendingBatchThenResultsAreReturnedInOrder() throws Exception {
+        final String from = "2013-10-12T12:13:13.123+02:00";
+        List<BatchQuery> queries = asList(
+                new BatchQuery(
+                        BatchQuery.Kind.sumHistogram,
+                        TimeSeriesDefinition.builder().name("batch_series").minutes().owner(anOwner()),
+                        hours,
+                        queryFilter().range(parseTimestamp(from), null).categories("k=v").build(),
+                        null
+                ),
+                new BatchQuery(
+                        BatchQuery.Kind.last,
+                        TimeSeriesDefinition.builder().name("other_batch_series").minutes().owner(anOwner()),
+                        null,
+                        queryFilter().build(),
+                        null
+                )
+        );
+        when(backendConfig.queryService().batch(queries)).thenReturn(asList(singletonList(aPointWithoutCategory()), null));
+        mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content("[" +
+                                "{\"kind\": \"sumHistogram\", \"owner\": \"" + anOwner() + "\", \"series\": \"batch_series\", " +
+                                "\"distance\": \"minutes\", \"targetDistance\": \"hours\", \"from\": \"" + from + "\", \"categories\": \"k=v\"}," +
+                                "{\"kind\": \"last\", \"owner\": \"" + anOwner() + "\", \"series\": \"other_batch_series\", \"distance\": \"minutes\"}" +
+                                "]")
+        )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0][0].timestamp").exists())
+                .andExpect(jsonPath("$[1]").isEmpty());
+    }
+
+    @Test
+    public void givenBusyServiceWhenSendingBatchThenServiceUnavailableIsReturned() throws Exception {
+        List<BatchQuery> queries = singletonList(new BatchQuery(
+                BatchQuery.Kind.last,
+                TimeSeriesDefinition.builder().name("rejected_batch_series").minutes().owner(anOwner()),
+                null,
+                queryFilter().build(),
+                null
+        ));
+        when(backendConfig.queryService().batch(queries)).thenThrow(new RejectedExecutionException("Too many queries waiting to be executed"));
+        mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content("[{\"kind\": \"last\", \"owner\": \"" + anOwner() + "\", \"series\": \"rejected_batch_series\", \"distance\": \"minutes\"}]")
+        )
+                .andExpect(status().isServiceUnavailable());
+    }
+
     @Test
     public void whenSendingRequestWithoutFromAndToThenExpectNormalResponseAndNoRangeInServiceCall() throws Exception {
         final String timeSeries = "test";
@@ -125,6 +214,98 @@ public class QueryRestControllerTest {
         );
     }
 
+    @Test
+    public void whenRequestingAvailableSeriesForOwnerWithOffsetAndLimitThenThatPageIsReturned() throws Exception {
+        when(backendConfig.queryService().availableTimeSeries(anOwner())).thenReturn(asList(
+                TimeSeriesDefinition.builder().name("a").minutes().owner(anOwner()),
+                TimeSeriesDefinition.builder().name("b").minutes().owner(anOwner()),
+                TimeSeriesDefinition.builder().name("c").minutes().owner(anOwner())
+        ));
+        mockMvc.perform(get("/meta").param("owner", anOwner()).param("offset", "1").param("limit", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].name").value("b"))
+                .andExpect(jsonPath("$[1].name").value("c"));
+    }
+
+    @Test
+    public void whenRequestingExplainWithoutTargetDistanceThenPlanForSeriesDistanceIsRequested() throws Exception {
+        final String timeSeries = "test";
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes/explain", anOwner(), timeSeries));
+        assertNormalResponse(result);
+        verify(backendConfig.queryService()).explain(
+                TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner()),
+                minutes,
+                queryFilter().build()
+        );
+    }
+
+    @Test
+    public void whenSendingSameRequestTwiceThenServiceIsQueriedOnce() throws Exception {
+        final String timeSeries = "cachedSeries";
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(
+                singletonList(aPointWithoutCategory())
+        );
+        for (int i = 0; i < 2; i++)
+            mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), timeSeries))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0].timestamp").exists());
+        verify(backendConfig.queryService(), times(1)).query(
+                TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner()),
+                queryFilter().build()
+        );
+    }
+
+    @Test
+    public void whenRequestingSeriesAsNdjsonThenEachPointIsWrittenOnItsOwnLine() throws Exception {
+        final String timeSeries = "streamedSeries";
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner());
+        when(backendConfig.queryService().stream(seriesDefinition, queryFilter().build())).thenReturn(
+                Stream.of(aPointWithoutCategory(), aPointWithoutCategory())
+        );
+        MvcResult result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), timeSeries).param("format", "ndjson"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{") && lines[0].contains("\"timestamp\""));
+    }
+
+    @Test
+    public void whenAcceptingColumnsThenPointsAreReturnedInColumns() throws Exception {
+        final String timeSeries = "columnarSeries";
+        TimeSeriesPoint point = aPointWithoutCategory();
+        when(backendConfig.queryService().query(
+                TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner()),
+                queryFilter().build()
+        )).thenReturn(singletonList(point));
+        mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), timeSeries).accept(TimeSeriesColumns.mediaType))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(TimeSeriesColumns.mediaType))
+                .andExpect(jsonPath("$.timestamps[0]").value(point.getTimestamp().toInstant().toEpochMilli()))
+                .andExpect(jsonPath("$.measurements.m1[0]").value(aMeasurementValue()));
+    }
+
+    @Test
+    public void whenAcceptingSmileThenResponseIsSmile() throws Exception {
+        final String timeSeries = "smileSeries";
+        when(backendConfig.queryService().query(
+                TimeSeriesDefinition.builder().name(timeSeries).minutes().owner(anOwner()),
+                queryFilter().build()
+        )).thenReturn(singletonList(aPointWithoutCategory()));
+        byte[] body = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), timeSeries).accept("application/x-jackson-smile"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-jackson-smile"))
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode points = new ObjectMapper(new SmileFactory()).readTree(body);
+        assertEquals(1, points.size());
+        assertEquals(aMeasurementValue(), points.get(0).get("measurements").get(aMeasurementId()).asLong());
+    }
+
     @Test
     public void whenSendingRequestWithoutCategoryThenResponseContainsNoCategoryField() throws Exception {
         when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(
@@ -0,0 +1,94 @@
+package no.difi.statistics.query.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.QueryService;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ResponseCacheTest {
+
+    private final TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("series").minutes().owner("owner");
+    private final AtomicLong time = new AtomicLong();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final Supplier<Object> query = queries::incrementAndGet;
+    private QueryService service;
+    private ResponseCache cache;
+
+    @Before
+    public void prepare() {
+        service = mock(QueryService.class);
+        cache = new ResponseCache(
+                service,
+                singletonMap("application/json", new ObjectMapper()),
+                1024 * 1024,
+                Duration.ZERO,
+                Duration.ofSeconds(2),
+                Duration.ofMinutes(5),
+                time::get
+        );
+    }
+
+    @Test
+    public void givenSettledWatermarkWhenQueryingTwiceThenServiceIsQueriedOnce() {
+        when(service.watermark("owner", "series")).thenReturn(1L);
+        get();
+        advance(Duration.ofSeconds(2));
+        get();
+        get();
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void givenWatermarkMovedWithinSettleTimeWhenQueryingThenResponseIsNotCached() {
+        when(service.watermark("owner", "series")).thenReturn(1L);
+        advance(Duration.ofSeconds(2));
+        get();
+        when(service.watermark("owner", "series")).thenReturn(2L);
+        get();
+        advance(Duration.ofSeconds(1));
+        get();
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void givenCachedResponseWhenWatermarkMovesThenServiceIsQueriedAgain() {
+        when(service.watermark("owner", "series")).thenReturn(1L);
+        get();
+        advance(Duration.ofSeconds(2));
+        get();
+        when(service.watermark("owner", "series")).thenReturn(2L);
+        get();
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void givenCachedResponseWhenTimeToLiveHasPassedThenServiceIsQueriedAgain() {
+        when(service.watermark("owner", "series")).thenReturn(1L);
+        get();
+        advance(Duration.ofSeconds(2));
+        get();
+        advance(Duration.ofMinutes(5));
+        get();
+        assertEquals(3, queries.get());
+    }
+
+    private void get() {
+        cache.get("application/json", "series", seriesDefinition, query);
+    }
+
+    private void advance(Duration duration) {
+        time.addAndGet(duration.toNanos());
+    }
+
+}
@@ -0,0 +1,44 @@
+package no.difi.statistics.query.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Arrays.asList;
+import static no.difi.statistics.query.model.TimeSeriesColumns.columns;
+import static org.junit.Assert.assertEquals;
+
+public class TimeSeriesColumnsTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void givenPointsWhenSerializingThenEachMeasurementAndCategoryIsAColumn() throws Exception {
+        List<TimeSeriesPoint> points = asList(
+                TimeSeriesPoint.builder().timestamp(timestamp(0)).measurement("m1", 1).measurement("m2", 2).category("c", "x").build(),
+                TimeSeriesPoint.builder().timestamp(timestamp(1)).measurement("m1", 3).build()
+        );
+        assertEquals(
+                "{\"timestamps\":[0,60000],\"measurements\":{\"m1\":[1,3],\"m2\":[2,null]},\"categories\":{\"c\":[\"x\",null]}}",
+                objectMapper.writeValueAsString(columns(points))
+        );
+    }
+
+    @Test
+    public void givenColumnsWhenSerializingAndDeserializingThenPointsAreTheSame() throws Exception {
+        TimeSeriesColumns columns = columns(asList(
+                TimeSeriesPoint.builder().timestamp(timestamp(0)).measurement("m1", 1).category("c", "x").build(),
+                TimeSeriesPoint.builder().timestamp(timestamp(5)).measurement("m1", 2).measurement("m2", 7).build()
+        ));
+        assertEquals(columns, objectMapper.readValue(objectMapper.writeValueAsBytes(columns), TimeSeriesColumns.class));
+    }
+
+    private static ZonedDateTime timestamp(int minutes) {
+        return ZonedDateTime.of(1970, 1, 1, 0, minutes, 0, 0, UTC);
+    }
+
+}